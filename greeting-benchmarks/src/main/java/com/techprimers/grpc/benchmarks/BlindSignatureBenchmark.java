@@ -0,0 +1,113 @@
+package com.techprimers.grpc.benchmarks;
+
+import com.techprimers.grpc.fabric.BallotSigner;
+import com.techprimers.grpc.fabric.Storage;
+import com.techprimers.grpc.fabric.VotingCrypto;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blind signature registration and ballot signing, as done by {@code registerUserInVotingIdemix} and
+ * {@code voteIdemix} around their chaincode calls. The chaincode side of the blind signature is done here with
+ * the voting private key so unblinding and verification work on a real signature.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlindSignatureBenchmark {
+    /** size of the voting key and of the voter key */
+    @Param({"512", "1024", "2048", "4096"})
+    private int keySize;
+
+    private static final int BALLOT_BATCH = 64;
+
+    private RSAPublicKey votingPubKey;
+    private RSAPublicKey myPubKey;
+    private RSAPrivateKey myPrivKey;
+    private BigInteger R;
+    private BigInteger signedData;
+    private byte[] myPubKeyHash;
+    private List<byte[]> ballotHashes;
+    private BallotSigner signer;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPair voting = Storage.generateKeyPair(keySize);
+        KeyPair mine = Storage.generateKeyPair(keySize);
+        votingPubKey = (RSAPublicKey) voting.getPublic();
+        myPubKey = (RSAPublicKey) mine.getPublic();
+        myPrivKey = (RSAPrivateKey) mine.getPrivate();
+
+        R = VotingCrypto.getRandom(8);
+        BigInteger data = new BigInteger(VotingCrypto.getDataForBlindSign(votingPubKey, myPubKey, R));
+        RSAPrivateKey votingPrivKey = (RSAPrivateKey) voting.getPrivate();
+        signedData = data.modPow(votingPrivKey.getPrivateExponent(), votingPrivKey.getModulus());
+
+        myPubKeyHash = VotingCrypto.getHashOfPubKey(myPubKey);
+        ballotHashes = Collections.nCopies(BALLOT_BATCH, myPubKeyHash);
+        signer = new BallotSigner(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        signer.close();
+    }
+
+    @Benchmark
+    public byte[] hashOfPubKey() throws Exception {
+        return VotingCrypto.getHashOfPubKey(myPubKey);
+    }
+
+    @Benchmark
+    public String dataForBlindSign() throws Exception {
+        return VotingCrypto.getDataForBlindSign(votingPubKey, myPubKey, R);
+    }
+
+    @Benchmark
+    public BigInteger unblind() {
+        return VotingCrypto.unblind(signedData, votingPubKey, R);
+    }
+
+    @Benchmark
+    public boolean unblindAndVerify() throws Exception {
+        BigInteger signedKey = VotingCrypto.unblind(signedData, votingPubKey, R);
+        return VotingCrypto.verify(signedKey, votingPubKey, myPubKey);
+    }
+
+    @Benchmark
+    public BigInteger signBallot() throws Exception {
+        return VotingCrypto.sign(myPrivKey, myPubKey);
+    }
+
+    @Benchmark
+    public BigInteger signBallotCrt() {
+        return signer.sign(myPrivKey, myPubKeyHash);
+    }
+
+    /** {@value #BALLOT_BATCH} ballots per operation, signed in parallel */
+    @Benchmark
+    public List<BigInteger> signBallotBatch() {
+        return signer.signAll(myPrivKey, ballotHashes);
+    }
+}
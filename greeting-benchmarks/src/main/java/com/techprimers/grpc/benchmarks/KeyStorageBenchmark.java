@@ -0,0 +1,75 @@
+package com.techprimers.grpc.benchmarks;
+
+import com.techprimers.grpc.fabric.Storage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the voter keys from disk, which every registration and ballot does twice, and generating them,
+ * which the first call of a new voter does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyStorageBenchmark {
+    @Param({"512", "1024", "2048", "4096"})
+    private int keySize;
+
+    private File dir;
+    private String pubKeyFile;
+    private String privKeyFile;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("keys").toFile();
+        String keys = dir.getAbsolutePath() + File.separator + "bench";
+        Storage.SaveKeys(Storage.generateKeyPair(keySize), keys);
+        pubKeyFile = keys + ".pub";
+        privKeyFile = keys + ".key";
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public RSAPublicKey loadPubKey() throws Exception {
+        return Storage.loadPubKey(pubKeyFile);
+    }
+
+    @Benchmark
+    public RSAPrivateKey loadPrivKey() throws Exception {
+        return Storage.loadPrivKey(privKeyFile);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public KeyPair generateKeyPair() throws Exception {
+        return Storage.generateKeyPair(keySize);
+    }
+}
@@ -0,0 +1,168 @@
+package com.techprimers.grpc.loadgen;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies of one run, per operation. Response time is taken from when a request was scheduled to start, so a
+ * stalled service is charged for the requests that queued up behind it (coordinated omission); service time is
+ * taken from when the request was actually sent. Results of requests scheduled during the warmup are dropped.
+ * <p>
+ * A closed loop client only sends once it got its answer, so its requests start when they are sent and a stall
+ * hides the requests it would have sent. Given an expected interval, such response times are back-filled with
+ * HdrHistogram's expected interval correction, otherwise the report labels them uncorrected.
+ */
+class LatencyStats {
+    private static final long HIGHEST_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private final long measureFrom;
+    private final long expectedIntervalMicros;
+    private final String correction;
+    private final Map<Operation, Series> series = new EnumMap<>(Operation.class);
+    private final Recorder interval = new Recorder(HIGHEST_MICROS, 3);
+    private final LongAdder intervalSucceeded = new LongAdder();
+    private final LongAdder intervalErrors = new LongAdder();
+    private final JSONArray timeline = new JSONArray();
+    private long lastSnapshot;
+
+    /**
+     * @param openLoop               whether requests are scheduled independently of the responses
+     * @param expectedIntervalMicros expected time between the requests of a closed loop client, 0 for none
+     */
+    LatencyStats(long measureFrom, boolean openLoop, long expectedIntervalMicros) {
+        this.measureFrom = measureFrom;
+        this.expectedIntervalMicros = openLoop ? 0 : expectedIntervalMicros;
+        this.correction = openLoop ? "scheduled" : this.expectedIntervalMicros > 0 ? "expected_interval" : "uncorrected";
+        this.lastSnapshot = measureFrom;
+        for (Operation operation : Operation.values()) {
+            series.put(operation, new Series());
+        }
+    }
+
+    void record(Operation operation, long scheduled, long sent, long done, String error) {
+        if (scheduled < measureFrom) {
+            return;
+        }
+        Series s = series.get(operation);
+        if (error != null) {
+            s.errors.computeIfAbsent(error, e -> new LongAdder()).increment();
+            intervalErrors.increment();
+            return;
+        }
+        long responseMicros = toMicros(done - scheduled);
+        s.service.recordValue(toMicros(done - sent));
+        intervalSucceeded.increment();
+        if (expectedIntervalMicros > 0) {
+            s.response.recordValueWithExpectedInterval(responseMicros, expectedIntervalMicros);
+            interval.recordValueWithExpectedInterval(responseMicros, expectedIntervalMicros);
+        } else {
+            s.response.recordValue(responseMicros);
+            interval.recordValue(responseMicros);
+        }
+    }
+
+    /**
+     * Adds a timeline entry for the requests completed since the last one, called once a second.
+     */
+    synchronized void snapshot(long now) {
+        if (now < measureFrom) {
+            interval.reset();
+            intervalSucceeded.reset();
+            intervalErrors.reset();
+            return;
+        }
+        Histogram histogram = interval.getIntervalHistogram();
+        long succeeded = intervalSucceeded.sumThenReset();
+        long errors = intervalErrors.sumThenReset();
+        double seconds = (now - lastSnapshot) / 1e9;
+        lastSnapshot = now;
+        timeline.put(new JSONObject()
+                .put("second", Math.round((now - measureFrom) / 1e9))
+                .put("throughput_per_second", round(succeeded / seconds))
+                .put("errors", errors)
+                .put("p50_ms", millis(histogram.getValueAtPercentile(50)))
+                .put("p99_ms", millis(histogram.getValueAtPercentile(99)))
+                .put("max_ms", millis(histogram.getMaxValue())));
+    }
+
+    JSONObject toJson(double measuredSeconds) {
+        JSONObject operations = new JSONObject();
+        Histogram totalResponse = new Histogram(HIGHEST_MICROS, 3);
+        Histogram totalService = new Histogram(HIGHEST_MICROS, 3);
+        Map<String, Long> totalErrors = new TreeMap<>();
+        for (Map.Entry<Operation, Series> entry : series.entrySet()) {
+            Histogram response = entry.getValue().response.getIntervalHistogram();
+            Histogram service = entry.getValue().service.getIntervalHistogram();
+            Map<String, Long> errors = entry.getValue().errorCounts();
+            if (service.getTotalCount() == 0 && errors.isEmpty()) {
+                continue;
+            }
+            operations.put(entry.getKey().getName(), summary(response, service, errors, measuredSeconds));
+            totalResponse.add(response);
+            totalService.add(service);
+            errors.forEach((code, count) -> totalErrors.merge(code, count, Long::sum));
+        }
+        return new JSONObject()
+                .put("measured_seconds", round(measuredSeconds))
+                .put("response_time_correction", correction)
+                .put("operations", operations)
+                .put("total", summary(totalResponse, totalService, totalErrors, measuredSeconds))
+                .put("timeline", timeline);
+    }
+
+    private static JSONObject summary(Histogram response, Histogram service, Map<String, Long> errors,
+                                      double measuredSeconds) {
+        // corrected response times hold back-filled values, count the requests by their service times
+        long failed = errors.values().stream().mapToLong(Long::longValue).sum();
+        return new JSONObject()
+                .put("requests", service.getTotalCount() + failed)
+                .put("succeeded", service.getTotalCount())
+                .put("errors", new JSONObject(errors))
+                .put("throughput_per_second", round(service.getTotalCount() / measuredSeconds))
+                .put("response_time_ms", percentiles(response))
+                .put("service_time_ms", percentiles(service));
+    }
+
+    private static JSONObject percentiles(Histogram histogram) {
+        JSONObject json = new JSONObject().put("mean", round(histogram.getMean() / 1000));
+        for (double percentile : PERCENTILES) {
+            json.put("p" + (percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile)),
+                    millis(histogram.getValueAtPercentile(percentile)));
+        }
+        return json.put("max", millis(histogram.getMaxValue()));
+    }
+
+    private static long toMicros(long nanos) {
+        return Math.min(HIGHEST_MICROS, Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+
+    private static double millis(long micros) {
+        return round(micros / 1000.0);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    private static class Series {
+        private final Recorder response = new Recorder(HIGHEST_MICROS, 3);
+        private final Recorder service = new Recorder(HIGHEST_MICROS, 3);
+        private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+        private Map<String, Long> errorCounts() {
+            Map<String, Long> counts = new TreeMap<>();
+            errors.forEach((code, count) -> counts.put(code, count.sum()));
+            return counts;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.techprimers.grpc.loadgen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Settings of a load run. Defaults come from {@code loadgen.properties}, {@code -Dloadgen.<key>} system
+ * properties and {@code <key>=<value>} program arguments override them.
+ */
+class LoadConfig {
+    private final Properties properties = new Properties();
+
+    LoadConfig(String[] args) throws IOException {
+        try (InputStream in = LoadConfig.class.getResourceAsStream("/loadgen.properties")) {
+            if (in != null) {
+                properties.load(in);
+            }
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("loadgen.")) {
+                properties.setProperty(name.substring("loadgen.".length()), System.getProperty(name));
+            }
+        }
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("expected key=value, got " + arg);
+            }
+            properties.setProperty(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+    }
+
+    String getTarget() {
+        return properties.getProperty("target", "127.0.0.1:9090");
+    }
+
+    boolean isOpenLoop() {
+        String mode = properties.getProperty("mode", "rate");
+        if (!mode.equals("rate") && !mode.equals("concurrency")) {
+            throw new IllegalArgumentException("mode must be rate or concurrency, got " + mode);
+        }
+        return mode.equals("rate");
+    }
+
+    /**
+     * @return requests per second in rate mode, clients in concurrency mode, over the whole run
+     */
+    LoadProfile getProfile() {
+        String profile = properties.getProperty("profile", "").trim();
+        if (!profile.isEmpty()) {
+            return LoadProfile.parse(profile);
+        }
+        double level = isOpenLoop() ? getDouble("rate", 50) : getDouble("concurrency", 8);
+        return LoadProfile.constant(level, getDouble("warmup", 10) + getDouble("duration", 60));
+    }
+
+    double getWarmupSeconds() {
+        return getDouble("warmup", 10);
+    }
+
+    double getWeight(Operation operation) {
+        return getDouble("mix." + operation.getName(), 0);
+    }
+
+    boolean isInit() {
+        return Boolean.parseBoolean(properties.getProperty("init", "true"));
+    }
+
+    String getCommitWait() {
+        return properties.getProperty("commit-wait", "DEFAULT").trim().toUpperCase();
+    }
+
+    /**
+     * @return expected time between two requests of a closed loop client, 0 to not correct its response times
+     */
+    double getExpectedIntervalMillis() {
+        return getDouble("expected-interval-ms", 0);
+    }
+
+    long getTimeoutMillis() {
+        return (long) getDouble("timeout-ms", 30000);
+    }
+
+    int getMaxInFlight() {
+        return (int) getDouble("max-in-flight", 10000);
+    }
+
+    String getOut() {
+        return properties.getProperty("out", "loadgen-result.json");
+    }
+
+    TreeMap<String, String> toMap() {
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            map.put(name, properties.getProperty(name));
+        }
+        return map;
+    }
+
+    private double getDouble(String key, double defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : Double.parseDouble(value.trim());
+    }
+}
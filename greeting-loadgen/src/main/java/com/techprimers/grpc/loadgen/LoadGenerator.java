@@ -0,0 +1,232 @@
+package com.techprimers.grpc.loadgen;
+
+import com.techprimers.grpc.CommitWait;
+import com.techprimers.grpc.WorkloadRequest;
+import com.techprimers.grpc.WorkloadResponse;
+import com.techprimers.grpc.WorkloadServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.StreamObserver;
+import org.json.JSONObject;
+
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the WorkloadService with a mix of create, queryAll and initBlockchain calls and writes the latency
+ * percentiles and throughput of the run as JSON.
+ * <p>
+ * In rate mode requests start on a fixed schedule (open loop), a slow response does not delay the next request
+ * and counts from when it should have started. In concurrency mode a fixed number of clients each wait for
+ * their response before sending again (closed loop), its response times are only corrected for coordinated
+ * omission when {@code expected-interval-ms} is set.
+ * <p>
+ * Run with {@code java -jar loadgen.jar [key=value ...]}, see {@code loadgen.properties} for the keys.
+ */
+public class LoadGenerator {
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final LoadConfig config;
+    private final LoadProfile profile;
+    private final ManagedChannel channel;
+    private final WorkloadServiceGrpc.WorkloadServiceStub stub;
+    private final WorkloadRequest request;
+    private final Operation[] operations;
+    private final double[] cumulativeWeights;
+    private final Semaphore inFlight;
+
+    LoadGenerator(LoadConfig config) {
+        this.config = config;
+        this.profile = config.getProfile();
+        this.channel = NettyChannelBuilder.forTarget(config.getTarget()).usePlaintext().build();
+        this.stub = WorkloadServiceGrpc.newStub(channel);
+        this.request = WorkloadRequest.newBuilder()
+                .setMessage("loadgen")
+                .setCommitWait(commitWait(config.getCommitWait()))
+                .build();
+        this.inFlight = new Semaphore(config.getMaxInFlight());
+
+        List<Operation> mixed = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        double total = 0;
+        for (Operation operation : Operation.values()) {
+            double weight = config.getWeight(operation);
+            if (weight > 0) {
+                total += weight;
+                mixed.add(operation);
+                weights.add(total);
+            }
+        }
+        if (mixed.isEmpty()) {
+            throw new IllegalArgumentException("no operation has a mix.<name> weight above 0");
+        }
+        this.operations = mixed.toArray(new Operation[0]);
+        this.cumulativeWeights = weights.stream().mapToDouble(w -> w).toArray();
+    }
+
+    JSONObject run() throws Exception {
+        if (config.isInit()) {
+            String error = send(Operation.INIT, System.nanoTime(), null).get();
+            if (error != null) {
+                throw new IllegalStateException("initBlockchain failed: " + error);
+            }
+        }
+
+        long start = System.nanoTime();
+        long warmupNanos = (long) (config.getWarmupSeconds() * 1e9);
+        LatencyStats stats = new LatencyStats(start + warmupNanos, config.isOpenLoop(),
+                (long) (config.getExpectedIntervalMillis() * 1000));
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+        ticker.scheduleAtFixedRate(() -> stats.snapshot(System.nanoTime()), 1, 1, TimeUnit.SECONDS);
+        try {
+            if (config.isOpenLoop()) {
+                runOpenLoop(start, stats);
+            } else {
+                runClosedLoop(start, stats);
+            }
+            // let the requests still in flight settle, they belong to the run
+            inFlight.tryAcquire(config.getMaxInFlight(), config.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } finally {
+            ticker.shutdownNow();
+        }
+
+        double measuredSeconds = Math.max(1e-3, (profile.getTotalNanos() - warmupNanos) / 1e9);
+        return stats.toJson(measuredSeconds)
+                .put("config", new JSONObject(config.toMap()));
+    }
+
+    private void runOpenLoop(long start, LatencyStats stats) throws InterruptedException {
+        long scheduled = start;
+        while (scheduled - start < profile.getTotalNanos()) {
+            double rate = profile.levelAt(scheduled - start);
+            if (rate <= 0) {
+                scheduled += IDLE_NANOS;
+                continue;
+            }
+            long wait;
+            while ((wait = scheduled - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            inFlight.acquire();
+            send(pick(), scheduled, stats).whenComplete((error, t) -> inFlight.release());
+            scheduled += (long) (1e9 / rate);
+        }
+    }
+
+    private void runClosedLoop(long start, LatencyStats stats) throws InterruptedException {
+        int clients = 0;
+        for (long t = 0; t < profile.getTotalNanos(); t += IDLE_NANOS) {
+            clients = Math.max(clients, (int) Math.ceil(profile.levelAt(t)));
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            int index = i;
+            Thread thread = new Thread(() -> {
+                long now;
+                while ((now = System.nanoTime()) - start < profile.getTotalNanos()) {
+                    if (profile.levelAt(now - start) <= index) {
+                        LockSupport.parkNanos(IDLE_NANOS);
+                        continue;
+                    }
+                    inFlight.acquireUninterruptibly();
+                    send(pick(), now, stats).whenComplete((error, t) -> inFlight.release()).join();
+                }
+            }, "loadgen-client-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * @return future of the status code the call failed with, null when it succeeded
+     */
+    private CompletableFuture<String> send(Operation operation, long scheduled, LatencyStats stats) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        long sent = System.nanoTime();
+        operation.call(stub.withDeadlineAfter(config.getTimeoutMillis(), TimeUnit.MILLISECONDS), request,
+                new StreamObserver<WorkloadResponse>() {
+                    @Override
+                    public void onNext(WorkloadResponse response) {
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        complete(Status.fromThrowable(t).getCode().name());
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        complete(null);
+                    }
+
+                    private void complete(String error) {
+                        if (stats != null) {
+                            stats.record(operation, scheduled, sent, System.nanoTime(), error);
+                        }
+                        result.complete(error);
+                    }
+                });
+        return result;
+    }
+
+    private Operation pick() {
+        double r = ThreadLocalRandom.current().nextDouble(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (r < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        return operations[operations.length - 1];
+    }
+
+    void shutdown() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private static CommitWait commitWait(String name) {
+        return name.equals("DEFAULT") ? CommitWait.COMMIT_WAIT_DEFAULT : CommitWait.valueOf("WAIT_" + name);
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadConfig config = new LoadConfig(args);
+        LoadGenerator generator = new LoadGenerator(config);
+        JSONObject result;
+        try {
+            result = generator.run();
+        } finally {
+            generator.shutdown();
+        }
+
+        try (Writer out = new FileWriter(config.getOut())) {
+            out.write(result.toString(2));
+        }
+        JSONObject operations = result.getJSONObject("operations");
+        for (String name : operations.keySet()) {
+            print(name, operations.getJSONObject(name));
+        }
+        print("total", result.getJSONObject("total"));
+        System.out.println("Report written to " + config.getOut());
+    }
+
+    private static void print(String name, JSONObject summary) {
+        JSONObject latency = summary.getJSONObject("response_time_ms");
+        System.out.println(String.format("%-10s %8d req %8.1f/s  errors %-24s p50 %8.2f ms  p99 %8.2f ms  p99.9 %8.2f ms  max %8.2f ms",
+                name, summary.getLong("requests"), summary.getDouble("throughput_per_second"),
+                summary.getJSONObject("errors"), latency.getDouble("p50"), latency.getDouble("p99"),
+                latency.getDouble("p99.9"), latency.getDouble("max")));
+    }
+}
@@ -0,0 +1,69 @@
+package com.techprimers.grpc.loadgen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load level over time, as stages that each ramp linearly from the level the previous stage ended at.
+ */
+class LoadProfile {
+    private final List<double[]> stages;
+    private final long totalNanos;
+
+    private LoadProfile(List<double[]> stages) {
+        this.stages = stages;
+        long total = 0;
+        for (double[] stage : stages) {
+            total += toNanos(stage[1]);
+        }
+        this.totalNanos = total;
+    }
+
+    static LoadProfile constant(double level, double seconds) {
+        List<double[]> stages = new ArrayList<>();
+        stages.add(new double[]{level, 0});
+        stages.add(new double[]{level, seconds});
+        return new LoadProfile(stages);
+    }
+
+    /**
+     * @param profile comma separated {@code <level>:<seconds>} stages
+     */
+    static LoadProfile parse(String profile) {
+        List<double[]> stages = new ArrayList<>();
+        for (String stage : profile.split(",")) {
+            String[] parts = stage.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("expected <level>:<seconds>, got " + stage);
+            }
+            stages.add(new double[]{Double.parseDouble(parts[0]), Double.parseDouble(parts[1])});
+        }
+        return new LoadProfile(stages);
+    }
+
+    long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return level at {@code elapsedNanos} since the start of the run, 0 once the profile is over
+     */
+    double levelAt(long elapsedNanos) {
+        double from = 0;
+        long stageStart = 0;
+        for (double[] stage : stages) {
+            long length = toNanos(stage[1]);
+            if (elapsedNanos < stageStart + length) {
+                return from + (stage[0] - from) * (elapsedNanos - stageStart) / length;
+            }
+            from = stage[0];
+            stageStart += length;
+        }
+        return 0;
+    }
+
+    private static long toNanos(double seconds) {
+        return (long) (seconds * TimeUnit.SECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,46 @@
+package com.techprimers.grpc.loadgen;
+
+import com.techprimers.grpc.WorkloadRequest;
+import com.techprimers.grpc.WorkloadResponse;
+import com.techprimers.grpc.WorkloadServiceGrpc;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * WorkloadService calls a run mixes, named like their {@code mix.<name>} weight.
+ */
+enum Operation {
+    CREATE("create") {
+        @Override
+        void call(WorkloadServiceGrpc.WorkloadServiceStub stub, WorkloadRequest request,
+                  StreamObserver<WorkloadResponse> observer) {
+            stub.create(request, observer);
+        }
+    },
+    QUERY_ALL("query-all") {
+        @Override
+        void call(WorkloadServiceGrpc.WorkloadServiceStub stub, WorkloadRequest request,
+                  StreamObserver<WorkloadResponse> observer) {
+            stub.queryAll(request, observer);
+        }
+    },
+    INIT("init") {
+        @Override
+        void call(WorkloadServiceGrpc.WorkloadServiceStub stub, WorkloadRequest request,
+                  StreamObserver<WorkloadResponse> observer) {
+            stub.initBlockchain(request, observer);
+        }
+    };
+
+    private final String name;
+
+    Operation(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    abstract void call(WorkloadServiceGrpc.WorkloadServiceStub stub, WorkloadRequest request,
+                       StreamObserver<WorkloadResponse> observer);
+}
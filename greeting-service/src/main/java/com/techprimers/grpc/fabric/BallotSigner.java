@@ -0,0 +1,153 @@
+package com.techprimers.grpc.fabric;
+
+import java.math.BigInteger;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Signs ballot hashes with the voter's private key like {@link VotingCrypto#sign}, but through the Chinese
+ * remainder theorem when the key carries its primes, which replaces one full width exponentiation by two of
+ * half width. The CRT parameters are taken from a key once and kept by modulus. Batches are split over a
+ * fork/join pool.
+ */
+public class BallotSigner implements AutoCloseable {
+    private static final int maxKeys = 4096;
+    /** hashes a fork/join task signs itself instead of splitting further */
+    private static final int batchThreshold = 8;
+
+    private final ForkJoinPool pool;
+    private final Map<BigInteger, Key> keys = new ConcurrentHashMap<>();
+
+    public BallotSigner(int parallelism) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    /**
+     * @return hash^d mod N of the hash of a voter public key
+     */
+    public BigInteger sign(RSAPrivateKey privKey, byte[] hash) {
+        return key(privKey).sign(new BigInteger(1, hash));
+    }
+
+    /**
+     * Sign many hashes with one key in parallel.
+     *
+     * @return signatures in the order of the hashes
+     */
+    public List<BigInteger> signAll(RSAPrivateKey privKey, List<byte[]> hashes) {
+        Key[] keys = new Key[hashes.size()];
+        Arrays.fill(keys, key(privKey));
+        return signAll(keys, hashes);
+    }
+
+    /**
+     * Sign the hashes of many voters in parallel, each with its own key.
+     *
+     * @return signatures in the order of the hashes
+     */
+    public List<BigInteger> signEach(List<RSAPrivateKey> privKeys, List<byte[]> hashes) {
+        Key[] keys = new Key[privKeys.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = key(privKeys.get(i));
+        }
+        return signAll(keys, hashes);
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    private List<BigInteger> signAll(Key[] keys, List<byte[]> hashes) {
+        BigInteger[] signatures = new BigInteger[hashes.size()];
+        pool.invoke(new SignTask(keys, hashes, signatures, 0, hashes.size()));
+        return Arrays.asList(signatures);
+    }
+
+    private Key key(RSAPrivateKey privKey) {
+        Key key = keys.get(privKey.getModulus());
+        if (key == null || !key.exponent.equals(privKey.getPrivateExponent())) {
+            if (keys.size() >= maxKeys) {
+                keys.clear();
+            }
+            key = new Key(privKey);
+            keys.put(privKey.getModulus(), key);
+        }
+        return key;
+    }
+
+    private static class Key {
+        private final BigInteger modulus;
+        private final BigInteger exponent;
+        private final BigInteger p;
+        private final BigInteger q;
+        private final BigInteger dp;
+        private final BigInteger dq;
+        private final BigInteger qInv;
+
+        private Key(RSAPrivateKey privKey) {
+            this.modulus = privKey.getModulus();
+            this.exponent = privKey.getPrivateExponent();
+            RSAPrivateCrtKey crt = privKey instanceof RSAPrivateCrtKey ? (RSAPrivateCrtKey) privKey : null;
+            boolean hasCrt = crt != null && crt.getPrimeP() != null && crt.getPrimeQ() != null
+                    && crt.getPrimeExponentP() != null && crt.getPrimeExponentQ() != null
+                    && crt.getCrtCoefficient() != null;
+            this.p = hasCrt ? crt.getPrimeP() : null;
+            this.q = hasCrt ? crt.getPrimeQ() : null;
+            this.dp = hasCrt ? crt.getPrimeExponentP() : null;
+            this.dq = hasCrt ? crt.getPrimeExponentQ() : null;
+            this.qInv = hasCrt ? crt.getCrtCoefficient() : null;
+        }
+
+        private BigInteger sign(BigInteger m) {
+            if (p == null) {
+                return m.modPow(exponent, modulus);
+            }
+            // Garner's recombination of m^dp mod p and m^dq mod q
+            BigInteger s1 = m.modPow(dp, p);
+            BigInteger s2 = m.modPow(dq, q);
+            BigInteger h = qInv.multiply(s1.subtract(s2)).mod(p);
+            return s2.add(h.multiply(q));
+        }
+    }
+
+    /**
+     * Only ever run in the pool, never serialized; the fields are transient as Key is not serializable.
+     */
+    private static class SignTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Key[] keys;
+        private final transient List<byte[]> hashes;
+        private final transient BigInteger[] signatures;
+        private final int from;
+        private final int to;
+
+        private SignTask(Key[] keys, List<byte[]> hashes, BigInteger[] signatures, int from, int to) {
+            this.keys = keys;
+            this.hashes = hashes;
+            this.signatures = signatures;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= batchThreshold) {
+                for (int i = from; i < to; i++) {
+                    signatures[i] = keys[i].sign(new BigInteger(1, hashes.get(i)));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new SignTask(keys, hashes, signatures, from, middle),
+                    new SignTask(keys, hashes, signatures, middle, to));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.techprimers.grpc.fabric;
+
+import org.json.JSONObject;
+
+import java.math.BigInteger;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Queue in front of voteIdemix that absorbs bursts of ballots, such as the one when a poll closes. A dispatcher
+ * thread drains the queue in batches, signs a batch on the {@link BallotSigner} pool and submits its ballots
+ * under the voters' own Idemix identities, which are endorsed concurrently on the proposal pool. At most
+ * {@code maxInFlight} ballots wait for their commit; the dispatcher stops draining while that many do.
+ */
+public class BallotSubmitter implements AutoCloseable {
+    private static final int batchSize = 64;
+
+    private final FabricClient client;
+    private final BallotSigner signer;
+    private final BlockingQueue<Ballot> queue;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final Thread thread = new Thread(this::run, "voting-ballots");
+
+    private volatile boolean closed = false;
+
+    BallotSubmitter(FabricClient client, BallotSigner signer, int queueSize, int maxInFlight) {
+        this.client = client;
+        this.signer = signer;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue the voter's ballot. It is signed with the voter's key and submitted with the voter's Idemix identity.
+     *
+     * @return future of the voteIdemix transaction, failed right away when the queue is full
+     */
+    public CompletableFuture<TransactionResult> submit(AppUser voter, JSONObject ballot) {
+        Ballot pending = new Ballot(voter, ballot);
+        if (closed) {
+            pending.future.completeExceptionally(new RejectedExecutionException("ballot submitter is closed"));
+        } else if (!queue.offer(pending)) {
+            pending.future.completeExceptionally(new RejectedExecutionException("ballot queue is full"));
+        } else if (closed && queue.remove(pending)) {
+            // closed while it was being queued, after the queue was drained
+            pending.future.completeExceptionally(new RejectedExecutionException("ballot submitter is closed"));
+        }
+        return pending.future;
+    }
+
+    /**
+     * @return ballots waiting to be signed and submitted
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return ballots submitted and not yet committed or failed
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Ballot> left = new ArrayList<>();
+        queue.drainTo(left);
+        fail(left, 0, new RejectedExecutionException("ballot submitter is closed"));
+    }
+
+    private void run() {
+        List<Ballot> batch = new ArrayList<>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            batch.clear();
+            int sent = 0;
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                sign(batch);
+                for (; sent < batch.size(); sent++) {
+                    Ballot ballot = batch.get(sent);
+                    if (!ballot.future.isDone()) {
+                        inFlight.acquire();
+                        send(ballot);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(batch, sent, new RejectedExecutionException("ballot submitter is closed"));
+            } catch (RuntimeException e) {
+                fail(batch, sent, e);
+            }
+        }
+    }
+
+    /**
+     * Sign the ballots of a batch in one parallel pass; a ballot whose voter keys cannot be loaded fails alone.
+     */
+    private void sign(List<Ballot> batch) {
+        List<Ballot> signing = new ArrayList<>(batch.size());
+        List<RSAPrivateKey> privKeys = new ArrayList<>(batch.size());
+        List<byte[]> hashes = new ArrayList<>(batch.size());
+        for (Ballot ballot : batch) {
+            String name = ballot.voter.getName();
+            try {
+                RSAPrivateKey privKey = Storage.getPrivKey(name);
+                byte[] hash = Storage.getPubKeyHash(name);
+                ballot.ballot.put("key", Base64.getEncoder().encodeToString(Storage.getPubKey(name).getEncoded()));
+                privKeys.add(privKey);
+                hashes.add(hash);
+                signing.add(ballot);
+            } catch (Exception e) {
+                ballot.future.completeExceptionally(e);
+            }
+        }
+
+        List<BigInteger> signatures = signer.signEach(privKeys, hashes);
+        for (int i = 0; i < signing.size(); i++) {
+            signing.get(i).ballot.put("signedKey", signatures.get(i).toString(10));
+        }
+    }
+
+    private void send(Ballot ballot) {
+        CompletableFuture<TransactionResult> future;
+        try {
+            future = client.submitTransaction(ballot.voter, true, "voteIdemix", ballot.ballot.toString());
+        } catch (RuntimeException e) {
+            inFlight.release();
+            ballot.future.completeExceptionally(e);
+            return;
+        }
+        future.whenComplete((result, error) -> {
+            inFlight.release();
+            if (error != null) {
+                ballot.future.completeExceptionally(error);
+            } else {
+                ballot.future.complete(result);
+            }
+        });
+    }
+
+    private static void fail(List<Ballot> ballots, int from, Exception error) {
+        for (Ballot ballot : ballots.subList(from, ballots.size())) {
+            ballot.future.completeExceptionally(error);
+        }
+    }
+
+    private static class Ballot {
+        private final AppUser voter;
+        private final JSONObject ballot;
+        private final CompletableFuture<TransactionResult> future = new CompletableFuture<>();
+
+        private Ballot(AppUser voter, JSONObject ballot) {
+            this.voter = voter;
+            this.ballot = ballot;
+        }
+    }
+}
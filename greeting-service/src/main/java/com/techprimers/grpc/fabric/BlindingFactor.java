@@ -0,0 +1,51 @@
+package com.techprimers.grpc.fabric;
+
+import java.math.BigInteger;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Random;
+
+/**
+ * Blinding factor R of one voting key with R^e mod N and R^-1 mod N computed ahead of use.
+ */
+public class BlindingFactor {
+    private final BigInteger r;
+    private final BigInteger encrypted;
+    private final BigInteger inverse;
+
+    private BlindingFactor(BigInteger r, BigInteger encrypted, BigInteger inverse) {
+        this.r = r;
+        this.encrypted = encrypted;
+        this.inverse = inverse;
+    }
+
+    /**
+     * @param random a CSPRNG, R is drawn uniformly from the units of Z_N
+     */
+    public static BlindingFactor create(RSAPublicKey pubKey, Random random) {
+        BigInteger n = pubKey.getModulus();
+        BigInteger r;
+        do {
+            r = new BigInteger(n.bitLength(), random);
+        } while (r.compareTo(BigInteger.ONE) <= 0 || r.compareTo(n) >= 0 || !r.gcd(n).equals(BigInteger.ONE));
+
+        return new BlindingFactor(r, r.modPow(pubKey.getPublicExponent(), n), r.modInverse(n));
+    }
+
+    public BigInteger getR() {
+        return r;
+    }
+
+    /**
+     * @return R^e mod N
+     */
+    public BigInteger getEncrypted() {
+        return encrypted;
+    }
+
+    /**
+     * @return R^-1 mod N
+     */
+    public BigInteger getInverse() {
+        return inverse;
+    }
+}
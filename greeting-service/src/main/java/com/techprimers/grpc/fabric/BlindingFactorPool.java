@@ -0,0 +1,117 @@
+package com.techprimers.grpc.fabric;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pools of {@link BlindingFactor}s for the voting keys registrations were made against, so the
+ * exponentiation and inversion of a blind signature request happen on a background thread instead of the
+ * request path. A key gets a pool on its first registration, which computes its factor inline; pools of the
+ * least recently used keys are dropped beyond {@value #maxKeys} keys.
+ */
+class BlindingFactorPool {
+    private static final Logger log = LoggerFactory.getLogger(BlindingFactorPool.class);
+    private static final int maxKeys = 16;
+
+    private final int size;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<RSAPublicKey, Pool> pools = new LinkedHashMap<>(16, 0.75f, true);
+    private final ExecutorService refiller;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    BlindingFactorPool(int size) {
+        this.size = size;
+        this.refiller = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "voting-blinding");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * @return an unused blinding factor of the key, computed inline when its pool ran dry
+     */
+    BlindingFactor take(RSAPublicKey votingPubKey) {
+        if (size <= 0) {
+            misses.increment();
+            return BlindingFactor.create(votingPubKey, random);
+        }
+
+        Pool pool;
+        synchronized (pools) {
+            pool = pools.computeIfAbsent(votingPubKey, key -> new Pool(key, size));
+            while (pools.size() > maxKeys) {
+                pools.remove(pools.keySet().iterator().next());
+            }
+        }
+
+        BlindingFactor factor = pool.factors.poll();
+        if (factor == null) {
+            misses.increment();
+            factor = BlindingFactor.create(votingPubKey, random);
+        } else {
+            hits.increment();
+        }
+        pool.refill();
+        return factor;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    void close() {
+        refiller.shutdownNow();
+    }
+
+    private class Pool {
+        private final RSAPublicKey key;
+        private final BlockingQueue<BlindingFactor> factors;
+        private final AtomicBoolean refilling = new AtomicBoolean();
+
+        private Pool(RSAPublicKey key, int size) {
+            this.key = key;
+            this.factors = new ArrayBlockingQueue<>(size);
+        }
+
+        private void refill() {
+            if (!refilling.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                refiller.execute(() -> {
+                    try {
+                        while (factors.remainingCapacity() > 0 && !Thread.currentThread().isInterrupted()) {
+                            factors.offer(BlindingFactor.create(key, random));
+                        }
+                    } catch (RuntimeException e) {
+                        log.warn("Cannot precompute blinding factors: {}", e.getMessage());
+                    } finally {
+                        refilling.set(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // rejected after close
+                refilling.set(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.techprimers.grpc.fabric;
+
+import org.hyperledger.fabric.protos.common.Common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only archive of the raw blocks of a channel, read back with {@link BlockArchiveReader}.
+ * <p>
+ * Blocks go into segment files named after their first block number. A record is the length of the block,
+ * its number and the serialized block. Every {@value #indexInterval}th block of a segment gets an entry of
+ * block number and offset in the segment's sparse index file. A segment is closed once it reaches the segment
+ * size, or before a record would take it past {@value #MAX_SEGMENT_BYTES} bytes, which is as far as the reader can
+ * map it. Opening the archive cuts off a record left incomplete by a crash.
+ */
+public class BlockArchive implements BlockSink, Closeable {
+    static final String SEGMENT_SUFFIX = ".blocks";
+    static final String INDEX_SUFFIX = ".idx";
+    static final int RECORD_HEADER = 12;
+    static final int INDEX_ENTRY = 16;
+    static final int indexInterval = 64;
+    static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+    private final File dir;
+    private final long segmentBytes;
+
+    private FileChannel data;
+    private FileChannel index;
+    private long segmentFirst;
+    private long next;
+
+    BlockArchive(File dir, long segmentBytes) {
+        if (segmentBytes <= 0 || segmentBytes >= MAX_SEGMENT_BYTES) {
+            throw new IllegalArgumentException("archive segment size must be positive and below 2GB");
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Open the last segment for appending, or start the archive at block 0.
+     */
+    synchronized void open() throws IOException {
+        List<Long> segments = segments(dir);
+        if (segments.isEmpty()) {
+            openSegment(0);
+            next = 0;
+            return;
+        }
+
+        openSegment(segments.get(segments.size() - 1));
+        recover();
+    }
+
+    /**
+     * @return number of the next block to append, which is the archived height
+     */
+    public synchronized long getNextBlock() {
+        return next;
+    }
+
+    @Override
+    public void accept(ScannedBlock block) throws Exception {
+        if (block.getBlock() == null) {
+            throw new IllegalArgumentException("headers only scans cannot be archived");
+        }
+        append(block.getBlock().getBlock());
+    }
+
+    synchronized void append(Common.Block block) throws IOException {
+        long number = block.getHeader().getNumber();
+        if (number != next) {
+            throw new IllegalArgumentException("expected block " + next + " but got " + number);
+        }
+        byte[] bytes = block.toByteArray();
+        if (data.size() >= segmentBytes
+                || (data.size() > 0 && data.size() + RECORD_HEADER + bytes.length > MAX_SEGMENT_BYTES)) {
+            flush();
+            data.close();
+            index.close();
+            openSegment(number);
+        }
+
+        long offset = data.size();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + bytes.length);
+        record.putInt(bytes.length).putLong(number).put(bytes).flip();
+        write(data, record);
+        if ((number - segmentFirst) % indexInterval == 0) {
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+            entry.putLong(number).putLong(offset).flip();
+            write(index, entry);
+        }
+        next = number + 1;
+    }
+
+    /**
+     * Force the open segment and its index to disk.
+     */
+    synchronized void flush() throws IOException {
+        data.force(false);
+        index.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (data != null) {
+            flush();
+            data.close();
+            index.close();
+            data = null;
+        }
+    }
+
+    /**
+     * Walk the last segment from its last index entry, cut off an incomplete record and index entries that
+     * point past the data.
+     */
+    private void recover() throws IOException {
+        long size = data.size();
+        long indexSize = index.size() - index.size() % INDEX_ENTRY;
+        long pos = 0;
+        long indexed = -1;
+        next = segmentFirst;
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+        while (indexSize > 0) {
+            entry.clear();
+            index.read(entry, indexSize - INDEX_ENTRY);
+            entry.flip();
+            long number = entry.getLong();
+            long offset = entry.getLong();
+            if (offset < size) {
+                pos = offset;
+                indexed = offset;
+                next = number;
+                break;
+            }
+            indexSize -= INDEX_ENTRY;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        while (pos + RECORD_HEADER <= size) {
+            header.clear();
+            data.read(header, pos);
+            header.flip();
+            int length = header.getInt();
+            long number = header.getLong();
+            if (length < 0 || pos + RECORD_HEADER + length > size) {
+                break;
+            }
+            next = number + 1;
+            pos += RECORD_HEADER + length;
+        }
+        if (pos == indexed) {
+            // the indexed record itself was incomplete
+            indexSize -= INDEX_ENTRY;
+        }
+        index.truncate(indexSize);
+        data.truncate(pos);
+        data.position(pos);
+        index.position(indexSize);
+    }
+
+    private void openSegment(long first) throws IOException {
+        segmentFirst = first;
+        data = FileChannel.open(segmentFile(dir, first, SEGMENT_SUFFIX).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = FileChannel.open(segmentFile(dir, first, INDEX_SUFFIX).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        data.position(data.size());
+        index.position(index.size());
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static File segmentFile(File dir, long first, String suffix) {
+        return new File(dir, String.format("%020d%s", first, suffix));
+    }
+
+    /**
+     * @return first block numbers of the segments in the directory, ascending
+     */
+    static List<Long> segments(File dir) {
+        List<Long> segments = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+}
@@ -0,0 +1,181 @@
+package com.techprimers.grpc.fabric;
+
+import com.google.protobuf.CodedInputStream;
+import org.hyperledger.fabric.protos.common.Common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads a {@link BlockArchive} through memory mapped segments, so replays and analytics re-read history from
+ * the page cache instead of asking the peers again. The reader sees the blocks archived when it was opened and
+ * may be used from several threads.
+ */
+public class BlockArchiveReader implements Closeable {
+    /**
+     * Gets the blocks of {@link #forEach} in block order.
+     */
+    public interface Visitor {
+        void visit(Common.Block block) throws Exception;
+    }
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final long next;
+
+    BlockArchiveReader(File dir) throws IOException {
+        long height = 0;
+        for (long first : BlockArchive.segments(dir)) {
+            Segment segment = new Segment(dir, first);
+            if (segment.next > first) {
+                segments.put(first, segment);
+                height = segment.next;
+            }
+        }
+        this.next = height;
+    }
+
+    /**
+     * @return number of the first archived block, which equals {@link #getNextBlock} when the archive is empty
+     */
+    public long getFirstBlock() {
+        return segments.isEmpty() ? next : segments.firstKey();
+    }
+
+    /**
+     * @return number of the block after the last archived one
+     */
+    public long getNextBlock() {
+        return next;
+    }
+
+    /**
+     * @return the block or null if it is not in the archive
+     */
+    public Common.Block read(long number) throws IOException {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(number);
+        if (entry == null || number >= entry.getValue().next) {
+            return null;
+        }
+        Segment segment = entry.getValue();
+        return segment.parse(segment.find(number));
+    }
+
+    /**
+     * Visit blocks [from, to) that are in the archive, walking each segment sequentially.
+     */
+    public void forEach(long from, long to, Visitor visitor) throws Exception {
+        long number = Math.max(from, getFirstBlock());
+        while (number < Math.min(to, next)) {
+            Segment segment = segments.floorEntry(number).getValue();
+            int pos = segment.find(number);
+            while (number < Math.min(to, segment.next)) {
+                visitor.visit(segment.parse(pos));
+                pos += BlockArchive.RECORD_HEADER + segment.data.getInt(pos);
+                number++;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // mappings are released with the buffers
+        segments.clear();
+    }
+
+    private static class Segment {
+        private final MappedByteBuffer data;
+        private final long[] numbers;
+        private final int[] offsets;
+        private final long next;
+
+        private Segment(File dir, long first) throws IOException {
+            try (FileChannel dataChannel = FileChannel.open(
+                    BlockArchive.segmentFile(dir, first, BlockArchive.SEGMENT_SUFFIX).toPath(), StandardOpenOption.READ)) {
+                data = dataChannel.map(FileChannel.MapMode.READ_ONLY, 0, dataChannel.size());
+            }
+
+            File indexFile = BlockArchive.segmentFile(dir, first, BlockArchive.INDEX_SUFFIX);
+            int entries = 0;
+            long[] numbers = new long[0];
+            int[] offsets = new int[0];
+            if (indexFile.isFile()) {
+                try (FileChannel indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                    ByteBuffer index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+                    numbers = new long[index.remaining() / BlockArchive.INDEX_ENTRY];
+                    offsets = new int[numbers.length];
+                    while (entries < numbers.length) {
+                        long number = index.getLong();
+                        long offset = index.getLong();
+                        if (offset >= data.limit()) {
+                            break;
+                        }
+                        numbers[entries] = number;
+                        offsets[entries] = (int) offset;
+                        entries++;
+                    }
+                }
+            }
+            if (entries == 0) {
+                numbers = new long[]{first};
+                offsets = new int[]{0};
+                entries = 1;
+            }
+            this.numbers = Arrays.copyOf(numbers, entries);
+            this.offsets = Arrays.copyOf(offsets, entries);
+            this.next = scanEnd(first);
+        }
+
+        /**
+         * @return number after the last complete record, walking from the last index entry
+         */
+        private long scanEnd(long first) {
+            int last = numbers.length - 1;
+            long number = offsets[last] < data.limit() ? numbers[last] : first;
+            int pos = offsets[last] < data.limit() ? offsets[last] : 0;
+            while (pos + BlockArchive.RECORD_HEADER <= data.limit()) {
+                int length = data.getInt(pos);
+                if (length < 0 || pos + BlockArchive.RECORD_HEADER + length > data.limit()) {
+                    break;
+                }
+                number = data.getLong(pos + 4) + 1;
+                pos += BlockArchive.RECORD_HEADER + length;
+            }
+            return number;
+        }
+
+        /**
+         * @return offset of the block's record, found from the closest index entry before it
+         */
+        private int find(long number) throws IOException {
+            int i = Arrays.binarySearch(numbers, number);
+            if (i < 0) {
+                i = -i - 2;
+            }
+            int pos = offsets[Math.max(0, i)];
+            while (pos + BlockArchive.RECORD_HEADER <= data.limit()) {
+                if (data.getLong(pos + 4) == number) {
+                    return pos;
+                }
+                pos += BlockArchive.RECORD_HEADER + data.getInt(pos);
+            }
+            throw new IOException("block " + number + " is missing from its archive segment");
+        }
+
+        private Common.Block parse(int pos) throws IOException {
+            ByteBuffer record = data.duplicate();
+            record.position(pos + BlockArchive.RECORD_HEADER);
+            record.limit(pos + BlockArchive.RECORD_HEADER + data.getInt(pos));
+            CodedInputStream in = CodedInputStream.newInstance(record.slice());
+            in.setSizeLimit(Integer.MAX_VALUE);
+            return Common.Block.parseFrom(in);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.techprimers.grpc.fabric;
+
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.HFClient;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.SDKUtils;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a range of blocks with {@code parallelism} concurrent qscc queries spread over the given peers, up to
+ * {@code prefetch} blocks ahead of the sink, and hands them to the sink in block order. A block a peer fails to
+ * return is asked from the next peer.
+ */
+public class BlockScanner {
+    private final HFClient client;
+    private final Channel channel;
+    private final List<Peer> peers;
+    private final int parallelism;
+    private final int prefetch;
+    private final boolean headersOnly;
+
+    /**
+     * @param headersOnly only pass on numbers and hashes, the envelopes are not decoded
+     */
+    public BlockScanner(HFClient client, Channel channel, List<Peer> peers, int parallelism, int prefetch,
+                        boolean headersOnly) {
+        if (peers.isEmpty()) {
+            throw new IllegalArgumentException("no peer to scan blocks from");
+        }
+        this.client = client;
+        this.channel = channel;
+        this.peers = peers;
+        this.parallelism = Math.max(1, parallelism);
+        this.prefetch = Math.max(this.parallelism, prefetch);
+        this.headersOnly = headersOnly;
+    }
+
+    /**
+     * Scan blocks [from, to).
+     *
+     * @return number of blocks passed to the sink
+     */
+    public long scan(long from, long to, BlockSink sink) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "fabric-block-scan");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayDeque<Future<ScannedBlock>> window = new ArrayDeque<>(prefetch);
+        long next = from;
+        long scanned = 0;
+        try {
+            while (next < to && window.size() < prefetch) {
+                window.add(submit(pool, next++));
+            }
+            while (!window.isEmpty()) {
+                ScannedBlock block = get(window.poll());
+                if (next < to) {
+                    window.add(submit(pool, next++));
+                }
+                sink.accept(block);
+                scanned++;
+            }
+            return scanned;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Future<ScannedBlock> submit(ExecutorService pool, long number) {
+        return pool.submit(() -> fetch(number));
+    }
+
+    private ScannedBlock fetch(long number) throws Exception {
+        Exception failure = null;
+        int first = (int) (number % peers.size());
+        for (int i = 0; i < peers.size(); i++) {
+            Peer peer = peers.get((first + i) % peers.size());
+            try {
+                BlockInfo block = channel.queryBlockByNumber(peer, number);
+                byte[] previousHash = block.getPreviousHash();
+                byte[] dataHash = block.getDataHash();
+                byte[] hash = SDKUtils.calculateBlockHash(client, block.getBlockNumber(), previousHash, dataHash);
+                return new ScannedBlock(block.getBlockNumber(), previousHash, dataHash, hash, peer.getName(),
+                        headersOnly ? null : block);
+            } catch (Exception e) {
+                if (failure != null) {
+                    e.addSuppressed(failure);
+                }
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    private static ScannedBlock get(Future<ScannedBlock> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+}
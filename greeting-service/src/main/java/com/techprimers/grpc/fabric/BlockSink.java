@@ -0,0 +1,8 @@
+package com.techprimers.grpc.fabric;
+
+/**
+ * Receives the blocks of a {@link BlockScanner} scan in block order, from the scanning thread.
+ */
+public interface BlockSink {
+    void accept(ScannedBlock block) throws Exception;
+}
@@ -0,0 +1,94 @@
+package com.techprimers.grpc.fabric;
+
+import org.apache.commons.codec.binary.Hex;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.HFClient;
+import org.hyperledger.fabric.sdk.NetworkConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Builds the channel of every pooled client from one shared snapshot. The first channel is loaded from
+ * the network config; once initialized it is serialized and kept in memory and on disk, so later clients
+ * and a restarted service rehydrate it with {@link HFClient#deSerializeChannel(byte[])} instead of
+ * parsing the network config and rebuilding peers and orderers. Every client still initializes its channel.
+ * <p>
+ * The snapshot on disk is named after the channel and a hash of the network config file, so a service pointed
+ * at another network does not rehydrate the peers and orderers of the previous one. Without a readable config
+ * file the snapshot is only kept in memory.
+ */
+class ChannelRegistry {
+    private static final Logger log = LoggerFactory.getLogger(ChannelRegistry.class);
+
+    private final NetworkConfig config;
+    private final String channelName;
+    private final String snapshotName;
+    private volatile byte[] snapshot;
+
+    ChannelRegistry(NetworkConfig config, File configFile, String channelName) {
+        this.config = config;
+        this.channelName = channelName;
+        this.snapshotName = getSnapshotName(configFile, channelName);
+        if (snapshotName == null) {
+            return;
+        }
+        try {
+            this.snapshot = Storage.loadChannel(snapshotName);
+        } catch (Exception e) {
+            log.warn("Ignoring unreadable channel snapshot: {}", e.getMessage());
+        }
+    }
+
+    Channel getChannel(HFClient client) throws Exception {
+        byte[] current = snapshot;
+        if (current != null) {
+            try {
+                return client.deSerializeChannel(current).initialize();
+            } catch (Exception e) {
+                // stale or incompatible snapshot, rebuild it from the network config
+                log.warn("Discarding channel snapshot: {}", e.getMessage());
+                Channel stale = client.getChannel(channelName);
+                if (stale != null) {
+                    stale.shutdown(true);
+                }
+                snapshot = null;
+            }
+        }
+
+        Channel channel = client.loadChannelFromConfig(channelName, config);
+        channel.initialize();
+        saveSnapshot(channel);
+        return channel;
+    }
+
+    private void saveSnapshot(Channel channel) {
+        try {
+            byte[] bytes = channel.serializeChannel();
+            snapshot = bytes;
+            if (snapshotName != null) {
+                Storage.saveChannel(snapshotName, bytes);
+            }
+        } catch (Exception e) {
+            log.warn("Cannot save channel snapshot: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @return channel name and the first bytes of the config file's SHA-256, null when the file cannot be read
+     */
+    private static String getSnapshotName(File configFile, String channelName) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(configFile.toPath()));
+            return channelName + "-" + Hex.encodeHexString(Arrays.copyOf(digest, 8));
+        } catch (Exception e) {
+            log.warn("Not persisting the channel snapshot, cannot read network config {}: {}", configFile,
+                    e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.techprimers.grpc.fabric;
+
+/**
+ * How long {@link FabricClient#submitTransaction} waits before it completes.
+ */
+public enum CommitPolicy {
+    /** the orderer accepted the transaction, no commit event is awaited */
+    ORDERED,
+    /** the first peer of the client organization reported the commit */
+    FIRST_PEER,
+    /** a majority of the channel's event sources reported the commit */
+    QUORUM,
+    /** every event source of the channel reported the commit */
+    ALL
+}
@@ -1,76 +1,148 @@
 package com.techprimers.grpc.fabric;
 
-import org.apache.commons.codec.binary.Hex;
-import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import org.hyperledger.fabric.protos.peer.FabricProposal;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse;
 import org.hyperledger.fabric.sdk.BlockEvent.TransactionEvent;
 import org.hyperledger.fabric.sdk.*;
-import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
 import org.hyperledger.fabric.sdk.exception.InvalidProtocolBufferRuntimeException;
-import org.hyperledger.fabric.sdk.exception.NetworkConfigurationException;
-import org.hyperledger.fabric.sdk.exception.TransactionException;
 import org.hyperledger.fabric.sdk.security.CryptoSuite;
 import org.hyperledger.fabric_ca.sdk.Attribute;
 import org.hyperledger.fabric_ca.sdk.HFCAClient;
 import org.hyperledger.fabric_ca.sdk.RegistrationRequest;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.KeyFactory;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
-import static java.nio.charset.StandardCharsets.UTF_8;
-import static org.hyperledger.fabric.sdk.BlockInfo.EnvelopeType.TRANSACTION_ENVELOPE;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class FabricClient {
+    private static final Logger log = LoggerFactory.getLogger(FabricClient.class);
     private static final String channelName = "mychannel";
     private static final String chaincodeName = "fabcar";
     private static final String mspIdemix = "idemixMSPID1";
+    private static final int proposalThreads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
 
     private final NetworkConfig config;
     private final HFCAClient caClient;
-
-    private HFClient client = null;
-    private HFClient clientIdemix = null;
+    private final ExecutorService proposalExecutor;
+    private final HFClientPool clients;
+    private final ChannelRegistry channels;
+    private final IdemixCredentialCache idemixCredentials;
+    private final QueryCache queryCache;
+    private final CommitPolicy defaultCommitPolicy;
+    private final int scanParallelism;
+    private final int scanPrefetch;
+    private final LedgerIndexer indexer;
+    private final long archiveSegmentBytes;
+    private final BlindingFactorPool blindingFactors;
+    private final BallotSigner ballotSigner;
+    private final BallotSubmitter ballotSubmitter;
+    private final PeerSelector peerSelector;
+    private final int endorsingPeers;
+    private final int queryPeers;
+    private final double queryCheckRate;
+    private final Set<String> clientPeerNames;
+    private final Map<Channel, List<Peer>> clientPeers = Collections.synchronizedMap(new WeakHashMap<>());
 
     public FabricClient(NetworkConfig config) {
+        this(config, new FabricProperties());
+    }
+
+    public FabricClient(NetworkConfig config, FabricProperties properties) {
         this.config = config;
+        this.clients = new HFClientPool(channelName, properties.getClientPoolSize());
+        this.channels = new ChannelRegistry(config, new File(properties.getNetworkConfig()), channelName);
         NetworkConfig.CAInfo info = config.getClientOrganization().getCertificateAuthorities().get(0);
         this.caClient = this.getHfCaClient(info.getUrl(), info.getProperties());
+        // a pooled Idemix client keeps the credential it was built with, rebuild it when that changes
+        this.idemixCredentials = new IdemixCredentialCache(caClient, mspIdemix, properties.getIdemixTtl(),
+                properties.getIdemixSpillKey(), appUser -> clients.evict(getIdentity(appUser, true)));
+        this.defaultCommitPolicy = properties.getCommitPolicy();
+        this.scanParallelism = properties.getScanParallelism();
+        this.scanPrefetch = properties.getScanPrefetch();
+        this.archiveSegmentBytes = properties.getArchiveSegmentSize().toBytes();
+        this.blindingFactors = new BlindingFactorPool(properties.getBlindingPoolSize());
+        FabricMetrics.bindBlindingFactors(blindingFactors);
+        this.ballotSigner = new BallotSigner(properties.getSigningParallelism());
+        this.ballotSubmitter = new BallotSubmitter(this, ballotSigner, properties.getBallotQueueSize(),
+                properties.getBallotsInFlight());
+        FabricMetrics.bindBallotSubmitter(ballotSubmitter);
+        this.peerSelector = new PeerSelector(properties.isHedgeProposals(), 2 * proposalThreads);
+        FabricMetrics.bindPeerSelector(peerSelector);
+        this.endorsingPeers = properties.getEndorsingPeers();
+        this.queryPeers = properties.getQueryPeers();
+        this.queryCheckRate = properties.getQueryCheckRate();
+        this.clientPeerNames = new HashSet<>(config.getClientOrganization().getPeerNames());
+        this.indexer = properties.isIndexEnabled()
+                ? new LedgerIndexer(this, new LedgerIndex(channelName), properties.getIndexPollInterval())
+                : null;
+        if (indexer != null) {
+            FabricMetrics.bindLedgerIndex(indexer.getIndex());
+        }
+        this.queryCache = new QueryCache(chaincodeName, properties.getQueryCacheSize(),
+                properties.getQueryCacheInvalidation());
+        if (queryCache.isEnabled()) {
+            FabricMetrics.bindQueryCache(queryCache);
+        }
+        this.proposalExecutor = Executors.newFixedThreadPool(proposalThreads, runnable -> {
+            Thread thread = new Thread(runnable, "fabric-proposal");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public String getAllCars(AppUser appUser, String votingId) throws Exception {
         return queryBlockChain(appUser, false, "queryAllCars", votingId);
     }
 
+    /**
+     * Query one page of cars in [startKey, endKey) with the chaincode's range pagination.
+     * The chaincode answers {"records":[{"Key":..., "Record":{...}}], "bookmark":...} and
+     * the bookmark is empty once the range is exhausted. Stock fabcar lacks the function, see the README.
+     */
+    public CompletableFuture<ByteString> getCarsPage(AppUser appUser, String startKey, String endKey, int pageSize,
+                                                     String bookmark) {
+        return queryBlockChainAsync(appUser, false, "queryAllCarsWithPagination",
+                startKey, endKey, Integer.toString(pageSize), bookmark);
+    }
+
 
     public void registerUserInVotingIdemix(AppUser appUser, JSONObject voting) throws Exception {
 
         BigInteger signedKey = getBlindSignature(appUser, voting);// create a signature for voting
         Storage.saveSignedKey(appUser.getName(), signedKey);
 
-        invokeRegistration(appUser, voting.getString("id"), signedKey, Storage.getPubKey(appUser.getName()));
+        await(submitRegistration(appUser, voting.getString("id"), signedKey));
     }
 
     public String voteIdemix(AppUser appUser, JSONObject ballot) throws Exception {
-        RSAPublicKey myPubKey = Storage.getPubKey(appUser.getName());
-        RSAPrivateKey myPrivKey = Storage.getPrivKey(appUser.getName());
-
-        byte[] myHash = getHashOfPubKey(myPubKey);
-        BigInteger hashB = new BigInteger(1, myHash);
-        BigInteger encrHash = hashB.modPow(myPrivKey.getPrivateExponent(), myPrivKey.getModulus());
+        ByteString response = await(submitBallot(appUser, ballot)).getPayload();
+        return response == null ? null : response.toStringUtf8();
+    }
 
-        String encodedPubKey = Base64.getEncoder().encodeToString(myPubKey.getEncoded());
-        ballot
-                .put("key", encodedPubKey)
-                .put("signedKey", encrHash.toString(10));
+    /**
+     * Queue the ballot for voteIdemix with the user's key and Idemix identity, see {@link BallotSubmitter}.
+     */
+    public CompletableFuture<TransactionResult> submitBallot(AppUser appUser, JSONObject ballot) {
+        return ballotSubmitter.submit(appUser, ballot);
+    }
 
-        return invokeBlockChain(appUser, true, "voteIdemix", ballot.toString());
+    public BallotSigner getBallotSigner() {
+        return ballotSigner;
     }
 
     public String invokeInitLedeger(AppUser appUser) throws Exception {
@@ -78,75 +150,61 @@ public class FabricClient {
     }
 
     private BigInteger getBlindSignature(AppUser appUser, JSONObject voting) throws Exception {
-        RSAPublicKey myPubKey = Storage.getPubKey(appUser.getName());
-        KeyFactory kf = KeyFactory.getInstance("RSA");
-        X509EncodedKeySpec keySpecX509 = new X509EncodedKeySpec(Base64.getDecoder().decode(voting.getString("pubKey")));
-        RSAPublicKey votingPubKey = (RSAPublicKey) kf.generatePublic(keySpecX509);
-
-        BigInteger R = getRandom(8);
-        BigInteger RInv = R.modInverse(votingPubKey.getModulus());
-        String data = getDataForBlindSign(votingPubKey, myPubKey, R);// disguise data === m'
-
-        JSONObject userRegData = new JSONObject()
-                .put("userId", appUser.getName())
-                .put("votingId", voting.getString("id"))
-                .put("data", data);
+        byte[] myPubKeyHash = Storage.getPubKeyHash(appUser.getName());
+        RSAPublicKey votingPubKey = getVotingPubKey(voting);
 
-        BigInteger signedData = new BigInteger(// get s'
-                invokeBlockChain(appUser, false, "getBlindSign", userRegData.toString()));
-        BigInteger signedKey = signedData.multiply(RInv);// get s
+        BigInteger signedKey = await(requestBlindSignature(appUser, voting.getString("id"), votingPubKey, myPubKeyHash));
 
         // check
-        BigInteger myHashForCheck = signedKey.modPow(votingPubKey.getPublicExponent(), votingPubKey.getModulus());
-        byte[] myHash = getHashOfPubKey(myPubKey);
-        BigInteger hashB = new BigInteger(1, myHash);
-
-        if (hashB.compareTo(myHashForCheck) != 0) {
+        if (!VotingCrypto.verify(signedKey, votingPubKey, myPubKeyHash)) {
             throw new Exception("Hashs are not the same. blind signature is invalid");
         }
 
         return signedKey;
     }
 
-    private String invokeRegistration(AppUser appUser, String votingId, BigInteger signedKey, RSAPublicKey publicKey)
-            throws Exception {
-
-        String encodedPubKey = Base64.getEncoder().encodeToString(publicKey.getEncoded());
-        /** containing {votingID, userPubKey, userSignedKey} */
-        JSONObject userTallingData = new JSONObject().put("votingId", votingId).put("key", encodedPubKey)
-                .put("signedKey", signedKey.toString(10));
-        /** registering a composition key to connect voting and user */
-        return invokeBlockChain(appUser, true, "registerUserInVotingIdemix", userTallingData.toString());
+    public static RSAPublicKey getVotingPubKey(JSONObject voting) throws Exception {
+        KeyFactory kf = KeyFactory.getInstance("RSA");
+        X509EncodedKeySpec keySpecX509 = new X509EncodedKeySpec(Base64.getDecoder().decode(voting.getString("pubKey")));
+        return (RSAPublicKey) kf.generatePublic(keySpecX509);
     }
 
     /**
-     *
-     * @param pubKey
-     * @param myPubKey
-     * @param R
-     * @return return m' based on user public key
-     * @throws IOException
-     * @throws NoSuchAlgorithmException
+     * Have the voting key blind sign the hash of the user's public key. Nothing waits for the getBlindSign
+     * transaction, so many of these can be pipelined.
+     * @return future of the unblinded signature s, still to be verified
      */
-    private String getDataForBlindSign(RSAPublicKey pubKey, RSAPublicKey myPubKey, BigInteger R)
-            throws IOException, NoSuchAlgorithmException {
-        byte[] hash = getHashOfPubKey(myPubKey);
-        BigInteger REncr = R.modPow(pubKey.getPublicExponent(), pubKey.getModulus());// R^e mod N
-        BigInteger hashedKey = new BigInteger(1, hash);
-        BigInteger multNum = REncr.multiply(hashedKey);// hash(m)*blindFactor
+    public CompletableFuture<BigInteger> requestBlindSignature(AppUser appUser, String votingId,
+                                                               RSAPublicKey votingPubKey, byte[] myPubKeyHash) {
+        BlindingFactor R = blindingFactors.take(votingPubKey);
+        String data = VotingCrypto.getDataForBlindSign(myPubKeyHash, R);// disguise data === m'
 
-        return multNum.toString(10);
-    }
+        JSONObject userRegData = new JSONObject()
+                .put("userId", appUser.getName())
+                .put("votingId", votingId)
+                .put("data", data);
 
-    private byte[] getHashOfPubKey(RSAPublicKey pubKey) throws IOException, NoSuchAlgorithmException {
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        return digest.digest(pubKey.getEncoded());
+        return submitTransaction(appUser, false, "getBlindSign", userRegData.toString())
+                .thenApply(tx -> VotingCrypto.unblind(new BigInteger(tx.getPayload().toStringUtf8()), R));// s' to s
     }
 
-    private BigInteger getRandom(int numBytes) {
-        byte[] r = new byte[numBytes];
-        new Random().nextBytes(r);
-        return new BigInteger(1, r);
+    /**
+     * Register the user's public key with its verified signature s in the voting, as the user's Idemix identity.
+     */
+    public CompletableFuture<TransactionResult> submitRegistration(AppUser appUser, String votingId, BigInteger signedKey) {
+        String encodedPubKey;
+        try {
+            encodedPubKey = Base64.getEncoder().encodeToString(Storage.getPubKey(appUser.getName()).getEncoded());
+        } catch (Exception e) {
+            CompletableFuture<TransactionResult> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        /** containing {votingID, userPubKey, userSignedKey} */
+        JSONObject userTallingData = new JSONObject().put("votingId", votingId).put("key", encodedPubKey)
+                .put("signedKey", signedKey.toString(10));
+        /** registering a composition key to connect voting and user */
+        return submitTransaction(appUser, true, "registerUserInVotingIdemix", userTallingData.toString());
     }
 
     public HFCAClient getHfCaClient(String caUrl, Properties caClientProperties) {
@@ -207,25 +265,71 @@ public class FabricClient {
         return caClient.register(rr, registrar);
     }
 
-    private HFClient getHFClient(AppUser appUser, boolean isIdemix) throws Exception {
+    private HFClientPool.Lease getHFClient(AppUser appUser, boolean isIdemix) throws Exception {
         if (isIdemix) {
-            if (clientIdemix != null) {
-                if (clientIdemix.getUserContext().getName().equals(appUser.getName())
-                        && clientIdemix.getUserContext().getAffiliation().equals(appUser.getAffiliation())) {
-                    return clientIdemix;
-                }
-            }
-            clientIdemix = getClient(appUser, isIdemix);
-            return clientIdemix;
+            idemixCredentials.touch(appUser);
         }
+        return clients.acquire(getIdentity(appUser, isIdemix), () -> getClient(appUser, isIdemix));
+    }
 
-        if (client != null) {
-            if (client.getUserContext().getEnrollment().equals(appUser.getEnrollment())) {
-                return client;
-            }
+    private HFClientPool.Lease getHFClient(FabricMetrics.Call call, AppUser appUser, boolean isIdemix) throws Exception {
+        long started = System.nanoTime();
+        try {
+            HFClientPool.Lease lease = getHFClient(appUser, isIdemix);
+            call.record(FabricMetrics.CLIENT, started, true);
+            return lease;
+        } catch (Exception e) {
+            call.record(FabricMetrics.CLIENT, started, false);
+            throw e;
         }
-        client = getClient(appUser, isIdemix);
-        return client;
+    }
+
+    private static String getIdentity(AppUser appUser, boolean isIdemix) {
+        if (isIdemix) {
+            return appUser.getMspId() + "/" + appUser.getName() + "/" + appUser.getAffiliation() + "/idemix";
+        }
+
+        String cert = appUser.getEnrollment() == null ? null : appUser.getEnrollment().getCert();
+        return appUser.getMspId() + "/" + appUser.getName() + "/x509/" + (cert == null ? 0 : cert.hashCode());
+    }
+
+    /**
+     * Initialize the client and channel of the service identity ahead of the first request.
+     */
+    public void warmUp(AppUser appUser) throws Exception {
+        getHFClient(appUser, false).close();
+    }
+
+    /**
+     * Catch the ledger index up from its checkpoint and keep it current in the background, if it is enabled.
+     */
+    public void startIndexer(AppUser appUser) throws Exception {
+        if (indexer != null) {
+            indexer.start(appUser);
+        }
+    }
+
+    /**
+     * @return local index of the channel, null when indexing is disabled
+     */
+    public LedgerIndex getLedgerIndex() {
+        return indexer == null ? null : indexer.getIndex();
+    }
+
+    /**
+     * Shut down every pooled channel and the proposal pool.
+     */
+    public void shutdown() {
+        if (indexer != null) {
+            indexer.stop();
+        }
+        blindingFactors.close();
+        ballotSubmitter.close();
+        ballotSigner.close();
+        peerSelector.close();
+        clients.close();
+        idemixCredentials.close();
+        proposalExecutor.shutdown();
     }
 
     public HFClient getClient(AppUser appUser) throws Exception {
@@ -236,12 +340,21 @@ public class FabricClient {
         return client;
     }
 
-    private Channel getChannel(HFClient client) throws InvalidArgumentException, TransactionException, NetworkConfigurationException {
-        Channel channel = client.loadChannelFromConfig(channelName, config);
-        channel.initialize();
+    private Channel getChannel(HFClient client) throws Exception {
+        Channel channel = channels.getChannel(client);
+        if (queryCache.isEnabled()) {
+            channel.registerBlockListener(queryCache::onBlock);
+        }
+        if (indexer != null) {
+            channel.registerBlockListener(indexer::onBlock);
+        }
         return channel;
     }
 
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
     private HFClient getHfClient() throws Exception {
         CryptoSuite cryptoSuite = CryptoSuite.Factory.getCryptoSuite();
         HFClient client = HFClient.createNewInstance();
@@ -251,9 +364,7 @@ public class FabricClient {
 
     public HFClient getClient(AppUser appUser, boolean isIdemix) throws Exception {
         if (isIdemix) {
-            AppUser newAppUser = new AppUser(appUser.getName(), appUser.getAffiliation(), appUser.getMspId(),
-                    caClient.idemixEnroll(appUser.getEnrollment(), mspIdemix));
-            return getClient(newAppUser);
+            return getClient(getAppUserIdemix(appUser));
         }
 
         return getClient(appUser);
@@ -261,46 +372,211 @@ public class FabricClient {
 
     public AppUser getAppUserIdemix(AppUser appUser) throws Exception {
         AppUser newAppUser = new AppUser(appUser.getName(), appUser.getAffiliation(), appUser.getMspId(),
-                caClient.idemixEnroll(appUser.getEnrollment(), mspIdemix));
-        System.out.println(newAppUser.toString());
+                idemixCredentials.get(appUser));
+        log.debug("Idemix user {}", newAppUser);
         return newAppUser;
     }
 
     public String invokeBlockChain(AppUser appUser, boolean isIdemix, String function, String... args) throws Exception {
-        HFClient client = getHFClient(appUser, isIdemix);
-        Channel channel = client.getChannel(channelName);
+        ByteString response = await(invokeBlockChainAsync(appUser, isIdemix, function, args));
+        return response == null ? null : response.toStringUtf8();
+    }
+
+    /**
+     * Endorse a transaction on the proposal pool and complete once the commit event arrives,
+     * without parking any thread while the transaction is ordered and committed.
+     * @return future of the chaincode response payload
+     */
+    public CompletableFuture<ByteString> invokeBlockChainAsync(AppUser appUser, boolean isIdemix, String function,
+                                                               String... args) {
+        return submitTransaction(appUser, isIdemix, function, args).thenApply(TransactionResult::getPayload);
+    }
 
+    /**
+     * Same as {@link #invokeBlockChainAsync} but keeps the transaction id and block next to the payload.
+     */
+    public CompletableFuture<TransactionResult> submitTransaction(AppUser appUser, boolean isIdemix, String function,
+                                                                  String... args) {
+        return submitTransaction(appUser, isIdemix, null, function, args);
+    }
+
+    /**
+     * @param commitPolicy what to wait for before completing, the configured default when null
+     */
+    public CompletableFuture<TransactionResult> submitTransaction(AppUser appUser, boolean isIdemix,
+                                                                  CommitPolicy commitPolicy, String function,
+                                                                  String... args) {
+        CommitPolicy policy = commitPolicy == null ? defaultCommitPolicy : commitPolicy;
+        FabricMetrics.Call call = FabricMetrics.call(function);
+        return supplyAsync(() -> endorse(call, appUser, isIdemix, function, args))
+                .thenCompose(endorsement -> commit(call, endorsement, policy))
+                .whenComplete((result, error) -> call.recordTotal(error == null));
+    }
+
+    private CompletableFuture<TransactionResult> commit(FabricMetrics.Call call, Endorsement endorsement,
+                                                        CommitPolicy policy) {
+        Channel channel = endorsement.channel;
+        CompletableFuture<TransactionEvent> future;
+        long started = System.nanoTime();
+        try {
+            future = channel.sendTransaction(endorsement.responses,
+                    Channel.TransactionOptions.createTransactionOptions().nOfEvents(getCommitEvents(channel, policy)));
+            call.record(FabricMetrics.ORDER, started, true);
+        } catch (Exception e) {
+            call.record(FabricMetrics.ORDER, started, false);
+            CompletableFuture<TransactionEvent> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            future = failed;
+        }
+
+        long ordered = System.nanoTime();
+        return future.whenComplete((result, error) -> {
+                    endorsement.lease.close();
+                    call.record(FabricMetrics.COMMIT, ordered, error == null);
+                    if (error == null && queryCache.isEnabled()) {
+                        BlockEvent blockEvent = result == null ? null : result.getBlockEvent();
+                        queryCache.committed(endorsement.responses, blockEvent == null ? null : QueryCache.sourceOf(blockEvent),
+                                blockEvent == null ? -1 : blockEvent.getBlockNumber());
+                    }
+                })
+                .thenApply(result -> new TransactionResult(endorsement.txId, endorsement.payload,
+                        result == null ? -1 : result.getBlockEvent().getBlockNumber(), result != null));
+    }
+
+    private Channel.NOfEvents getCommitEvents(Channel channel, CommitPolicy policy) throws Exception {
+        if (policy == CommitPolicy.ORDERED) {
+            return Channel.NOfEvents.createNoEvents();
+        }
+
+        Collection<Peer> sources = channel.getPeers(EnumSet.of(Peer.PeerRole.EVENT_SOURCE));
+        Collection<EventHub> eventHubs = channel.getEventHubs();
+        if (policy == CommitPolicy.FIRST_PEER) {
+            // only the client org's own peers, so another org cannot satisfy N=1
+            List<Peer> orgSources = new ArrayList<>(getClientPeers(channel));
+            orgSources.retainAll(sources);
+            List<EventHub> orgEventHubs = new ArrayList<>();
+            for (EventHub eventHub : eventHubs) {
+                // the network config names a peer's event hub after the peer
+                if (clientPeerNames.contains(eventHub.getName())) {
+                    orgEventHubs.add(eventHub);
+                }
+            }
+            if (orgSources.isEmpty() && orgEventHubs.isEmpty()) {
+                throw new Exception("Not found any client org event source to wait for commit");
+            }
+            return addSources(Channel.NOfEvents.createNofEvents().setN(1), orgEventHubs, orgSources);
+        }
+
+        int total = sources.size() + eventHubs.size();
+        if (total == 0) {
+            throw new Exception("Not found any event source to wait for commit");
+        }
+        return addSources(Channel.NOfEvents.createNofEvents().setN(policy == CommitPolicy.QUORUM ? total / 2 + 1 : total),
+                eventHubs, sources);
+    }
+
+    /**
+     * The SDK rejects empty collections, peers that deliver events themselves come without event hubs.
+     */
+    private static Channel.NOfEvents addSources(Channel.NOfEvents events, Collection<EventHub> eventHubs,
+                                                Collection<Peer> peers) throws Exception {
+        if (!eventHubs.isEmpty()) {
+            events.addEventHubs(eventHubs);
+        }
+        if (!peers.isEmpty()) {
+            events.addPeers(peers);
+        }
+        return events;
+    }
+
+    private Endorsement endorse(FabricMetrics.Call call, AppUser appUser, boolean isIdemix, String function,
+                                String... args) throws Exception {
+        HFClientPool.Lease lease = getHFClient(call, appUser, isIdemix);
+        try {
+            HFClient client = lease.getClient();
+            Channel channel = client.getChannel(channelName);
+
+            long started = System.nanoTime();
+            Collection<ProposalResponse> resps;
+            try {
+                resps = peerSelector.send(getClientPeers(channel), endorsingPeers, FabricMetrics.ENDORSE,
+                        peers -> channel.sendTransactionProposal(newProposal(client, function, args), peers));
+            } catch (Exception e) {
+                call.record(FabricMetrics.ENDORSE, started, false);
+                throw e;
+            }
+            call.record(FabricMetrics.ENDORSE, started, true);
+            ByteString response = handlePorposalResponses(call, resps);
+
+            return new Endorsement(lease, channel, resps, resps.iterator().next().getTransactionID(), response);
+        } catch (Exception e) {
+            lease.close();
+            throw e;
+        }
+    }
+
+    /**
+     * A hedged proposal needs a new request, the SDK refuses to send one twice.
+     */
+    private static TransactionProposalRequest newProposal(HFClient client, String function, String... args) {
         TransactionProposalRequest tpr = client.newTransactionProposalRequest();
         ChaincodeID chaincodeID = ChaincodeID.newBuilder().setName(chaincodeName).build();
         tpr.setChaincodeID(chaincodeID);
         tpr.setFcn(function);
         tpr.setArgs(args);
+        return tpr;
+    }
 
+    private static QueryByChaincodeRequest newQuery(HFClient client, String function, String... args) {
+        QueryByChaincodeRequest qpr = client.newQueryProposalRequest();
+        ChaincodeID chaincodeID = ChaincodeID.newBuilder().setName(chaincodeName).build();
+        qpr.setChaincodeID(chaincodeID);
+        qpr.setFcn(function);
+        qpr.setArgs(args);
+        return qpr;
+    }
 
+    /**
+     * Count whether the peers that answered a sampled query agree, a mismatch still fails the query.
+     */
+    private static void checkConsistency(FabricMetrics.Call call, String function,
+                                         Collection<ProposalResponse> presps) throws Exception {
+        ByteString first = null;
+        int compared = 0;
+        boolean consistent = true;
+        for (ProposalResponse pres : presps) {
+            if (pres.getStatus() != ProposalResponse.Status.SUCCESS) {
+                continue;
+            }
+            ByteString payload = getPayload(pres);
+            if (compared++ == 0) {
+                first = payload;
+            } else if (!first.equals(payload)) {
+                consistent = false;
+            }
+        }
+        if (compared < 2) {
+            return;
+        }
 
-        Collection<ProposalResponse> resps = channel.sendTransactionProposal(tpr, getClientPeers(channel));
-        byte[] response = handlePorposalResponses(resps);
-
-        CompletableFuture<TransactionEvent> future = channel.sendTransaction(resps,
-                Channel.TransactionOptions.createTransactionOptions()
-                        .nOfEvents(Channel.NOfEvents.createNofEvents()
-                                .setN(1)
-                                .addEventHubs(channel.getEventHubs())
-                                .addPeers(channel.getPeers())
-                        )
-        );
-
-        future.thenAccept(result -> {
-            System.out.println("ok");
-        }).get();
-
-        return response == null ? null : new String(response);
+        call.recordCheck(consistent);
+        if (!consistent) {
+            log.warn("Peers answered {} differently", function);
+        }
     }
 
+    /**
+     * @return peers of the client org on the channel, looked up once per channel
+     */
     private List<Peer> getClientPeers(Channel channel) throws Exception {
-        List<Peer> orgPeers = new ArrayList<>();
+        List<Peer> orgPeers = clientPeers.get(channel);
+        if (orgPeers != null) {
+            return orgPeers;
+        }
+
+        orgPeers = new ArrayList<>();
         for (Peer peer : channel.getPeers()) {
-            if (config.getClientOrganization().getPeerNames().contains(peer.getName())) {
+            if (clientPeerNames.contains(peer.getName())) {
                 orgPeers.add(peer);
             }
         }
@@ -309,133 +585,159 @@ public class FabricClient {
             throw new Exception("Not found any client org peer");
         }
 
+        orgPeers = Collections.unmodifiableList(orgPeers);
+        clientPeers.put(channel, orgPeers);
         return orgPeers;
     }
 
     public String queryBlockChain(AppUser appUser, boolean isIdemix, String function, String... args)
             throws Exception {
-        System.out.println(appUser.toString());
-        HFClient client = getHFClient(appUser, isIdemix);
-        System.out.println("User context "+ client.getUserContext());
-        Channel channel = client.getChannel(channelName);
-        System.out.println("### channel " + channel.toString());
+        ByteString response = await(queryBlockChainAsync(appUser, isIdemix, function, args));
+        return response == null ? null : response.toStringUtf8();
+    }
 
-        QueryByChaincodeRequest qpr = client.newQueryProposalRequest();
-        ChaincodeID chaincodeID = ChaincodeID.newBuilder().setName(chaincodeName).build();
-        System.out.println("### chaincodeID " + chaincodeID);
+    /**
+     * Answered from the query cache when a valid entry exists. The payload is the peer's buffer, decode it
+     * only where the content is needed.
+     */
+    public CompletableFuture<ByteString> queryBlockChainAsync(AppUser appUser, boolean isIdemix, String function,
+                                                          String... args) {
+        FabricMetrics.Call call = FabricMetrics.call(function);
+        if (!queryCache.isEnabled()) {
+            return supplyAsync(() -> query(call, appUser, isIdemix, function, null, null, args))
+                    .whenComplete((result, error) -> call.recordTotal(error == null));
+        }
 
-        qpr.setChaincodeID(chaincodeID);
-        qpr.setFcn(function);
-        qpr.setArgs(args);
-        System.out.println("### qpr: " + qpr);
+        String key = getQueryKey(appUser, isIdemix, function, args);
+        ByteString cached = queryCache.get(key);
+        if (cached != null) {
+            call.recordTotal(true);
+            return CompletableFuture.completedFuture(cached);
+        }
 
-        Collection<ProposalResponse> presps = channel.queryByChaincode(qpr, getClientPeers(channel));
-        byte[] response = handlePorposalResponses(presps);
+        QueryCache.Token token = queryCache.begin();
+        return supplyAsync(() -> query(call, appUser, isIdemix, function, key, token, args))
+                .whenComplete((result, error) -> call.recordTotal(error == null));
+    }
 
-        return response == null ? null : new String(response);
+    /**
+     * Keyed by identity as well, since a chaincode function may answer differently depending on its creator.
+     */
+    private static String getQueryKey(AppUser appUser, boolean isIdemix, String function, String... args) {
+        StringBuilder key = new StringBuilder(getIdentity(appUser, isIdemix)).append('\u0000').append(function);
+        for (String arg : args) {
+            key.append('\u0000').append(arg);
+        }
+        return key.toString();
     }
 
+    private ByteString query(FabricMetrics.Call call, AppUser appUser, boolean isIdemix, String function, String cacheKey,
+                             QueryCache.Token cacheToken, String... args) throws Exception {
+        try (HFClientPool.Lease lease = getHFClient(call, appUser, isIdemix)) {
+            HFClient client = lease.getClient();
+            Channel channel = client.getChannel(channelName);
 
-    public void readBlocks(AppUser appUser) throws Exception {
+            log.debug("Query {} {} as {}", function, Arrays.toString(args), client.getUserContext().getName());
+
+            // a sampled query asks every peer so that their answers are compared
+            boolean check = queryPeers > 0 && queryCheckRate > 0
+                    && ThreadLocalRandom.current().nextDouble() < queryCheckRate;
+            long started = System.nanoTime();
+            Collection<ProposalResponse> presps;
+            try {
+                presps = peerSelector.send(getClientPeers(channel), check ? 0 : queryPeers, FabricMetrics.QUERY,
+                        peers -> channel.queryByChaincode(newQuery(client, function, args), peers));
+            } catch (Exception e) {
+                call.record(FabricMetrics.QUERY, started, false);
+                throw e;
+            }
+            call.record(FabricMetrics.QUERY, started, true);
+            if (check) {
+                checkConsistency(call, function, presps);
+            }
+            ByteString response = handlePorposalResponses(call, presps);
+            if (cacheKey != null && response != null) {
+                queryCache.put(cacheKey, response, presps, cacheToken);
+            }
+            return response;
+        }
+    }
+
+    private <T> CompletableFuture<T> supplyAsync(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
         try {
-            HFClient client = getHFClient(appUser, false);
-            Channel channel = client.getChannel(channelName);
-            Peer peer = getClientPeers(channel).get(0);
-            BlockchainInfo channelInfo = channel.queryBlockchainInfo(peer);
-
-            for (long current = 0; current <  channelInfo.getHeight(); current++) {
-                BlockInfo returnedBlock = channel.queryBlockByNumber(peer, current);
-                final long blockNumber = returnedBlock.getBlockNumber();
-
-                System.out.println(String.format("current block number %d ", blockNumber));
-                System.out.println(String.format(" data hash: %s", Hex.encodeHexString(returnedBlock.getDataHash())));
-                System.out.println(String.format(" previous hash id: %s", Hex.encodeHexString(returnedBlock.getPreviousHash())));
-                System.out.println(String.format(" calculated block hash is %s", Hex.encodeHexString(SDKUtils.calculateBlockHash(client,
-                        blockNumber, returnedBlock.getPreviousHash(), returnedBlock.getDataHash()))));
-
-                System.out.println(String.format(" has %d envelope count:", returnedBlock.getEnvelopeCount()));
-                int i = 0;
-                for (BlockInfo.EnvelopeInfo envelopeInfo : returnedBlock.getEnvelopeInfos()) {
-                    ++i;
-
-                    System.out.println(String.format("  Transaction number %d has transaction id: %s", i, envelopeInfo.getTransactionID()));
-                    System.out.println(String.format("   channel id: %s", envelopeInfo.getChannelId()));
-                    System.out.println(String.format("   transaction timestamp: %tB %<te,  %<tY  %<tT %<Tp", envelopeInfo.getTimestamp()));
-                    System.out.println(String.format("   type id: %s", "" + envelopeInfo.getType()));
-                    System.out.println(String.format("   nonce : %s", "" + Hex.encodeHexString(envelopeInfo.getNonce())));
-                    System.out.println(String.format("   submitter mspid: %s", envelopeInfo.getCreator().getMspid()));
-
-                    if (envelopeInfo.getType() == TRANSACTION_ENVELOPE) {
-                        BlockInfo.TransactionEnvelopeInfo transactionEnvelopeInfo = (BlockInfo.TransactionEnvelopeInfo) envelopeInfo;
-
-                        System.out.println(String.format("   has %d actions", transactionEnvelopeInfo.getTransactionActionInfoCount()));
-                        System.out.println(String.format("   isValid %b", transactionEnvelopeInfo.isValid()));
-                        System.out.println(String.format("   validation code %d", transactionEnvelopeInfo.getValidationCode()));
-
-                        int j = 0;
-                        for (BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo transactionActionInfo : transactionEnvelopeInfo.getTransactionActionInfos()) {
-                            ++j;
-                            System.out.println(String.format("    Transaction action %d", j));
-                            System.out.println(String.format("    response status %d", transactionActionInfo.getResponseStatus()));
-                            System.out.println(String.format("    response message bytes as string: %s",
-                                    printableString(new String(transactionActionInfo.getResponseMessageBytes(), UTF_8))));
-                            System.out.println(String.format("    has %d endorsements", transactionActionInfo.getEndorsementsCount()));
-
-                            for (int n = 0; n < transactionActionInfo.getEndorsementsCount(); ++n) {
-                                BlockInfo.EndorserInfo endorserInfo = transactionActionInfo.getEndorsementInfo(n);
-                                System.out.println(String.format("     Endorser %d endorser: mspid %s ", n, endorserInfo.getMspid()));
-                            }
-                            System.out.println(String.format("    has %d chaincode input arguments", transactionActionInfo.getChaincodeInputArgsCount()));
-                            for (int z = 0; z < transactionActionInfo.getChaincodeInputArgsCount(); ++z) {
-                                System.out.println(String.format("      has chaincode input argument %d is: %s", z,
-                                        printableString(new String(transactionActionInfo.getChaincodeInputArgs(z), UTF_8))));
-                            }
-
-                            System.out.println(String.format("    proposal response status: %d",
-                                    transactionActionInfo.getProposalResponseStatus()));
-                            System.out.println(String.format("    proposal response payload: %s",
-                                    printableString(new String(transactionActionInfo.getProposalResponsePayload()))));
-
-                            String chaincodeIDName = transactionActionInfo.getChaincodeIDName();
-                            String chaincodeIDVersion = transactionActionInfo.getChaincodeIDVersion();
-                            String chaincodeIDPath = transactionActionInfo.getChaincodeIDPath();
-                            System.out.println(String.format("    proposal chaincodeIDName: %s, chaincodeIDVersion: %s,  chaincodeIDPath: %s ",
-                                    chaincodeIDName, chaincodeIDVersion, chaincodeIDPath));
-
-                            TxReadWriteSetInfo rwsetInfo = transactionActionInfo.getTxReadWriteSet();
-                            if (null != rwsetInfo) {
-                                System.out.println(String.format("    has %d name space read write sets", rwsetInfo.getNsRwsetCount()));
-
-                                for (TxReadWriteSetInfo.NsRwsetInfo nsRwsetInfo : rwsetInfo.getNsRwsetInfos()) {
-                                    final String namespace = nsRwsetInfo.getNamespace();
-                                    KvRwset.KVRWSet rws = nsRwsetInfo.getRwset();
-
-                                    int rs = -1;
-                                    for (KvRwset.KVRead readList : rws.getReadsList()) {
-                                        rs++;
-
-                                        System.out.println(String.format("      Namespace %s read set %d key %s  version [%d:%d]", namespace, rs, readList.getKey(),
-                                                readList.getVersion().getBlockNum(), readList.getVersion().getTxNum()));
-
-                                    }
-
-                                    rs = -1;
-                                    for (KvRwset.KVWrite writeList : rws.getWritesList()) {
-                                        rs++;
-                                        String valAsString = printableString(new String(writeList.getValue().toByteArray(), UTF_8));
-
-                                        System.out.println(String.format("      Namespace %s write set %d key %s has value '%s' ", namespace, rs, writeList.getKey(), valAsString));
-                                    }
-                                }
-                            }
-                        }
-                    }
+            proposalExecutor.execute(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
                 }
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Logs blocks 0 until the current height at debug level.
+     */
+    public void readBlocks(AppUser appUser) throws Exception {
+        scanBlocks(appUser, 0, -1, false, new LoggingBlockSink());
+    }
+
+    /**
+     * Append the blocks after the last archived one up to the current height to the channel's block archive.
+     *
+     * @return number of blocks archived
+     */
+    public long archiveBlocks(AppUser appUser) throws Exception {
+        try (BlockArchive archive = new BlockArchive(Storage.getArchiveDir(channelName), archiveSegmentBytes)) {
+            archive.open();
+            return scanBlocks(appUser, archive.getNextBlock(), -1, false, archive);
+        }
+    }
+
+    /**
+     * @return reader of the blocks archived so far
+     */
+    public BlockArchiveReader openBlockArchive() throws IOException {
+        return new BlockArchiveReader(Storage.getArchiveDir(channelName));
+    }
+
+    /**
+     * Scan blocks [from, to) of the channel, in parallel over the org's peers, into the sink.
+     *
+     * @param to          end of the range, below 0 for the chain height
+     * @param headersOnly pass only block numbers and hashes to the sink
+     * @return number of blocks passed to the sink
+     */
+    public long scanBlocks(AppUser appUser, long from, long to, boolean headersOnly, BlockSink sink) throws Exception {
+        try (HFClientPool.Lease lease = getHFClient(appUser, false)) {
+            HFClient client = lease.getClient();
+            Channel channel = client.getChannel(channelName);
+            List<Peer> peers = getClientPeers(channel);
+            if (to < 0) {
+                to = channel.queryBlockchainInfo(peers.get(0)).getHeight();
             }
+            return new BlockScanner(client, channel, peers, scanParallelism, scanPrefetch, headersOnly)
+                    .scan(from, to, sink);
         } catch (InvalidProtocolBufferRuntimeException e) {
             throw e.getCause();
         }
     }
+
     static String printableString(final String string) {
         int maxLogStringLength = 64;
         if (string == null || string.length() == 0) {
@@ -450,24 +752,75 @@ public class FabricClient {
 
     }
 
-    private byte[] handlePorposalResponses(Collection<ProposalResponse> presps) throws Exception {
-        byte[] response = null;
+    private ByteString handlePorposalResponses(FabricMetrics.Call call, Collection<ProposalResponse> presps)
+            throws Exception {
+        long started = System.nanoTime();
+        for (ProposalResponse pres : presps) {
+            call.recordResponse(pres);
+        }
+
+        try {
+            ByteString response = handlePorposalResponses(presps);
+            call.record(FabricMetrics.COMPARE, started, true);
+            return response;
+        } catch (Exception e) {
+            call.record(FabricMetrics.COMPARE, started, false);
+            throw e;
+        }
+    }
+
+    private ByteString handlePorposalResponses(Collection<ProposalResponse> presps) throws Exception {
+        ByteString response = null;
 
         for (ProposalResponse pres : presps) {
             if (pres.getStatus() != ProposalResponse.Status.SUCCESS) {
                 throw new Exception(pres.getMessage());
             }
-            System.out.println(new String(pres.getChaincodeActionResponsePayload()));
             if (response == null) {
-                response = pres.getChaincodeActionResponsePayload();
+                response = getPayload(pres);
                 continue;
             }
 
-            if (!Arrays.equals(response, pres.getChaincodeActionResponsePayload())) {
+            if (!response.equals(getPayload(pres))) {
                 throw new Exception("Proposal responses are not the same");
             }
         }
 
         return response;
     }
+
+    /**
+     * The chaincode's response as the endorser signed it, in the proposal response payload. The copy the peer
+     * also puts in the unsigned response field could differ from it, so peers are never compared on that one.
+     * Parsing with aliasing slices the bytes out of the received message instead of copying them like
+     * getChaincodeActionResponsePayload does.
+     */
+    private static ByteString getPayload(ProposalResponse pres) throws IOException {
+        FabricProposalResponse.ProposalResponsePayload payload =
+                FabricProposalResponse.ProposalResponsePayload.parseFrom(aliasing(pres.getProposalResponse().getPayload()));
+        return FabricProposal.ChaincodeAction.parseFrom(aliasing(payload.getExtension())).getResponse().getPayload();
+    }
+
+    private static CodedInputStream aliasing(ByteString bytes) {
+        CodedInputStream in = bytes.newCodedInput();
+        in.enableAliasing(true);
+        return in;
+    }
+
+    private static class Endorsement {
+        private final HFClientPool.Lease lease;
+        private final Channel channel;
+        private final Collection<ProposalResponse> responses;
+        private final String txId;
+        private final ByteString payload;
+
+        private Endorsement(HFClientPool.Lease lease, Channel channel, Collection<ProposalResponse> responses,
+                            String txId, ByteString payload) {
+            this.lease = lease;
+            this.channel = channel;
+            this.responses = responses;
+            this.txId = txId;
+            this.payload = payload;
+        }
+    }
 }
@@ -1,12 +1,16 @@
 package com.techprimers.grpc.fabric;
 
 import org.hyperledger.fabric.sdk.NetworkConfig;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.ConfigurableBeanFactory;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.File;
+import java.math.BigInteger;
+import java.security.SecureRandom;
 
 @Component
 @Scope(value = ConfigurableBeanFactory.SCOPE_SINGLETON)
@@ -18,29 +22,51 @@ public class FabricClientSingleton {
     private static NetworkConfig.OrgInfo orgInfo;
     private static FabricClient fabricClient;
     private static AppUser appUser;
+    private static final SecureRandom random = new SecureRandom();
+
+    @Autowired
+    private FabricProperties properties;
 
     @PostConstruct
     public void init() {
         try {
-            NetworkConfig networkConfig = NetworkConfig.fromYamlFile(new File("greeting-service/src/main/resources/network-config.yaml"));
+            NetworkConfig networkConfig = NetworkConfig.fromYamlFile(new File(properties.getNetworkConfig()));
             FabricClientSingleton.orgInfo = networkConfig.getClientOrganization();
             NetworkConfig.UserInfo userInfo = orgInfo.getCertificateAuthorities().get(0).getRegistrars().iterator().next();
             FabricClientSingleton.admin = userInfo.getName();
             FabricClientSingleton.secretA = userInfo.getEnrollSecret();
             FabricClientSingleton.user = orgInfo.getName() + "User";
-            FabricClientSingleton.fabricClient = new FabricClient(networkConfig);
+            FabricClientSingleton.fabricClient = new FabricClient(networkConfig, properties);
             FabricClientSingleton.appUser = getAppUser(fabricClient);
+            FabricClientSingleton.fabricClient.warmUp(appUser);
+            FabricClientSingleton.fabricClient.startIndexer(appUser);
 
         } catch (Throwable ex) {
             ex.printStackTrace();
         }
     }
 
+    @PreDestroy
+    public void shutdown() {
+        if (fabricClient != null) {
+            fabricClient.shutdown();
+        }
+    }
+
     public FabricClient getFabricClient() { return fabricClient; }
 
     public AppUser getAppUser() { return appUser; }
 
 
+    /**
+     * @return the stored user of the client org, registered by the org registrar with a random secret and enrolled
+     * on first use
+     */
+    public AppUser getOrEnrollUser(String name) throws Exception {
+        Storage.checkUserName(name);
+        return getOrEnrollUser(fabricClient, name, null);
+    }
+
     private static AppUser getAppUser(FabricClient fabricClient) throws Exception {
         AppUser appUser;
         if (!Storage.exist(orgInfo.getMspId(), admin)) {
@@ -48,17 +74,33 @@ public class FabricClientSingleton {
             Storage.save(appUser);
         }
 
-        if (Storage.exist(orgInfo.getMspId(), user)) {
-            return Storage.load(orgInfo.getMspId(), user);
+        // the service's own user keeps its well known secret, so that it can be enrolled again once its files are lost
+        return getOrEnrollUser(fabricClient, user, user);
+    }
+
+    /**
+     * @param secret enrollment secret to register the user with, null to register it with a random one which is
+     *               never stored, so that a name already registered by someone else cannot be enrolled
+     */
+    private static AppUser getOrEnrollUser(FabricClient fabricClient, String name, String secret) throws Exception {
+        AppUser appUser;
+        if (Storage.exist(orgInfo.getMspId(), name)) {
+            return Storage.load(orgInfo.getMspId(), name);
         }
 
         AppUser registrar = Storage.load(orgInfo.getMspId(), admin);
-        String secret = user;
+        boolean generated = secret == null;
+        if (generated) {
+            secret = new BigInteger(128, random).toString(36);
+        }
         try {
-            fabricClient.registerUser(registrar, user, orgInfo.getName(), false, secret);
-            appUser = fabricClient.enrollUser(user, orgInfo.getName(), orgInfo.getMspId(), secret);
+            fabricClient.registerUser(registrar, name, orgInfo.getName(), false, secret);
+            appUser = fabricClient.enrollUser(name, orgInfo.getName(), orgInfo.getMspId(), secret);
         } catch (Throwable ex) {
-            appUser = fabricClient.enrollUser(user, orgInfo.getName(), orgInfo.getMspId(), secret);
+            if (generated) {
+                throw ex;
+            }
+            appUser = fabricClient.enrollUser(name, orgInfo.getName(), orgInfo.getMspId(), secret);
         }
 
         Storage.save(appUser);
@@ -0,0 +1,157 @@
+package com.techprimers.grpc.fabric;
+
+import io.grpc.Context;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timers and counters of the transaction lifecycle, published to the global Micrometer registry that Spring
+ * Boot exposes on /actuator/prometheus. Every phase is timed as {@code fabric.tx.phase} tagged with the gRPC
+ * method that caused it, the chaincode function, the phase and its outcome. Each endorse or query proposal is also
+ * timed per peer as {@code fabric.peer.proposal}; peers asked together are charged the latency of the whole set.
+ */
+public final class FabricMetrics {
+    /** name of the gRPC method being served, set by the service interceptor */
+    public static final Context.Key<String> RPC = Context.key("workload-rpc");
+
+    public static final String CLIENT = "client";
+    public static final String ENDORSE = "endorse";
+    public static final String COMPARE = "compare";
+    public static final String ORDER = "order";
+    public static final String COMMIT = "commit";
+    public static final String QUERY = "query";
+    public static final String TOTAL = "total";
+
+    private static final MeterRegistry registry = Metrics.globalRegistry;
+    /** timers and counters by name and tag values, so that recording does not build and look up a meter id every time */
+    private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private FabricMetrics() {
+    }
+
+    /**
+     * Start tagging a call, must be invoked within the gRPC context of the RPC, on its thread or through
+     * {@link Context#wrap} or {@link Context#fixedContextExecutor}.
+     */
+    static Call call(String function) {
+        String rpc = RPC.get();
+        return new Call(rpc == null ? "none" : rpc, function);
+    }
+
+    static void recordPeer(String peer, String phase, long nanos, boolean success) {
+        String outcome = success ? "success" : "failure";
+        timers.computeIfAbsent("fabric.peer.proposal/" + peer + "/" + phase + "/" + outcome,
+                key -> Timer.builder("fabric.peer.proposal")
+                        .tag("peer", peer)
+                        .tag("phase", phase)
+                        .tag("outcome", outcome)
+                        .publishPercentileHistogram()
+                        .register(registry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    static void bindQueryCache(QueryCache cache) {
+        FunctionCounter.builder("fabric.query.cache.requests", cache, QueryCache::getHits)
+                .tag("result", "hit").register(registry);
+        FunctionCounter.builder("fabric.query.cache.requests", cache, QueryCache::getMisses)
+                .tag("result", "miss").register(registry);
+        FunctionCounter.builder("fabric.query.cache.evictions", cache, QueryCache::getEvictions).register(registry);
+        FunctionCounter.builder("fabric.query.cache.invalidations", cache, QueryCache::getInvalidations).register(registry);
+        Gauge.builder("fabric.query.cache.size", cache, QueryCache::size).register(registry);
+    }
+
+    static void bindLedgerIndex(LedgerIndex index) {
+        Gauge.builder("fabric.index.height", index, LedgerIndex::getNextBlock).register(registry);
+        Gauge.builder("fabric.index.transactions", index, LedgerIndex::getTransactionCount).register(registry);
+    }
+
+    static void bindBlindingFactors(BlindingFactorPool pool) {
+        FunctionCounter.builder("voting.blinding.factors", pool, BlindingFactorPool::getHits)
+                .tag("source", "pool").register(registry);
+        FunctionCounter.builder("voting.blinding.factors", pool, BlindingFactorPool::getMisses)
+                .tag("source", "inline").register(registry);
+    }
+
+    static void bindBallotSubmitter(BallotSubmitter submitter) {
+        Gauge.builder("voting.ballots.queued", submitter, BallotSubmitter::getQueued).register(registry);
+        Gauge.builder("voting.ballots.in.flight", submitter, BallotSubmitter::getInFlight).register(registry);
+    }
+
+    static void bindPeerSelector(PeerSelector selector) {
+        FunctionCounter.builder("fabric.proposal.hedges", selector, PeerSelector::getHedges)
+                .tag("result", "sent").register(registry);
+        FunctionCounter.builder("fabric.proposal.hedges", selector, PeerSelector::getHedgeWins)
+                .tag("result", "won").register(registry);
+        FunctionCounter.builder("fabric.proposal.failovers", selector, PeerSelector::getFailovers).register(registry);
+    }
+
+    static void bindPeer(PeerSelector selector, String peer) {
+        Gauge.builder("fabric.peer.latency", selector, s -> s.getLatencyMillis(peer))
+                .tag("peer", peer).baseUnit("milliseconds").register(registry);
+        Gauge.builder("fabric.peer.errors", selector, s -> s.getErrorRate(peer))
+                .tag("peer", peer).register(registry);
+    }
+
+    static class Call {
+        private final String rpc;
+        private final String function;
+        private final long started = System.nanoTime();
+
+        private Call(String rpc, String function) {
+            this.rpc = rpc;
+            this.function = function;
+        }
+
+        void record(String phase, long startNanos, boolean success) {
+            long nanos = System.nanoTime() - startNanos;
+            String outcome = success ? "success" : "failure";
+            timers.computeIfAbsent("fabric.tx.phase/" + rpc + "/" + function + "/" + phase + "/" + outcome,
+                    key -> Timer.builder("fabric.tx.phase")
+                            .tag("rpc", rpc)
+                            .tag("function", function)
+                            .tag("phase", phase)
+                            .tag("outcome", outcome)
+                            .publishPercentileHistogram()
+                            .register(registry))
+                    .record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        void recordTotal(boolean success) {
+            record(TOTAL, started, success);
+        }
+
+        void recordResponse(ProposalResponse response) {
+            String peer = response.getPeer() == null ? "unknown" : response.getPeer().getName();
+            String status = String.valueOf(response.getStatus());
+            counters.computeIfAbsent("fabric.proposal.responses/" + rpc + "/" + function + "/" + peer + "/" + status,
+                    key -> Counter.builder("fabric.proposal.responses")
+                            .tag("rpc", rpc)
+                            .tag("function", function)
+                            .tag("peer", peer)
+                            .tag("status", status)
+                            .register(registry))
+                    .increment();
+        }
+
+        void recordCheck(boolean consistent) {
+            String result = consistent ? "match" : "mismatch";
+            counters.computeIfAbsent("fabric.query.checks/" + rpc + "/" + function + "/" + result,
+                    key -> Counter.builder("fabric.query.checks")
+                            .tag("rpc", rpc)
+                            .tag("function", function)
+                            .tag("result", result)
+                            .register(registry))
+                    .increment();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.techprimers.grpc.fabric;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+/**
+ * Tuning knobs of {@link FabricClient}, bound from the {@code fabric.*} application properties.
+ */
+@Component
+@ConfigurationProperties(prefix = "fabric")
+public class FabricProperties {
+    /** network config the client connects with, relative to the working directory */
+    private String networkConfig = "greeting-service/src/main/resources/network-config.yaml";
+    /** identities whose initialized HFClient and channel are kept, least recently used is evicted */
+    private int clientPoolSize = 32;
+    /** how long an Idemix credential is reused before it is enrolled again */
+    private Duration idemixTtl = Duration.ofMinutes(30);
+    /** passphrase encrypting Idemix credentials spilled to disk, spilling is off when empty */
+    private String idemixSpillKey;
+    /** what invokes wait for when the caller does not choose */
+    private CommitPolicy commitPolicy = CommitPolicy.FIRST_PEER;
+    /** max cached query payloads, 0 turns the query cache off */
+    private int queryCacheSize = 1024;
+    /** drop the whole query cache on every block, or only entries whose read set was written */
+    private QueryCache.Invalidation queryCacheInvalidation = QueryCache.Invalidation.KEYS;
+    /** concurrent block queries of a block scan, spread over the org's peers */
+    private int scanParallelism = 4;
+    /** blocks a block scan fetches ahead of its sink */
+    private int scanPrefetch = 64;
+    /** keep a local index of tx ids and key write history, caught up in the background */
+    private boolean indexEnabled = false;
+    /** how long the indexer waits for a block event before it checks the chain height itself */
+    private Duration indexPollInterval = Duration.ofSeconds(5);
+    /** block archive segments are closed once they reach this size, must be below 2GB */
+    private DataSize archiveSegmentSize = DataSize.ofMegabytes(64);
+    /** blinding factors kept precomputed per voting key, 0 computes them on the request path */
+    private int blindingPoolSize = 256;
+    /** threads of the ballot signer's fork/join pool */
+    private int signingParallelism = Runtime.getRuntime().availableProcessors();
+    /** client org peers that endorse a transaction, chosen by latency; 0 sends proposals to all of them */
+    private int endorsingPeers = 0;
+    /** send a proposal again to other peers once the chosen ones are slower than their p95 */
+    private boolean hedgeProposals = true;
+    /** client org peers a query is sent to, chosen like the endorsing ones; 0 asks and compares all of them */
+    private int queryPeers = 1;
+    /** share of queries that also ask every client org peer and compare their answers */
+    private double queryCheckRate = 0.01;
+    /** ballots waiting for voteIdemix, more are rejected */
+    private int ballotQueueSize = 10000;
+    /** voteIdemix transactions waiting for their commit */
+    private int ballotsInFlight = 256;
+
+    public String getNetworkConfig() {
+        return networkConfig;
+    }
+
+    public void setNetworkConfig(String networkConfig) {
+        this.networkConfig = networkConfig;
+    }
+
+    public int getClientPoolSize() {
+        return clientPoolSize;
+    }
+
+    public void setClientPoolSize(int clientPoolSize) {
+        this.clientPoolSize = clientPoolSize;
+    }
+
+    public Duration getIdemixTtl() {
+        return idemixTtl;
+    }
+
+    public void setIdemixTtl(Duration idemixTtl) {
+        this.idemixTtl = idemixTtl;
+    }
+
+    public String getIdemixSpillKey() {
+        return idemixSpillKey;
+    }
+
+    public void setIdemixSpillKey(String idemixSpillKey) {
+        this.idemixSpillKey = idemixSpillKey;
+    }
+
+    public int getQueryCacheSize() {
+        return queryCacheSize;
+    }
+
+    public void setQueryCacheSize(int queryCacheSize) {
+        this.queryCacheSize = queryCacheSize;
+    }
+
+    public QueryCache.Invalidation getQueryCacheInvalidation() {
+        return queryCacheInvalidation;
+    }
+
+    public void setQueryCacheInvalidation(QueryCache.Invalidation queryCacheInvalidation) {
+        this.queryCacheInvalidation = queryCacheInvalidation;
+    }
+
+    public CommitPolicy getCommitPolicy() {
+        return commitPolicy;
+    }
+
+    public void setCommitPolicy(CommitPolicy commitPolicy) {
+        this.commitPolicy = commitPolicy;
+    }
+
+    public int getScanParallelism() {
+        return scanParallelism;
+    }
+
+    public void setScanParallelism(int scanParallelism) {
+        this.scanParallelism = scanParallelism;
+    }
+
+    public int getScanPrefetch() {
+        return scanPrefetch;
+    }
+
+    public void setScanPrefetch(int scanPrefetch) {
+        this.scanPrefetch = scanPrefetch;
+    }
+
+    public boolean isIndexEnabled() {
+        return indexEnabled;
+    }
+
+    public void setIndexEnabled(boolean indexEnabled) {
+        this.indexEnabled = indexEnabled;
+    }
+
+    public Duration getIndexPollInterval() {
+        return indexPollInterval;
+    }
+
+    public void setIndexPollInterval(Duration indexPollInterval) {
+        this.indexPollInterval = indexPollInterval;
+    }
+
+    public DataSize getArchiveSegmentSize() {
+        return archiveSegmentSize;
+    }
+
+    public void setArchiveSegmentSize(DataSize archiveSegmentSize) {
+        if (archiveSegmentSize.toBytes() <= 0 || archiveSegmentSize.toBytes() >= BlockArchive.MAX_SEGMENT_BYTES) {
+            throw new IllegalArgumentException("fabric.archive-segment-size must be positive and below 2GB");
+        }
+        this.archiveSegmentSize = archiveSegmentSize;
+    }
+
+    public int getBlindingPoolSize() {
+        return blindingPoolSize;
+    }
+
+    public void setBlindingPoolSize(int blindingPoolSize) {
+        this.blindingPoolSize = blindingPoolSize;
+    }
+
+    public int getSigningParallelism() {
+        return signingParallelism;
+    }
+
+    public void setSigningParallelism(int signingParallelism) {
+        this.signingParallelism = signingParallelism;
+    }
+
+    public int getBallotQueueSize() {
+        return ballotQueueSize;
+    }
+
+    public void setBallotQueueSize(int ballotQueueSize) {
+        this.ballotQueueSize = ballotQueueSize;
+    }
+
+    public int getBallotsInFlight() {
+        return ballotsInFlight;
+    }
+
+    public void setBallotsInFlight(int ballotsInFlight) {
+        this.ballotsInFlight = ballotsInFlight;
+    }
+
+    public int getEndorsingPeers() {
+        return endorsingPeers;
+    }
+
+    public void setEndorsingPeers(int endorsingPeers) {
+        this.endorsingPeers = endorsingPeers;
+    }
+
+    public boolean isHedgeProposals() {
+        return hedgeProposals;
+    }
+
+    public void setHedgeProposals(boolean hedgeProposals) {
+        this.hedgeProposals = hedgeProposals;
+    }
+
+    public int getQueryPeers() {
+        return queryPeers;
+    }
+
+    public void setQueryPeers(int queryPeers) {
+        this.queryPeers = queryPeers;
+    }
+
+    public double getQueryCheckRate() {
+        return queryCheckRate;
+    }
+
+    public void setQueryCheckRate(double queryCheckRate) {
+        this.queryCheckRate = queryCheckRate;
+    }
+}
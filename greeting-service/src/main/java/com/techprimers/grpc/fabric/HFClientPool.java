@@ -0,0 +1,211 @@
+package com.techprimers.grpc.fabric;
+
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.HFClient;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Bounded pool of initialized {@link HFClient}s keyed by identity. The least recently used identity is
+ * evicted once the pool is full; its channel is shut down as soon as the last lease on it is released,
+ * so transactions still waiting for their commit event are not cut off. Channels of evicted identities are
+ * shut down in the background, since that waits for their event streams to close.
+ */
+class HFClientPool {
+    /** a burst of evictions queues its shutdowns instead of starting a thread for each */
+    private static final int shutdownThreads = 2;
+
+    private final String channelName;
+    private final int capacity;
+    private final LinkedHashMap<String, Slot> slots = new LinkedHashMap<>(16, 0.75f, true);
+    private final ExecutorService shutdownExecutor = Executors.newFixedThreadPool(shutdownThreads, runnable -> {
+        Thread thread = new Thread(runnable, "fabric-client-shutdown");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean closed = false;
+
+    HFClientPool(String channelName, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.channelName = channelName;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Lease the client of an identity, creating it with the factory on first use.
+     * The lease must be closed once the caller no longer uses the client or its channel.
+     */
+    Lease acquire(String identity, Callable<HFClient> factory) throws Exception {
+        Slot slot;
+        List<Slot> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("client pool is closed");
+            }
+            slot = slots.get(identity);
+            if (slot == null) {
+                slot = new Slot(identity);
+                slots.put(identity, slot);
+                evictOverflow(evicted);
+            }
+            slot.leases++;
+        }
+        shutdown(evicted);
+
+        try {
+            return new Lease(slot, slot.get(factory));
+        } catch (Exception e) {
+            release(slot, true);
+            throw e;
+        }
+    }
+
+    /**
+     * Drop the identity's client, for instance when its credential changed. Open leases keep using it, its
+     * channel is shut down once they are closed.
+     */
+    void evict(String identity) {
+        Slot slot;
+        synchronized (this) {
+            slot = slots.remove(identity);
+            if (slot == null) {
+                return;
+            }
+            slot.evicted = true;
+            if (slot.leases > 0) {
+                return;
+            }
+        }
+        shutdownLater(slot);
+    }
+
+    synchronized int size() {
+        return slots.size();
+    }
+
+    void close() {
+        List<Slot> evicted = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (Slot slot : slots.values()) {
+                slot.evicted = true;
+                if (slot.leases == 0) {
+                    evicted.add(slot);
+                }
+            }
+            slots.clear();
+        }
+        for (Slot slot : evicted) {
+            slot.shutdown();
+        }
+        shutdownExecutor.shutdown();
+    }
+
+    private void evictOverflow(List<Slot> evicted) {
+        Iterator<Slot> it = slots.values().iterator();
+        while (slots.size() > capacity && it.hasNext()) {
+            Slot eldest = it.next();
+            it.remove();
+            eldest.evicted = true;
+            if (eldest.leases == 0) {
+                evicted.add(eldest);
+            }
+        }
+    }
+
+    private void release(Slot slot, boolean failed) {
+        boolean shutdown;
+        synchronized (this) {
+            slot.leases--;
+            if (failed && slots.get(slot.identity) == slot) {
+                // drop slots whose client could not be built so the next caller retries
+                slots.remove(slot.identity);
+                slot.evicted = true;
+            }
+            shutdown = slot.evicted && slot.leases == 0;
+        }
+        if (shutdown) {
+            shutdownLater(slot);
+        }
+    }
+
+    private void shutdown(List<Slot> evicted) {
+        for (Slot slot : evicted) {
+            shutdownLater(slot);
+        }
+    }
+
+    private void shutdownLater(Slot slot) {
+        try {
+            shutdownExecutor.execute(slot::shutdown);
+        } catch (RejectedExecutionException e) {
+            // released after the pool was closed
+            slot.shutdown();
+        }
+    }
+
+    private class Slot {
+        private final String identity;
+        private HFClient client;
+        private int leases = 0;
+        private boolean evicted = false;
+
+        private Slot(String identity) {
+            this.identity = identity;
+        }
+
+        private synchronized HFClient get(Callable<HFClient> factory) throws Exception {
+            if (client == null) {
+                client = factory.call();
+            }
+            return client;
+        }
+
+        private synchronized void shutdown() {
+            if (client == null) {
+                return;
+            }
+            Channel channel = client.getChannel(channelName);
+            if (channel != null) {
+                channel.shutdown(false);
+            }
+            client = null;
+        }
+    }
+
+    class Lease implements AutoCloseable {
+        private final Slot slot;
+        private final HFClient client;
+        private boolean released = false;
+
+        private Lease(Slot slot, HFClient client) {
+            this.slot = slot;
+            this.client = client;
+        }
+
+        HFClient getClient() {
+            return client;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            release(slot, false);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.techprimers.grpc.fabric;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.util.Arrays;
+
+/**
+ * Checks that every scanned block links to the hash of the block before it, and remembers the height and the
+ * hash of the last block.
+ */
+public class HashChainSink implements BlockSink {
+    private ScannedBlock last;
+
+    @Override
+    public void accept(ScannedBlock block) throws Exception {
+        if (last != null) {
+            if (block.getNumber() != last.getNumber() + 1) {
+                throw new Exception(String.format("block %d follows block %d", block.getNumber(), last.getNumber()));
+            }
+            if (!Arrays.equals(block.getPreviousHash(), last.getHash())) {
+                throw new Exception(String.format("block %d previous hash %s does not match hash %s of block %d",
+                        block.getNumber(), Hex.encodeHexString(block.getPreviousHash()),
+                        Hex.encodeHexString(last.getHash()), last.getNumber()));
+            }
+        }
+        last = block;
+    }
+
+    /**
+     * @return number of the last block plus one, 0 before any block
+     */
+    public long getHeight() {
+        return last == null ? 0 : last.getNumber() + 1;
+    }
+
+    public byte[] getLastHash() {
+        return last == null ? null : last.getHash();
+    }
+}
@@ -0,0 +1,314 @@
+package com.techprimers.grpc.fabric;
+
+import com.google.protobuf.Message;
+import org.apache.milagro.amcl.FP256BN.BIG;
+import org.hyperledger.fabric.protos.idemix.Idemix;
+import org.hyperledger.fabric.sdk.Enrollment;
+import org.hyperledger.fabric.sdk.idemix.IdemixCredential;
+import org.hyperledger.fabric.sdk.idemix.IdemixIssuerPublicKey;
+import org.hyperledger.fabric.sdk.idemix.IdemixUtils;
+import org.hyperledger.fabric.sdk.identity.IdemixEnrollment;
+import org.hyperledger.fabric_ca.sdk.HFCAClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Idemix credentials by user and MSP, so a CA round trip is only paid once per TTL instead of on every
+ * Idemix client. Credentials that are still in use are re-enrolled in the background before they expire,
+ * idle ones are dropped. Whoever holds on to an enrollment, like the client pool, is told through the change
+ * listener when a user's credential is replaced or dropped. When a spill key is set, credentials are also kept AES-GCM encrypted next to the
+ * user in {@link Storage} and survive a restart.
+ */
+class IdemixCredentialCache {
+    private static final Logger log = LoggerFactory.getLogger(IdemixCredentialCache.class);
+
+    private static final int SPILL_VERSION = 1;
+    private static final int SALT_BYTES = 16;
+    private static final int IV_BYTES = 12;
+    private static final int lockStripes = 64;
+
+    private final HFCAClient caClient;
+    private final String mspIdemix;
+    private final long ttlMillis;
+    private final char[] spillKey;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[lockStripes];
+    private final Consumer<AppUser> onChange;
+    private final ScheduledExecutorService refresher;
+    private final SecureRandom random = new SecureRandom();
+
+    IdemixCredentialCache(HFCAClient caClient, String mspIdemix, Duration ttl, String spillKey,
+                          Consumer<AppUser> onChange) {
+        this.caClient = caClient;
+        this.mspIdemix = mspIdemix;
+        this.ttlMillis = ttl.toMillis();
+        this.spillKey = spillKey == null || spillKey.isEmpty() ? null : spillKey.toCharArray();
+        this.onChange = onChange;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idemix-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long period = Math.max(1000, ttlMillis / 4);
+        this.refresher.scheduleWithFixedDelay(this::refresh, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    Enrollment get(AppUser appUser) throws Exception {
+        String key = getKey(appUser);
+        Entry entry = entries.get(key);
+        long now = System.currentTimeMillis();
+        if (entry != null && entry.expiresAt > now) {
+            entry.lastUsed = now;
+            return entry.enrollment;
+        }
+
+        synchronized (locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length]) {
+            entry = entries.get(key);
+            if (entry != null && entry.expiresAt > now) {
+                entry.lastUsed = now;
+                return entry.enrollment;
+            }
+
+            entry = loadSpilled(appUser);
+            if (entry == null) {
+                entry = enroll(appUser);
+            }
+            entry.lastUsed = now;
+            entries.put(key, entry);
+            return entry.enrollment;
+        }
+    }
+
+    /**
+     * Mark the user's credential as in use by a client that holds on to it, so it is refreshed instead of
+     * dropped.
+     */
+    void touch(AppUser appUser) {
+        Entry entry = entries.get(getKey(appUser));
+        if (entry != null) {
+            entry.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    void invalidate(AppUser appUser) {
+        entries.remove(getKey(appUser));
+        if (spillKey != null) {
+            Storage.deleteIdemixEnrollment(appUser.getMspId(), appUser.getName());
+        }
+        onChange.accept(appUser);
+    }
+
+    void close() {
+        refresher.shutdownNow();
+    }
+
+    private String getKey(AppUser appUser) {
+        return appUser.getMspId() + "/" + appUser.getName() + "/" + mspIdemix;
+    }
+
+    private Entry enroll(AppUser appUser) throws Exception {
+        Enrollment enrollment = caClient.idemixEnroll(appUser.getEnrollment(), mspIdemix);
+        Entry entry = new Entry(appUser, enrollment, System.currentTimeMillis() + ttlMillis);
+        spill(entry);
+        return entry;
+    }
+
+    /**
+     * Re-enroll credentials that were used during the last TTL and expire within the next refresh period,
+     * drop the ones nobody asked for and the expired ones that could not be re-enrolled.
+     */
+    private void refresh() {
+        long now = System.currentTimeMillis();
+        long horizon = now + Math.max(1000, ttlMillis / 4) * 2;
+        for (Map.Entry<String, Entry> cached : entries.entrySet()) {
+            Entry entry = cached.getValue();
+            if (entry.expiresAt > horizon) {
+                continue;
+            }
+            if (entry.lastUsed < now - ttlMillis) {
+                if (entries.remove(cached.getKey(), entry)) {
+                    onChange.accept(entry.appUser);
+                }
+                continue;
+            }
+
+            try {
+                Entry fresh = enroll(entry.appUser);
+                fresh.lastUsed = entry.lastUsed;
+                if (entries.replace(cached.getKey(), entry, fresh)) {
+                    onChange.accept(entry.appUser);
+                }
+            } catch (Exception e) {
+                log.warn("Cannot refresh idemix credential of {}: {}", entry.appUser.getName(), e.getMessage());
+                if (entry.expiresAt <= now && entries.remove(cached.getKey(), entry)) {
+                    onChange.accept(entry.appUser);
+                }
+            }
+        }
+    }
+
+    private void spill(Entry entry) {
+        if (spillKey == null || !(entry.enrollment instanceof IdemixEnrollment)) {
+            return;
+        }
+
+        try {
+            Storage.saveIdemixEnrollment(entry.appUser.getMspId(), entry.appUser.getName(), seal(encode(entry)));
+        } catch (Exception e) {
+            log.warn("Cannot spill idemix credential of {}: {}", entry.appUser.getName(), e.getMessage());
+        }
+    }
+
+    private Entry loadSpilled(AppUser appUser) {
+        if (spillKey == null) {
+            return null;
+        }
+
+        try {
+            byte[] sealed = Storage.loadIdemixEnrollment(appUser.getMspId(), appUser.getName());
+            if (sealed == null) {
+                return null;
+            }
+            Entry entry = decode(appUser, unseal(sealed));
+            return entry.expiresAt > System.currentTimeMillis() ? entry : null;
+        } catch (Exception e) {
+            log.warn("Ignoring spilled idemix credential of {}: {}", appUser.getName(), e.getMessage());
+            return null;
+        }
+    }
+
+    private byte[] encode(Entry entry) throws Exception {
+        IdemixEnrollment enrollment = (IdemixEnrollment) entry.enrollment;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SPILL_VERSION);
+        out.writeLong(entry.expiresAt);
+        out.writeUTF(enrollment.getMspId());
+        out.writeUTF(enrollment.getOu());
+        out.writeInt(enrollment.getRoleMask());
+        writeBytes(out, IdemixUtils.bigToBytes(enrollment.getSk()));
+        writeBytes(out, toProto(enrollment.getIpk()).toByteArray());
+        writeBytes(out, toProto(enrollment.getCred()).toByteArray());
+        writeBytes(out, enrollment.getCri() == null ? new byte[0] : enrollment.getCri().toByteArray());
+        out.writeUTF(enrollment.getRevocationPk().getAlgorithm());
+        writeBytes(out, enrollment.getRevocationPk().getEncoded());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private Entry decode(AppUser appUser, byte[] data) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != SPILL_VERSION) {
+            throw new IOException("unsupported idemix spill version");
+        }
+        long expiresAt = in.readLong();
+        String mspId = in.readUTF();
+        String ou = in.readUTF();
+        int roleMask = in.readInt();
+        BIG sk = BIG.fromBytes(readBytes(in));
+        IdemixIssuerPublicKey ipk = new IdemixIssuerPublicKey(Idemix.IssuerPublicKey.parseFrom(readBytes(in)));
+        IdemixCredential cred = new IdemixCredential(Idemix.Credential.parseFrom(readBytes(in)));
+        byte[] criBytes = readBytes(in);
+        Idemix.CredentialRevocationInformation cri = criBytes.length == 0 ? null
+                : Idemix.CredentialRevocationInformation.parseFrom(criBytes);
+        String algorithm = in.readUTF();
+        PublicKey revocationPk = KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(readBytes(in)));
+
+        return new Entry(appUser, new IdemixEnrollment(ipk, revocationPk, mspId, sk, cred, cri, ou, roleMask), expiresAt);
+    }
+
+    /**
+     * The SDK only exposes the protobuf form of issuer keys and credentials package-privately.
+     */
+    private static Message toProto(Object idemixObject) throws Exception {
+        Method toProto = idemixObject.getClass().getDeclaredMethod("toProto");
+        toProto.setAccessible(true);
+        return (Message) toProto.invoke(idemixObject);
+    }
+
+    private byte[] seal(byte[] plain) throws Exception {
+        byte[] salt = new byte[SALT_BYTES];
+        byte[] iv = new byte[IV_BYTES];
+        random.nextBytes(salt);
+        random.nextBytes(iv);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, deriveKey(salt), new GCMParameterSpec(128, iv));
+        byte[] encrypted = cipher.doFinal(plain);
+
+        byte[] sealed = new byte[SALT_BYTES + IV_BYTES + encrypted.length];
+        System.arraycopy(salt, 0, sealed, 0, SALT_BYTES);
+        System.arraycopy(iv, 0, sealed, SALT_BYTES, IV_BYTES);
+        System.arraycopy(encrypted, 0, sealed, SALT_BYTES + IV_BYTES, encrypted.length);
+        return sealed;
+    }
+
+    private byte[] unseal(byte[] sealed) throws Exception {
+        if (sealed.length < SALT_BYTES + IV_BYTES) {
+            throw new IOException("truncated idemix spill");
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        System.arraycopy(sealed, 0, salt, 0, SALT_BYTES);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, deriveKey(salt), new GCMParameterSpec(128, sealed, SALT_BYTES, IV_BYTES));
+        return cipher.doFinal(sealed, SALT_BYTES + IV_BYTES, sealed.length - SALT_BYTES - IV_BYTES);
+    }
+
+    private SecretKeySpec deriveKey(byte[] salt) throws Exception {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        byte[] key = factory.generateSecret(new PBEKeySpec(spillKey, salt, 65536, 256)).getEncoded();
+        return new SecretKeySpec(key, "AES");
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static class Entry {
+        private final AppUser appUser;
+        private final Enrollment enrollment;
+        private final long expiresAt;
+        private volatile long lastUsed;
+
+        private Entry(AppUser appUser, Enrollment enrollment, long expiresAt) {
+            this.appUser = appUser;
+            this.enrollment = enrollment;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
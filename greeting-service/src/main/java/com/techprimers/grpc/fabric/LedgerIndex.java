@@ -0,0 +1,385 @@
+package com.techprimers.grpc.fabric;
+
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.hyperledger.fabric.sdk.exception.InvalidProtocolBufferRuntimeException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hyperledger.fabric.sdk.BlockInfo.EnvelopeType.TRANSACTION_ENVELOPE;
+
+/**
+ * Local index of a channel from transaction id to its place in the chain, and from chaincode key to the valid
+ * transactions that wrote it.
+ * <p>
+ * Blocks are appended to a log of length prefixed records and the number of the next block to index is saved
+ * as a counter once the log is forced to disk. Opening the index replays the log into memory up to that
+ * checkpoint and truncates whatever a crash left behind it, so the blocks after the checkpoint are simply
+ * indexed again. Written values stay in the log, memory only holds where each of them starts.
+ */
+public class LedgerIndex implements Closeable {
+    private static final byte TX = 't';
+    private static final byte WRITE = 'w';
+    /** records of earlier versions, their strings are modified UTF-8 limited to 65535 bytes */
+    private static final byte LEGACY_TX = 'T';
+    private static final byte LEGACY_WRITE = 'W';
+
+    private final String channelName;
+    private final Map<String, TxLocation> txs = new ConcurrentHashMap<>();
+    private final Map<String, List<KeyWrite>> writes = new ConcurrentHashMap<>();
+
+    private FileOutputStream file;
+    private DataOutputStream log;
+    private FileChannel reader;
+    private long size;
+    private volatile long next;
+
+    LedgerIndex(String channelName) {
+        this.channelName = channelName;
+    }
+
+    /**
+     * Replay the log up to the checkpoint and open it for appending.
+     */
+    synchronized void open() throws IOException {
+        txs.clear();
+        writes.clear();
+        File logFile = Storage.getIndexFile(channelName);
+        long checkpoint = Math.max(0, Storage.loadCounter(getCounterName()));
+        long end = 0;
+        if (logFile.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+                byte[] record;
+                while ((record = readRecord(in)) != null && replay(record, end, checkpoint)) {
+                    end += 4 + record.length;
+                }
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(end);
+        }
+        file = new FileOutputStream(logFile, true);
+        log = new DataOutputStream(new BufferedOutputStream(file));
+        reader = FileChannel.open(logFile.toPath(), StandardOpenOption.READ);
+        size = end;
+        next = checkpoint;
+    }
+
+    /**
+     * @return number of the next block to index, which is the indexed height
+     */
+    public long getNextBlock() {
+        return next;
+    }
+
+    /**
+     * @return where the transaction is in the chain or null if it was not indexed
+     */
+    public TxLocation getTransaction(String txId) {
+        return txs.get(txId);
+    }
+
+    /**
+     * @return writes of valid transactions to the key in chain order, empty if it was never written
+     */
+    public List<KeyWrite> getKeyHistory(String namespace, String key) {
+        List<KeyWrite> history = writes.get(namespaceKey(namespace, key));
+        if (history == null) {
+            return Collections.emptyList();
+        }
+        synchronized (history) {
+            return new ArrayList<>(history);
+        }
+    }
+
+    /**
+     * @return the value the key was set to, empty for a delete
+     */
+    public synchronized byte[] getValue(KeyWrite write) throws IOException {
+        log.flush();
+        ByteBuffer value = ByteBuffer.allocate(write.getValueLength());
+        while (value.hasRemaining()) {
+            if (reader.read(value, write.valueOffset + value.position()) < 0) {
+                throw new EOFException("value of " + write.getTxId() + " is past the end of the index log");
+            }
+        }
+        return value.array();
+    }
+
+    public int getTransactionCount() {
+        return txs.size();
+    }
+
+    /**
+     * Index the next block. It is visible to lookups right away and durable after the next {@link #commit}.
+     */
+    synchronized void add(BlockInfo block) throws IOException {
+        if (block.getBlockNumber() != next) {
+            throw new IllegalArgumentException("expected block " + next + " but got " + block.getBlockNumber());
+        }
+
+        try {
+            int position = 0;
+            for (BlockInfo.EnvelopeInfo envelopeInfo : block.getEnvelopeInfos()) {
+                String txId = envelopeInfo.getTransactionID() == null ? "" : envelopeInfo.getTransactionID();
+                if (!txId.isEmpty()) {
+                    TxLocation location = new TxLocation(block.getBlockNumber(), position, envelopeInfo.getValidationCode());
+                    append(txRecord(txId, location));
+                    txs.putIfAbsent(txId, location);
+                }
+                if (envelopeInfo.getType() == TRANSACTION_ENVELOPE && envelopeInfo.isValid()) {
+                    addWrites(block.getBlockNumber(), position, txId, (BlockInfo.TransactionEnvelopeInfo) envelopeInfo);
+                }
+                position++;
+            }
+        } catch (InvalidProtocolBufferRuntimeException e) {
+            throw new IOException("cannot decode block " + block.getBlockNumber(), e.getCause());
+        }
+        next = block.getBlockNumber() + 1;
+    }
+
+    /**
+     * Force the log to disk and move the checkpoint past the blocks added so far.
+     */
+    synchronized void commit() throws IOException {
+        log.flush();
+        file.getChannel().force(false);
+        Storage.saveCounter(getCounterName(), next);
+    }
+
+    /**
+     * Drop what was added since the last commit, after a block could only be indexed in part.
+     */
+    synchronized void reload() throws IOException {
+        if (log != null) {
+            log.close();
+            reader.close();
+            log = null;
+        }
+        open();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            commit();
+            log.close();
+            reader.close();
+            log = null;
+        }
+    }
+
+    private void addWrites(long blockNumber, int position, String txId,
+                           BlockInfo.TransactionEnvelopeInfo envelopeInfo) throws IOException {
+        for (BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo actionInfo : envelopeInfo.getTransactionActionInfos()) {
+            TxReadWriteSetInfo rwset = actionInfo.getTxReadWriteSet();
+            if (rwset == null) {
+                continue;
+            }
+            for (TxReadWriteSetInfo.NsRwsetInfo nsRwsetInfo : rwset.getNsRwsetInfos()) {
+                String namespace = nsRwsetInfo.getNamespace();
+                for (KvRwset.KVWrite write : nsRwsetInfo.getRwset().getWritesList()) {
+                    byte[] value = write.getValue().toByteArray();
+                    byte[] record = writeRecord(blockNumber, position, txId, namespace, write.getKey(),
+                            write.getIsDelete(), value);
+                    long start = append(record);
+                    addWrite(namespace, write.getKey(), new KeyWrite(blockNumber, position, txId, write.getIsDelete(),
+                            valueOffset(start, record, value.length), value.length));
+                }
+            }
+        }
+    }
+
+    private void addWrite(String namespace, String key, KeyWrite keyWrite) {
+        List<KeyWrite> history = writes.computeIfAbsent(namespaceKey(namespace, key), k -> new ArrayList<>(1));
+        synchronized (history) {
+            history.add(keyWrite);
+        }
+    }
+
+    /**
+     * @return offset of the record in the log
+     */
+    private long append(byte[] record) throws IOException {
+        long start = size;
+        log.writeInt(record.length);
+        log.write(record);
+        size += 4 + record.length;
+        return start;
+    }
+
+    /**
+     * @return false once a record at or after the checkpoint is reached
+     */
+    private boolean replay(byte[] record, long start, long checkpoint) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        long blockNumber = in.readLong();
+        if (blockNumber >= checkpoint) {
+            return false;
+        }
+        int position = in.readInt();
+        boolean legacy = type == LEGACY_TX || type == LEGACY_WRITE;
+        String txId = readString(in, legacy);
+        if (type == TX || type == LEGACY_TX) {
+            txs.putIfAbsent(txId, new TxLocation(blockNumber, position, in.readByte()));
+        } else {
+            String namespace = readString(in, legacy);
+            String key = readString(in, legacy);
+            boolean delete = in.readBoolean();
+            int length = in.readInt();
+            addWrite(namespace, key, new KeyWrite(blockNumber, position, txId, delete,
+                    valueOffset(start, record, length), length));
+        }
+        return true;
+    }
+
+    /**
+     * @return the next record or null at the end of the log or at a record cut short by a crash
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            byte[] record = new byte[in.readInt()];
+            in.readFully(record);
+            return record;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static byte[] txRecord(String txId, TxLocation location) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TX);
+        out.writeLong(location.getBlockNumber());
+        out.writeInt(location.getPosition());
+        writeString(out, txId);
+        out.writeByte(location.getValidationCode());
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The value goes last, so that it can be read back from the end of the record.
+     */
+    private static byte[] writeRecord(long blockNumber, int position, String txId, String namespace, String key,
+                                      boolean delete, byte[] value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(WRITE);
+        out.writeLong(blockNumber);
+        out.writeInt(position);
+        writeString(out, txId);
+        writeString(out, namespace);
+        writeString(out, key);
+        out.writeBoolean(delete);
+        out.writeInt(value.length);
+        out.write(value);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Length prefixed UTF-8, unlike writeUTF it takes keys of any length.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        Storage.writeBytes(out, value.getBytes(UTF_8));
+    }
+
+    private static String readString(DataInputStream in, boolean legacy) throws IOException {
+        return legacy ? in.readUTF() : new String(Storage.readBytes(in), UTF_8);
+    }
+
+    private static long valueOffset(long start, byte[] record, int valueLength) {
+        return start + 4 + record.length - valueLength;
+    }
+
+    private static String namespaceKey(String namespace, String key) {
+        return namespace + '\u0000' + key;
+    }
+
+    private String getCounterName() {
+        return "index-" + channelName;
+    }
+
+    public static class TxLocation {
+        private final long blockNumber;
+        private final int position;
+        private final byte validationCode;
+
+        TxLocation(long blockNumber, int position, byte validationCode) {
+            this.blockNumber = blockNumber;
+            this.position = position;
+            this.validationCode = validationCode;
+        }
+
+        public long getBlockNumber() {
+            return blockNumber;
+        }
+
+        /**
+         * @return index of the transaction's envelope in its block
+         */
+        public int getPosition() {
+            return position;
+        }
+
+        public byte getValidationCode() {
+            return validationCode;
+        }
+
+        public boolean isValid() {
+            return validationCode == 0;
+        }
+    }
+
+    public static class KeyWrite {
+        private final long blockNumber;
+        private final int position;
+        private final String txId;
+        private final boolean delete;
+        private final long valueOffset;
+        private final int valueLength;
+
+        KeyWrite(long blockNumber, int position, String txId, boolean delete, long valueOffset, int valueLength) {
+            this.blockNumber = blockNumber;
+            this.position = position;
+            this.txId = txId;
+            this.delete = delete;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+        }
+
+        public long getBlockNumber() {
+            return blockNumber;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        public String getTxId() {
+            return txId;
+        }
+
+        public boolean isDelete() {
+            return delete;
+        }
+
+        /**
+         * @return size of the value, which is read with {@link LedgerIndex#getValue}
+         */
+        public int getValueLength() {
+            return valueLength;
+        }
+    }
+}
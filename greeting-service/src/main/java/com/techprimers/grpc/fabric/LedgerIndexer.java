@@ -0,0 +1,125 @@
+package com.techprimers.grpc.fabric;
+
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a {@link LedgerIndex} up to date in the background. On start it catches up from the checkpoint with a
+ * block scan, then indexes the block events of the client's channels. Events that arrive out of order, are
+ * filtered or were dropped because the queue was full are covered by scanning the missing range, and when no
+ * event arrives for a poll interval the chain height is checked in case every event source is down.
+ */
+class LedgerIndexer {
+    private static final Logger log = LoggerFactory.getLogger(LedgerIndexer.class);
+    private static final int maxPendingEvents = 1024;
+    private static final int commitInterval = 256;
+
+    private final FabricClient client;
+    private final LedgerIndex index;
+    private final long pollMillis;
+    private final BlockingQueue<BlockEvent> events = new ArrayBlockingQueue<>(maxPendingEvents);
+    private final Thread thread = new Thread(this::run, "fabric-ledger-indexer");
+
+    private volatile AppUser appUser;
+
+    LedgerIndexer(FabricClient client, LedgerIndex index, Duration pollInterval) {
+        this.client = client;
+        this.index = index;
+        this.pollMillis = pollInterval.toMillis();
+        this.thread.setDaemon(true);
+    }
+
+    LedgerIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Registered as block listener on every channel of the client.
+     */
+    void onBlock(BlockEvent blockEvent) {
+        // a dropped event leaves a gap that the next event or poll scans
+        events.offer(blockEvent);
+    }
+
+    void start(AppUser appUser) throws Exception {
+        this.appUser = appUser;
+        index.open();
+        thread.start();
+    }
+
+    void stop() {
+        thread.interrupt();
+        try {
+            thread.join(pollMillis);
+            index.close();
+        } catch (Exception e) {
+            log.warn("Cannot close the ledger index: {}", e.getMessage());
+        }
+    }
+
+    private void run() {
+        boolean catchUp = true;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (catchUp) {
+                    scan(-1);
+                }
+                BlockEvent blockEvent = events.poll(pollMillis, TimeUnit.MILLISECONDS);
+                catchUp = blockEvent == null;
+                if (blockEvent != null) {
+                    index(blockEvent);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.warn("Ledger indexing stopped at block {}: {}", index.getNextBlock(), e.getMessage());
+                catchUp = true;
+                try {
+                    index.reload();
+                    Thread.sleep(pollMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception re) {
+                    log.error("Cannot reload the ledger index", re);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void index(BlockEvent blockEvent) throws Exception {
+        long number = blockEvent.getBlockNumber();
+        if (number < index.getNextBlock()) {
+            return; // already indexed, e.g. seen through another channel
+        }
+        if (blockEvent.isFiltered() || number > index.getNextBlock()) {
+            scan(number + 1);
+            return;
+        }
+        index.add(blockEvent);
+        index.commit();
+    }
+
+    /**
+     * Index the blocks from the checkpoint up to {@code to}, or up to the chain height when it is negative.
+     */
+    private void scan(long to) throws Exception {
+        long from = index.getNextBlock();
+        long scanned = client.scanBlocks(appUser, from, to, false, block -> {
+            index.add(block.getBlock());
+            if ((block.getNumber() + 1) % commitInterval == 0) {
+                index.commit();
+            }
+        });
+        if (scanned > 0) {
+            index.commit();
+            log.info("Indexed blocks {} to {}", from, index.getNextBlock() - 1);
+        }
+    }
+}
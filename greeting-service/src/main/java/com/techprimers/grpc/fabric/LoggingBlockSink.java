@@ -0,0 +1,118 @@
+package com.techprimers.grpc.fabric;
+
+import org.apache.commons.codec.binary.Hex;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.hyperledger.fabric.sdk.exception.InvalidProtocolBufferRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hyperledger.fabric.sdk.BlockInfo.EnvelopeType.TRANSACTION_ENVELOPE;
+
+/**
+ * Logs the scanned blocks at debug level, with their transactions and read write sets unless only headers
+ * were scanned.
+ */
+public class LoggingBlockSink implements BlockSink {
+    private static final Logger log = LoggerFactory.getLogger(LoggingBlockSink.class);
+
+    @Override
+    public void accept(ScannedBlock scanned) throws Exception {
+        if (!log.isDebugEnabled()) {
+            return;
+        }
+        log.debug(String.format("current block number %d from %s", scanned.getNumber(), scanned.getPeer()));
+        log.debug(String.format(" data hash: %s", Hex.encodeHexString(scanned.getDataHash())));
+        log.debug(String.format(" previous hash id: %s", Hex.encodeHexString(scanned.getPreviousHash())));
+        log.debug(String.format(" calculated block hash is %s", Hex.encodeHexString(scanned.getHash())));
+
+        BlockInfo block = scanned.getBlock();
+        if (block == null) {
+            return;
+        }
+        try {
+            log.debug(String.format(" has %d envelope count:", block.getEnvelopeCount()));
+            int i = 0;
+            for (BlockInfo.EnvelopeInfo envelopeInfo : block.getEnvelopeInfos()) {
+                ++i;
+
+                log.debug(String.format("  Transaction number %d has transaction id: %s", i, envelopeInfo.getTransactionID()));
+                log.debug(String.format("   channel id: %s", envelopeInfo.getChannelId()));
+                log.debug(String.format("   transaction timestamp: %tB %<te,  %<tY  %<tT %<Tp", envelopeInfo.getTimestamp()));
+                log.debug(String.format("   type id: %s", "" + envelopeInfo.getType()));
+                log.debug(String.format("   nonce : %s", "" + Hex.encodeHexString(envelopeInfo.getNonce())));
+                log.debug(String.format("   submitter mspid: %s", envelopeInfo.getCreator().getMspid()));
+
+                if (envelopeInfo.getType() == TRANSACTION_ENVELOPE) {
+                    BlockInfo.TransactionEnvelopeInfo transactionEnvelopeInfo = (BlockInfo.TransactionEnvelopeInfo) envelopeInfo;
+
+                    log.debug(String.format("   has %d actions", transactionEnvelopeInfo.getTransactionActionInfoCount()));
+                    log.debug(String.format("   isValid %b", transactionEnvelopeInfo.isValid()));
+                    log.debug(String.format("   validation code %d", transactionEnvelopeInfo.getValidationCode()));
+
+                    int j = 0;
+                    for (BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo transactionActionInfo : transactionEnvelopeInfo.getTransactionActionInfos()) {
+                        ++j;
+                        log.debug(String.format("    Transaction action %d", j));
+                        log.debug(String.format("    response status %d", transactionActionInfo.getResponseStatus()));
+                        log.debug(String.format("    response message bytes as string: %s",
+                                FabricClient.printableString(new String(transactionActionInfo.getResponseMessageBytes(), UTF_8))));
+                        log.debug(String.format("    has %d endorsements", transactionActionInfo.getEndorsementsCount()));
+
+                        for (int n = 0; n < transactionActionInfo.getEndorsementsCount(); ++n) {
+                            BlockInfo.EndorserInfo endorserInfo = transactionActionInfo.getEndorsementInfo(n);
+                            log.debug(String.format("     Endorser %d endorser: mspid %s ", n, endorserInfo.getMspid()));
+                        }
+                        log.debug(String.format("    has %d chaincode input arguments", transactionActionInfo.getChaincodeInputArgsCount()));
+                        for (int z = 0; z < transactionActionInfo.getChaincodeInputArgsCount(); ++z) {
+                            log.debug(String.format("      has chaincode input argument %d is: %s", z,
+                                    FabricClient.printableString(new String(transactionActionInfo.getChaincodeInputArgs(z), UTF_8))));
+                        }
+
+                        log.debug(String.format("    proposal response status: %d",
+                                transactionActionInfo.getProposalResponseStatus()));
+                        log.debug(String.format("    proposal response payload: %s",
+                                FabricClient.printableString(new String(transactionActionInfo.getProposalResponsePayload()))));
+
+                        String chaincodeIDName = transactionActionInfo.getChaincodeIDName();
+                        String chaincodeIDVersion = transactionActionInfo.getChaincodeIDVersion();
+                        String chaincodeIDPath = transactionActionInfo.getChaincodeIDPath();
+                        log.debug(String.format("    proposal chaincodeIDName: %s, chaincodeIDVersion: %s,  chaincodeIDPath: %s ",
+                                chaincodeIDName, chaincodeIDVersion, chaincodeIDPath));
+
+                        TxReadWriteSetInfo rwsetInfo = transactionActionInfo.getTxReadWriteSet();
+                        if (null != rwsetInfo) {
+                            log.debug(String.format("    has %d name space read write sets", rwsetInfo.getNsRwsetCount()));
+
+                            for (TxReadWriteSetInfo.NsRwsetInfo nsRwsetInfo : rwsetInfo.getNsRwsetInfos()) {
+                                final String namespace = nsRwsetInfo.getNamespace();
+                                KvRwset.KVRWSet rws = nsRwsetInfo.getRwset();
+
+                                int rs = -1;
+                                for (KvRwset.KVRead readList : rws.getReadsList()) {
+                                    rs++;
+
+                                    log.debug(String.format("      Namespace %s read set %d key %s  version [%d:%d]", namespace, rs, readList.getKey(),
+                                            readList.getVersion().getBlockNum(), readList.getVersion().getTxNum()));
+
+                                }
+
+                                rs = -1;
+                                for (KvRwset.KVWrite writeList : rws.getWritesList()) {
+                                    rs++;
+                                    String valAsString = FabricClient.printableString(new String(writeList.getValue().toByteArray(), UTF_8));
+
+                                    log.debug(String.format("      Namespace %s write set %d key %s has value '%s' ", namespace, rs, writeList.getKey(), valAsString));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (InvalidProtocolBufferRuntimeException e) {
+            throw e.getCause();
+        }
+    }
+}
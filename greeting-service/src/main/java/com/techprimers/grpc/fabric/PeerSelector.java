@@ -0,0 +1,365 @@
+package com.techprimers.grpc.fabric;
+
+import org.hyperledger.fabric.sdk.ChaincodeResponse;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks the peers a proposal or query is sent to from their recent behaviour. Each peer keeps exponentially weighted
+ * moving averages of its proposal latency and error rate, and a window of its latest latencies for the p95.
+ * Peers are ranked by latency scaled by 1 + {@value #errorPenalty} times the error rate; a peer that was not
+ * asked recently ranks first so that it gets measured again.
+ * <p>
+ * {@link #send} asks the best peers and, when they take longer than their p95, sends a new proposal to the
+ * next best ones. The first set to answer successfully is used and the other proposal is never ordered. When
+ * the best peers fail or do not answer, the next best ones are asked right away, hedging or not.
+ * A set of peers answers as one call, so each of its peers is charged the latency of the whole set. Only peers
+ * that did not answer count as errors, a chaincode error is the same on every peer.
+ * <p>
+ * Attempts run on a bounded pool; when it is busy the proposal is sent from the calling thread without a hedge.
+ */
+class PeerSelector {
+    private static final double alpha = 0.2;
+    private static final double errorPenalty = 10;
+    private static final int window = 128;
+    private static final int minSamples = 20;
+    private static final long staleNanos = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * Sends a new proposal to the given peers, it is called again for a hedged attempt.
+     */
+    interface Proposal {
+        Collection<ProposalResponse> send(Collection<Peer> peers) throws Exception;
+    }
+
+    private final boolean hedge;
+    private final Map<String, PeerStats> stats = new ConcurrentHashMap<>();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong failovers = new AtomicLong();
+    private final ExecutorService executor;
+
+    /**
+     * @param threads max attempts running at once, each hedged proposal takes up to two
+     */
+    PeerSelector(boolean hedge, int threads) {
+        this.hedge = hedge;
+        this.executor = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "fabric-hedge");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Send the proposal to the {@code count} best candidates, all of them when it is not positive, and hedge
+     * to the next {@code count} when they are slow. Every peer asked is timed under {@code phase}.
+     */
+    Collection<ProposalResponse> send(List<Peer> candidates, int count, String phase, Proposal proposal)
+            throws Exception {
+        List<Peer> ranked = rank(candidates);
+        int n = count <= 0 ? ranked.size() : Math.min(count, ranked.size());
+        List<Peer> primary = ranked.subList(0, n);
+        List<Peer> backup = ranked.size() >= 2 * n ? ranked.subList(n, 2 * n) : Collections.emptyList();
+        long delay = hedge && !backup.isEmpty() ? getHedgeDelay(primary) : -1;
+        CompletableFuture<Collection<ProposalResponse>> first = delay < 0 ? null : attempt(primary, phase, proposal);
+        if (first == null) {
+            return sendWithFailover(primary, backup, phase, proposal);
+        }
+
+        try {
+            Collection<ProposalResponse> responses = first.get(delay, TimeUnit.NANOSECONDS);
+            if (isAnswered(responses)) {
+                return responses;
+            }
+            failovers.incrementAndGet();
+            return timed(backup, phase, proposal);
+        } catch (TimeoutException e) {
+            // hedged below
+        } catch (ExecutionException e) {
+            failovers.incrementAndGet();
+            return timed(backup, phase, proposal);
+        }
+
+        CompletableFuture<Collection<ProposalResponse>> second = attempt(backup, phase, proposal);
+        try {
+            if (second == null) {
+                return first.get();
+            }
+            hedges.incrementAndGet();
+            return firstSuccessful(first, second).get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * @return the peers, best first
+     */
+    List<Peer> rank(Collection<Peer> peers) {
+        long now = System.nanoTime();
+        List<Peer> ranked = new ArrayList<>(peers);
+        Map<Peer, Double> scores = new IdentityHashMap<>();
+        for (Peer peer : ranked) {
+            scores.put(peer, getStats(peer.getName()).score(now));
+        }
+        ranked.sort(Comparator.comparingDouble(scores::get));
+        return ranked;
+    }
+
+    void record(String peer, long nanos, boolean success) {
+        getStats(peer).record(nanos, success, System.nanoTime());
+    }
+
+    long getHedges() {
+        return hedges.get();
+    }
+
+    long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    long getFailovers() {
+        return failovers.get();
+    }
+
+    /**
+     * @return the peer's average proposal latency in milliseconds
+     */
+    double getLatencyMillis(String peer) {
+        return getStats(peer).getLatency() / 1e6;
+    }
+
+    /**
+     * @return the peer's average share of failed proposals
+     */
+    double getErrorRate(String peer) {
+        return getStats(peer).getErrors();
+    }
+
+    void close() {
+        executor.shutdown();
+    }
+
+    private PeerStats getStats(String peer) {
+        PeerStats peerStats = stats.get(peer);
+        if (peerStats == null) {
+            PeerStats created = new PeerStats();
+            peerStats = stats.putIfAbsent(peer, created);
+            if (peerStats == null) {
+                peerStats = created;
+                FabricMetrics.bindPeer(this, peer);
+            }
+        }
+        return peerStats;
+    }
+
+    /**
+     * @return the longest p95 of the peers, -1 until all of them have enough samples
+     */
+    private long getHedgeDelay(List<Peer> peers) {
+        long delay = 0;
+        for (Peer peer : peers) {
+            long p95 = getStats(peer.getName()).getP95();
+            if (p95 < 0) {
+                return -1;
+            }
+            delay = Math.max(delay, p95);
+        }
+        return delay;
+    }
+
+    private Collection<ProposalResponse> timed(List<Peer> peers, String phase, Proposal proposal) throws Exception {
+        long started = System.nanoTime();
+        Collection<ProposalResponse> responses;
+        try {
+            responses = proposal.send(peers);
+        } catch (Exception e) {
+            long elapsed = System.nanoTime() - started;
+            for (Peer peer : peers) {
+                record(peer.getName(), elapsed, false);
+                FabricMetrics.recordPeer(peer.getName(), phase, elapsed, false);
+            }
+            throw e;
+        }
+
+        long elapsed = System.nanoTime() - started;
+        for (ProposalResponse response : responses) {
+            if (response.getPeer() != null) {
+                boolean answered = response.getProposalResponse() != null;
+                record(response.getPeer().getName(), elapsed, answered);
+                FabricMetrics.recordPeer(response.getPeer().getName(), phase, elapsed, answered);
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Send from the calling thread, asking the backup peers when the primary ones fail or do not answer.
+     */
+    private Collection<ProposalResponse> sendWithFailover(List<Peer> primary, List<Peer> backup, String phase,
+                                                          Proposal proposal) throws Exception {
+        Collection<ProposalResponse> responses;
+        try {
+            responses = timed(primary, phase, proposal);
+        } catch (Exception e) {
+            if (backup.isEmpty()) {
+                throw e;
+            }
+            responses = null;
+        }
+
+        if (backup.isEmpty() || (responses != null && isAnswered(responses))) {
+            return responses;
+        }
+        failovers.incrementAndGet();
+        return timed(backup, phase, proposal);
+    }
+
+    /**
+     * @return the running attempt, null when the pool is busy
+     */
+    private CompletableFuture<Collection<ProposalResponse>> attempt(List<Peer> peers, String phase, Proposal proposal) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return timed(peers, phase, proposal);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the first attempt to endorse successfully, or the outcome of the primary one when both fail
+     */
+    private CompletableFuture<Collection<ProposalResponse>> firstSuccessful(
+            CompletableFuture<Collection<ProposalResponse>> primary,
+            CompletableFuture<Collection<ProposalResponse>> backup) {
+        CompletableFuture<Collection<ProposalResponse>> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(2);
+        for (CompletableFuture<Collection<ProposalResponse>> attempt : Arrays.asList(primary, backup)) {
+            attempt.whenComplete((responses, error) -> {
+                if (error == null && isSuccess(responses)) {
+                    if (result.complete(responses) && attempt == backup) {
+                        hedgeWins.incrementAndGet();
+                    }
+                } else if (pending.decrementAndGet() == 0) {
+                    primary.whenComplete((r, e) -> {
+                        if (e != null) {
+                            result.completeExceptionally(e);
+                        } else {
+                            result.complete(r);
+                        }
+                    });
+                }
+            });
+        }
+        return result;
+    }
+
+    private static boolean isSuccess(Collection<ProposalResponse> responses) {
+        for (ProposalResponse response : responses) {
+            if (!isSuccess(response)) {
+                return false;
+            }
+        }
+        return !responses.isEmpty();
+    }
+
+    /**
+     * @return whether every peer asked sent a proposal response, even a chaincode error
+     */
+    private static boolean isAnswered(Collection<ProposalResponse> responses) {
+        for (ProposalResponse response : responses) {
+            if (response.getProposalResponse() == null) {
+                return false;
+            }
+        }
+        return !responses.isEmpty();
+    }
+
+    private static boolean isSuccess(ProposalResponse response) {
+        return response.getStatus() == ChaincodeResponse.Status.SUCCESS;
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+                ? e.getCause().getCause() : e.getCause();
+        return cause instanceof Exception ? (Exception) cause : e;
+    }
+
+    private static class PeerStats {
+        private final long[] recent = new long[window];
+        private double latency;
+        private double errors;
+        private long samples;
+        private long calls;
+        private long lastCall;
+        private long p95 = -1;
+
+        synchronized void record(long nanos, boolean success, long now) {
+            errors = calls == 0 ? (success ? 0 : 1) : errors + alpha * ((success ? 0 : 1) - errors);
+            calls++;
+            lastCall = now;
+            if (!success) {
+                return;
+            }
+
+            latency = samples == 0 ? nanos : latency + alpha * (nanos - latency);
+            recent[(int) (samples % window)] = nanos;
+            samples++;
+            if (samples >= minSamples && (samples == minSamples || samples % 16 == 0)) {
+                long[] sorted = Arrays.copyOf(recent, (int) Math.min(samples, window));
+                Arrays.sort(sorted);
+                p95 = sorted[(int) Math.ceil(sorted.length * 0.95) - 1];
+            }
+        }
+
+        synchronized double score(long now) {
+            if (calls == 0 || now - lastCall > staleNanos) {
+                return 0;
+            }
+            if (samples == 0) {
+                return Double.MAX_VALUE; // failed every time
+            }
+            return Math.max(latency, 1) * (1 + errorPenalty * errors);
+        }
+
+        synchronized long getP95() {
+            return p95;
+        }
+
+        synchronized double getLatency() {
+            return latency;
+        }
+
+        synchronized double getErrors() {
+            return errors;
+        }
+    }
+}
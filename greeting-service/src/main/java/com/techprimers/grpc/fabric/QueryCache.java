@@ -0,0 +1,336 @@
+package com.techprimers.grpc.fabric;
+
+import com.google.protobuf.ByteString;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of chaincode query payloads, invalidated from committed blocks.
+ * <p>
+ * With {@link Invalidation#BLOCK} every new block drops the whole cache. With {@link Invalidation#KEYS} an
+ * entry remembers the keys and key ranges its query read (taken from the proposal response read set) and is
+ * only dropped when a valid transaction in a block writes one of them. A query that recorded no reads (a rich
+ * query, or one over an empty range) is dropped by any write to the namespace. A query that overlapped with a
+ * block or a local commit is not cached, so an entry is never older than the ledger it was read from.
+ * <p>
+ * A query is also only cached when every peer that answered it had already reported, before the query was
+ * sent, the newest block this client has seen through events or its own commits. A peer that is behind
+ * would otherwise answer from before a write this client already knows about, and no later block would
+ * drop that answer.
+ */
+public class QueryCache {
+    public enum Invalidation { BLOCK, KEYS }
+
+    private final String namespace;
+    private final int maxEntries;
+    private final Invalidation invalidation;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long generation = 0;
+    private long nextBlock = -1;
+    /** height a peer must have reached for its answers to be cached */
+    private long requiredHeight = -1;
+    /** heights reported by each event source, which are named after their peer */
+    private final Map<String, Long> heights = new HashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    QueryCache(String namespace, int maxEntries, Invalidation invalidation) {
+        this.namespace = namespace;
+        this.maxEntries = maxEntries;
+        this.invalidation = invalidation;
+    }
+
+    boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    ByteString get(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.payload;
+    }
+
+    /**
+     * @return token to hand to {@link #put} once the query that missed has been answered
+     */
+    synchronized Token begin() {
+        return new Token(generation, Math.max(requiredHeight, nextBlock), new HashMap<>(heights));
+    }
+
+    void put(String key, ByteString payload, Collection<ProposalResponse> responses, Token token) {
+        if (!token.isCaughtUp(responses)) {
+            return;
+        }
+        Entry entry = new Entry(payload);
+        if (invalidation == Invalidation.KEYS && !readSetOf(responses, entry)) {
+            // without a read set we cannot tell which writes affect the entry
+            return;
+        }
+
+        synchronized (this) {
+            if (token.generation != generation) {
+                return;
+            }
+            entries.put(key, entry);
+
+            Iterator<Entry> it = entries.values().iterator();
+            while (entries.size() > maxEntries && it.hasNext()) {
+                it.next();
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Drop entries affected by a transaction this client just committed, ahead of its block event.
+     *
+     * @param peer        event source that reported the commit, null when it is not known
+     * @param blockNumber block the transaction went into, -1 when it is not known
+     */
+    void committed(Collection<ProposalResponse> responses, String peer, long blockNumber) {
+        Set<String> writes = new HashSet<>();
+        boolean known = invalidation == Invalidation.KEYS && writeSetOf(responses, writes);
+
+        synchronized (this) {
+            reported(peer, blockNumber);
+            requiredHeight = Math.max(requiredHeight, blockNumber + 1);
+            generation++;
+            if (known) {
+                invalidate(writes);
+            } else {
+                clear();
+            }
+        }
+    }
+
+    void onBlock(BlockEvent blockEvent) {
+        Set<String> writes = new HashSet<>();
+        boolean known = invalidation == Invalidation.KEYS && !blockEvent.isFiltered() && writeSetOf(blockEvent, writes);
+
+        String source = sourceOf(blockEvent);
+        synchronized (this) {
+            long number = blockEvent.getBlockNumber();
+            reported(source, number);
+            if (number < nextBlock) {
+                return; // already seen through another event source
+            }
+            boolean gap = nextBlock >= 0 && number > nextBlock;
+            nextBlock = number + 1;
+            generation++;
+
+            if (known && !gap) {
+                invalidate(writes);
+            } else {
+                clear();
+            }
+        }
+    }
+
+    /**
+     * @return name of the peer or event hub that delivered the block, null when neither is known
+     */
+    static String sourceOf(BlockEvent blockEvent) {
+        if (blockEvent.getPeer() != null) {
+            return blockEvent.getPeer().getName();
+        }
+        return blockEvent.getEventHub() == null ? null : blockEvent.getEventHub().getName();
+    }
+
+    private void reported(String peer, long blockNumber) {
+        if (peer != null && blockNumber >= 0) {
+            heights.merge(peer, blockNumber + 1, Math::max);
+        }
+    }
+
+    private void invalidate(Set<String> writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isAffectedBy(writes)) {
+                it.remove();
+                invalidations.increment();
+            }
+        }
+    }
+
+    private void clear() {
+        invalidations.add(entries.size());
+        entries.clear();
+    }
+
+    private boolean readSetOf(Collection<ProposalResponse> responses, Entry entry) {
+        try {
+            TxReadWriteSetInfo rwset = responses.iterator().next().getChaincodeActionResponseReadWriteSetInfo();
+            if (rwset == null) {
+                return false;
+            }
+            for (TxReadWriteSetInfo.NsRwsetInfo nsRwsetInfo : rwset.getNsRwsetInfos()) {
+                if (!namespace.equals(nsRwsetInfo.getNamespace())) {
+                    continue;
+                }
+                KvRwset.KVRWSet rws = nsRwsetInfo.getRwset();
+                for (KvRwset.KVRead read : rws.getReadsList()) {
+                    entry.keys.add(read.getKey());
+                }
+                for (KvRwset.RangeQueryInfo range : rws.getRangeQueriesInfoList()) {
+                    entry.ranges.add(new String[]{range.getStartKey(), range.getEndKey()});
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private boolean writeSetOf(Collection<ProposalResponse> responses, Set<String> writes) {
+        try {
+            TxReadWriteSetInfo rwset = responses.iterator().next().getChaincodeActionResponseReadWriteSetInfo();
+            return rwset != null && addWrites(rwset, writes);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private boolean writeSetOf(BlockEvent blockEvent, Set<String> writes) {
+        try {
+            for (BlockEvent.TransactionEvent transactionEvent : blockEvent.getTransactionEvents()) {
+                if (!transactionEvent.isValid()) {
+                    continue;
+                }
+                for (BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo actionInfo
+                        : transactionEvent.getTransactionActionInfos()) {
+                    TxReadWriteSetInfo rwset = actionInfo.getTxReadWriteSet();
+                    if (rwset != null && !addWrites(rwset, writes)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private boolean addWrites(TxReadWriteSetInfo rwset, Set<String> writes) {
+        try {
+            for (TxReadWriteSetInfo.NsRwsetInfo nsRwsetInfo : rwset.getNsRwsetInfos()) {
+                if (!namespace.equals(nsRwsetInfo.getNamespace())) {
+                    continue;
+                }
+                for (KvRwset.KVWrite write : nsRwsetInfo.getRwset().getWritesList()) {
+                    writes.add(write.getKey());
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    static final class Token {
+        private final long generation;
+        private final long requiredHeight;
+        private final Map<String, Long> heights;
+
+        private Token(long generation, long requiredHeight, Map<String, Long> heights) {
+            this.generation = generation;
+            this.requiredHeight = requiredHeight;
+            this.heights = heights;
+        }
+
+        /**
+         * @return whether every answering peer had reported the required height when the token was taken
+         */
+        private boolean isCaughtUp(Collection<ProposalResponse> responses) {
+            if (responses.isEmpty()) {
+                return false;
+            }
+            for (ProposalResponse response : responses) {
+                Long height = response.getPeer() == null ? null : heights.get(response.getPeer().getName());
+                if (height == null || height < requiredHeight) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Entry {
+        private final ByteString payload;
+        private final Set<String> keys = new HashSet<>();
+        private final List<String[]> ranges = new ArrayList<>();
+
+        private Entry(ByteString payload) {
+            this.payload = payload;
+        }
+
+        private boolean isAffectedBy(Set<String> writes) {
+            if (keys.isEmpty() && ranges.isEmpty()) {
+                return true; // nothing recorded to match the writes against
+            }
+            for (String write : writes) {
+                if (keys.contains(write)) {
+                    return true;
+                }
+                for (String[] range : ranges) {
+                    // range reads are [start, end), an empty bound is open
+                    if ((range[0].isEmpty() || write.compareTo(range[0]) >= 0)
+                            && (range[1].isEmpty() || write.compareTo(range[1]) < 0)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.techprimers.grpc.fabric;
+
+import org.hyperledger.fabric.sdk.BlockInfo;
+
+/**
+ * One block of a {@link BlockScanner} scan, with the header hash already calculated.
+ */
+public class ScannedBlock {
+    private final long number;
+    private final byte[] previousHash;
+    private final byte[] dataHash;
+    private final byte[] hash;
+    private final String peer;
+    private final BlockInfo block;
+
+    ScannedBlock(long number, byte[] previousHash, byte[] dataHash, byte[] hash, String peer, BlockInfo block) {
+        this.number = number;
+        this.previousHash = previousHash;
+        this.dataHash = dataHash;
+        this.hash = hash;
+        this.peer = peer;
+        this.block = block;
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    public byte[] getPreviousHash() {
+        return previousHash;
+    }
+
+    public byte[] getDataHash() {
+        return dataHash;
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    /**
+     * @return name of the peer the block was read from
+     */
+    public String getPeer() {
+        return peer;
+    }
+
+    /**
+     * @return the block with its envelopes, null when only headers were scanned
+     */
+    public BlockInfo getBlock() {
+        return block;
+    }
+}
@@ -1,77 +1,261 @@
 package com.techprimers.grpc.fabric;
 
+import org.hyperledger.fabric.sdk.Enrollment;
+import org.hyperledger.fabric.sdk.identity.X509Enrollment;
+
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.*;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 public class Storage {
     private static String usersDir = "users";
     private static String keysDir = "keys";
+    private static String channelsDir = "channels";
+    private static String countersDir = "counters";
+    private static String indexDir = "index";
+    private static String archiveDir = "archive";
     private static String workDir = System.getProperty("user.dir");
 
+    private static final int userFormatVersion = 1;
+    /** user names end up in file paths, so they are limited to a conservative set of characters */
+    private static final Pattern userNamePattern = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._@-]{0,63}");
+    /** users loaded or saved so far, keyed by msp id and name */
+    private static final Map<String, AppUser> users = new ConcurrentHashMap<>();
+    /** parsed voting keys and public key hashes by user name, dropped by {@link #clearKeys} */
+    private static final Map<String, RSAPublicKey> pubKeys = new ConcurrentHashMap<>();
+    private static final Map<String, RSAPrivateKey> privKeys = new ConcurrentHashMap<>();
+    private static final Map<String, byte[]> pubKeyHashes = new ConcurrentHashMap<>();
+    /** guards generating, loading and clearing the key files of a user */
+    private static final Map<String, Object> keyLocks = new ConcurrentHashMap<>();
+
     private static String getUsersDir() {
         return usersDir;
     }
 
+    /**
+     * @throws IllegalArgumentException when the name is not fit for a file name or a CA enrollment id
+     */
+    public static void checkUserName(String userName) {
+        if (userName == null || !userNamePattern.matcher(userName).matches()) {
+            throw new IllegalArgumentException("invalid user name " + userName);
+        }
+    }
+
     private static String getUserDir(String msp, String userName) {
+        checkUserName(userName);
         return getWorkDir() + File.separator + getUsersDir() + File.separator + msp + File.separator + userName;
     }
 
     private static String getUserKeysDir(String userName) {
+        checkUserName(userName);
         return getWorkDir() + File.separator + getUsersDir() + File.separator + userName + File.separator
                 + getKeysDir();
     }
 
+    private static File getChannelFile(String channelName) {
+        return new File(getWorkDir() + File.separator + getChannelsDir() + File.separator + channelName + ".channel");
+    }
+
+    /**
+     * @return user stored with Java serialization before the compact format
+     */
     public static AppUser load(FileInputStream fileInputStream) throws IOException, ClassNotFoundException {
         ObjectInputStream decoder = new ObjectInputStream(fileInputStream);
         return (AppUser) decoder.readObject();
     }
 
+    /**
+     * Store an X.509 user in the compact format and cache it.
+     */
     public static void save(AppUser appUser) throws IOException {
-        File dir = new File(getWorkDir());
-        if (!dir.exists()) {
-            boolean created = dir.mkdirs();
-            if (!created) {
-                throw new IOException("cannot create directory");
+        File dir = new File(getUserDir(appUser.getMspId(), appUser.getName()));
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("cannot create directory");
+        }
+
+        Path tmp = Paths.get(dir.getAbsolutePath(), appUser.getName() + ".id.tmp");
+        Files.write(tmp, encodeUser(appUser));
+        Files.move(tmp, getUserFile(appUser.getMspId(), appUser.getName()).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        users.put(getUserKey(appUser.getMspId(), appUser.getName()), appUser);
+    }
+
+    /**
+     * Load a user from the cache, its compact file, or once from a Java serialized file which is then migrated.
+     */
+    public static AppUser load(String mspId, String userName) throws IOException, ClassNotFoundException {
+        String key = getUserKey(mspId, userName);
+        AppUser appUser = users.get(key);
+        if (appUser != null) {
+            return appUser;
+        }
+
+        File file = getUserFile(mspId, userName);
+        if (file.isFile()) {
+            appUser = decodeUser(Files.readAllBytes(file.toPath()));
+        } else {
+            File legacy = getLegacyUserFile(mspId, userName);
+            try (FileInputStream inputStream = new FileInputStream(legacy)) {
+                appUser = load(inputStream);
             }
+            save(appUser);
+            legacy.delete();
+        }
+
+        AppUser cached = users.putIfAbsent(key, appUser);
+        return cached == null ? appUser : cached;
+    }
+
+    public static boolean exist(String mspId, String userName) {
+        return users.containsKey(getUserKey(mspId, userName)) || getUserFile(mspId, userName).isFile()
+                || getLegacyUserFile(mspId, userName).isFile();
+    }
+
+    /**
+     * Drop the cached users, so that the next load reads their files.
+     */
+    static void clearUsers() {
+        users.clear();
+    }
+
+    private static String getUserKey(String mspId, String userName) {
+        return mspId + "/" + userName;
+    }
+
+    private static File getUserFile(String mspId, String userName) {
+        return new File(getUserDir(mspId, userName) + File.separator + userName + ".id");
+    }
+
+    private static File getLegacyUserFile(String mspId, String userName) {
+        return new File(getUserDir(mspId, userName) + File.separator + userName);
+    }
+
+    /**
+     * Version, name, affiliation, msp id, account, roles, certificate PEM and PKCS#8 private key.
+     */
+    private static byte[] encodeUser(AppUser appUser) throws IOException {
+        Enrollment enrollment = appUser.getEnrollment();
+        if (enrollment == null || enrollment.getCert() == null || enrollment.getKey() == null) {
+            throw new IOException("only users with an X.509 enrollment can be stored");
         }
 
-        File file = new File(getUserDir(appUser.getMspId(), appUser.getName()));
-        File usersDir = new File(getUsersDir());
-        if (!usersDir.exists()) {
-            usersDir.mkdirs();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(userFormatVersion);
+        out.writeUTF(appUser.getName());
+        writeNullable(out, appUser.getAffiliation());
+        writeNullable(out, appUser.getMspId());
+        writeNullable(out, appUser.getAccount());
+        Set<String> roles = appUser.getRoles();
+        out.writeInt(roles == null ? -1 : roles.size());
+        if (roles != null) {
+            for (String role : roles) {
+                out.writeUTF(role);
+            }
         }
-        if (!file.exists()) {
-            file.mkdirs();
+        writeBytes(out, enrollment.getCert().getBytes(StandardCharsets.UTF_8));
+        out.writeUTF(enrollment.getKey().getAlgorithm());
+        writeBytes(out, enrollment.getKey().getEncoded());
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static AppUser decodeUser(byte[] encoded) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        int version = in.readInt();
+        if (version != userFormatVersion) {
+            throw new IOException("unknown user format version " + version);
         }
-        file = new File(file.getAbsoluteFile() + "/" + appUser.getName());
-        if (!file.exists()) {
-            boolean created = file.createNewFile();
-            if (!created) {
-                throw new IOException("File cannot be created");
+
+        AppUser appUser = new AppUser();
+        appUser.setName(in.readUTF());
+        appUser.setAffiliation(readNullable(in));
+        appUser.setMspId(readNullable(in));
+        appUser.setAccount(readNullable(in));
+        int roleCount = in.readInt();
+        if (roleCount >= 0) {
+            Set<String> roles = new HashSet<>();
+            for (int i = 0; i < roleCount; i++) {
+                roles.add(in.readUTF());
             }
+            appUser.setRoles(roles);
+        }
+        String cert = new String(readBytes(in), StandardCharsets.UTF_8);
+        String algorithm = in.readUTF();
+        byte[] key = readBytes(in);
+        try {
+            // keys of the SDK's crypto suite report ECDSA, which the default providers only know as EC
+            KeyFactory kf = KeyFactory.getInstance("ECDSA".equals(algorithm) ? "EC" : algorithm);
+            appUser.setEnrollment(new X509Enrollment(kf.generatePrivate(new PKCS8EncodedKeySpec(key)), cert));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("cannot decode the key of " + appUser.getName(), e);
         }
+        return appUser;
+    }
 
-        save(appUser, file);
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
     }
 
-    public static AppUser load(String mspId, String userName) throws IOException, ClassNotFoundException {
-        File file = new File(getUserDir(mspId, userName) + File.separator + userName);
-        FileInputStream inputStream = new FileInputStream(file);
-        return load(inputStream);
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
     }
 
-    public static boolean exist(String mspId, String userName) {
-        File file = new File(getUserDir(mspId, userName) + File.separator + userName);
-        return file.exists();
+    static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        return value;
+    }
+
+    public static void saveIdemixEnrollment(String mspId, String userName, byte[] sealed) throws IOException {
+        File dir = new File(getUserDir(mspId, userName));
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("cannot create directory");
+        }
+
+        Path tmp = Paths.get(dir.getAbsolutePath(), userName + ".idemix.tmp");
+        Files.write(tmp, sealed);
+        Files.move(tmp, Paths.get(dir.getAbsolutePath(), userName + ".idemix"),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return sealed idemix credential or null if none was spilled
+     */
+    public static byte[] loadIdemixEnrollment(String mspId, String userName) throws IOException {
+        File file = new File(getUserDir(mspId, userName) + File.separator + userName + ".idemix");
+        if (!file.isFile()) {
+            return null;
+        }
+
+        return Files.readAllBytes(file.toPath());
+    }
+
+    public static void deleteIdemixEnrollment(String mspId, String userName) {
+        new File(getUserDir(mspId, userName) + File.separator + userName + ".idemix").delete();
     }
 
     public static KeyPair generateKeyPair(int bits) throws Exception {
@@ -81,32 +265,69 @@ public class Storage {
     }
 
     public static RSAPublicKey getPubKey(String userName) throws Exception {
-        String filePath = getUserKeysDir(userName);
-        File dir = new File(filePath);
-        if (!dir.exists()) {
-            boolean created = dir.mkdirs();
-            System.out.print(created);
-        }
-        String fullName = filePath + "/" + userName;
-        File file = new File(fullName + ".pub");
-        if (!file.isFile()) {
-            file.createNewFile();
-            KeyPair pair = generateKeyPair(512);
-            SaveKeys(pair, fullName);
+        RSAPublicKey cached = pubKeys.get(userName);
+        return cached != null ? cached : (RSAPublicKey) loadKeys(userName).getPublic();
+    }
+
+    public static RSAPrivateKey getPrivKey(String userName) throws Exception {
+        RSAPrivateKey cached = privKeys.get(userName);
+        return cached != null ? cached : (RSAPrivateKey) loadKeys(userName).getPrivate();
+    }
+
+    /**
+     * Load both halves of the user's key pair, generating it first if it is missing, under the user's lock so
+     * that concurrent first uses do not write two pairs and cache halves of different ones.
+     */
+    private static KeyPair loadKeys(String userName) throws Exception {
+        synchronized (getKeyLock(userName)) {
+            RSAPublicKey pubKey = pubKeys.get(userName);
+            RSAPrivateKey privKey = privKeys.get(userName);
+            if (pubKey != null && privKey != null) {
+                return new KeyPair(pubKey, privKey);
+            }
+
+            File dir = new File(getUserKeysDir(userName));
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("cannot create directory");
+            }
+            String fullName = dir.getPath() + File.separator + userName;
+            File pubFile = new File(fullName + ".pub");
+            File privFile = new File(fullName + ".key");
+            if (!pubFile.isFile() || !privFile.isFile()) {
+                SaveKeys(generateKeyPair(1024), fullName);
+                invalidateKeys(userName);
+            }
+
+            pubKey = loadPubKey(pubFile.getAbsolutePath());
+            privKey = loadPrivKey(privFile.getAbsolutePath());
+            pubKeys.put(userName, pubKey);
+            privKeys.put(userName, privKey);
+            return new KeyPair(pubKey, privKey);
         }
+    }
 
-        return loadPubKey(file.getAbsolutePath());
+    private static Object getKeyLock(String userName) {
+        return keyLocks.computeIfAbsent(userName, name -> new Object());
     }
 
-    public static RSAPrivateKey getPrivKey(String userName) throws Exception {
-        String filesPath = getUserKeysDir(userName) + "/" + userName;
-        File file = new File(filesPath + ".key");
-        if (!file.isFile()) {
-            KeyPair pair = generateKeyPair(1024);
-            SaveKeys(pair, filesPath);
+    /**
+     * @return SHA-256 of the user's encoded public key, the message of the voting signatures
+     */
+    public static byte[] getPubKeyHash(String userName) throws Exception {
+        byte[] cached = pubKeyHashes.get(userName);
+        if (cached != null) {
+            return cached;
         }
 
-        return loadPrivKey(file.getAbsolutePath());
+        byte[] hash = VotingCrypto.getHashOfPubKey(getPubKey(userName));
+        pubKeyHashes.put(userName, hash);
+        return hash;
+    }
+
+    private static void invalidateKeys(String userName) {
+        pubKeys.remove(userName);
+        privKeys.remove(userName);
+        pubKeyHashes.remove(userName);
     }
 
     public static void SaveKeys(KeyPair pair, String outFile) throws IOException {
@@ -143,6 +364,79 @@ public class Storage {
         objectOut.close();
     }
 
+    /**
+     * @return serialized channel snapshot or null if none was saved yet
+     */
+    public static byte[] loadChannel(String channelName) throws IOException {
+        File file = getChannelFile(channelName);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        return Files.readAllBytes(file.toPath());
+    }
+
+    public static void saveChannel(String channelName, byte[] snapshot) throws IOException {
+        File file = getChannelFile(channelName);
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("cannot create directory");
+        }
+
+        // write aside and rename so a crash never leaves a truncated snapshot behind
+        Path tmp = Paths.get(file.getAbsolutePath() + ".tmp");
+        Files.write(tmp, snapshot);
+        Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return last saved value of the counter or -1 if it was never saved
+     */
+    public static long loadCounter(String name) throws IOException {
+        File file = new File(getWorkDir() + File.separator + countersDir + File.separator + name);
+        if (!file.isFile()) {
+            return -1;
+        }
+
+        return Long.parseLong(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+    }
+
+    public static void saveCounter(String name, long value) throws IOException {
+        File dir = new File(getWorkDir() + File.separator + countersDir);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("cannot create directory");
+        }
+
+        Path tmp = Paths.get(dir.getAbsolutePath(), name + ".tmp");
+        Files.write(tmp, Long.toString(value).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, Paths.get(dir.getAbsolutePath(), name),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return log file of the channel's ledger index, its directory is created if missing
+     */
+    public static File getIndexFile(String channelName) throws IOException {
+        File dir = new File(getWorkDir() + File.separator + indexDir);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("cannot create directory");
+        }
+
+        return new File(dir, channelName + ".log");
+    }
+
+    /**
+     * @return block archive directory of the channel, created if missing
+     */
+    public static File getArchiveDir(String channelName) throws IOException {
+        File dir = new File(getWorkDir() + File.separator + archiveDir + File.separator + channelName);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("cannot create directory");
+        }
+
+        return dir;
+    }
+
     public static RSAPublicKey loadPubKey(String filePath)
             throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
         Path path = Paths.get(filePath);
@@ -168,9 +462,15 @@ public class Storage {
     }
 
     public static void clearKeys(String userName) {
-        File dir = new File(getUserKeysDir(userName));
-        for (File file : dir.listFiles()) {
-            file.delete();
+        synchronized (getKeyLock(userName)) {
+            // delete first, a load between invalidating and deleting would cache the old keys again
+            File[] files = new File(getUserKeysDir(userName)).listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            invalidateKeys(userName);
         }
     }
 
@@ -187,6 +487,14 @@ public class Storage {
         Storage.keysDir = keysDir;
     }
 
+    public static String getChannelsDir() {
+        return channelsDir;
+    }
+
+    public static void setChannelsDir(String channelsDir) {
+        Storage.channelsDir = channelsDir;
+    }
+
     public static String getWorkDir() {
         return workDir;
     }
@@ -0,0 +1,48 @@
+package com.techprimers.grpc.fabric;
+
+import com.google.protobuf.ByteString;
+
+public class TransactionResult {
+    private final String txId;
+    private final ByteString payload;
+    private final long blockNumber;
+    private final boolean committed;
+
+    public TransactionResult(String txId, ByteString payload, long blockNumber, boolean committed) {
+        this.txId = txId;
+        this.payload = payload;
+        this.blockNumber = blockNumber;
+        this.committed = committed;
+    }
+
+    public String getTxId() {
+        return txId;
+    }
+
+    public ByteString getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return number of the block the transaction was committed in, -1 if only ordering was awaited
+     */
+    public long getBlockNumber() {
+        return blockNumber;
+    }
+
+    /**
+     * @return false when the result was returned after ordering, before any commit event
+     */
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionResult{" +
+                "txId='" + txId + '\'' +
+                ", blockNumber=" + blockNumber +
+                ", committed=" + committed +
+                '}';
+    }
+}
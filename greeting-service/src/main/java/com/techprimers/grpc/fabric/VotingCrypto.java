@@ -0,0 +1,129 @@
+package com.techprimers.grpc.fabric;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.List;
+
+/**
+ * RSA math of voter registration and voting. The voter's public key hash is blinded with a random factor,
+ * blind signed by the voting key on chain, unblinded and checked here; ballots are signed with the voter's
+ * private key.
+ */
+public final class VotingCrypto {
+    private static final SecureRandom random = new SecureRandom();
+
+    private VotingCrypto() {
+    }
+
+    public static byte[] getHashOfPubKey(RSAPublicKey pubKey) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        return digest.digest(pubKey.getEncoded());
+    }
+
+    public static BigInteger getRandom(int numBytes) {
+        byte[] r = new byte[numBytes];
+        random.nextBytes(r);
+        return new BigInteger(1, r);
+    }
+
+    /**
+     *
+     * @param pubKey
+     * @param myPubKey
+     * @param R
+     * @return return m' based on user public key
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String getDataForBlindSign(RSAPublicKey pubKey, RSAPublicKey myPubKey, BigInteger R)
+            throws IOException, NoSuchAlgorithmException {
+        return getDataForBlindSign(pubKey, getHashOfPubKey(myPubKey), R);
+    }
+
+    /**
+     * @return m' for an already hashed user public key
+     */
+    public static String getDataForBlindSign(RSAPublicKey pubKey, byte[] hash, BigInteger R) {
+        BigInteger REncr = R.modPow(pubKey.getPublicExponent(), pubKey.getModulus());// R^e mod N
+        BigInteger hashedKey = new BigInteger(1, hash);
+        BigInteger multNum = REncr.multiply(hashedKey);// hash(m)*blindFactor
+
+        return multNum.toString(10);
+    }
+
+    /**
+     * @return m' for an already hashed user public key and a precomputed blinding factor
+     */
+    public static String getDataForBlindSign(byte[] hash, BlindingFactor factor) {
+        return factor.getEncrypted().multiply(new BigInteger(1, hash)).toString(10);
+    }
+
+    /**
+     * @return s from the blind signature s' of the voting key
+     */
+    public static BigInteger unblind(BigInteger signedData, RSAPublicKey pubKey, BigInteger R) {
+        BigInteger RInv = R.modInverse(pubKey.getModulus());
+        return signedData.multiply(RInv);
+    }
+
+    public static BigInteger unblind(BigInteger signedData, BlindingFactor factor) {
+        return signedData.multiply(factor.getInverse());
+    }
+
+    /**
+     * @return whether s is a signature of the voting key over the hash of the user public key
+     */
+    public static boolean verify(BigInteger signedKey, RSAPublicKey pubKey, RSAPublicKey myPubKey)
+            throws IOException, NoSuchAlgorithmException {
+        return verify(signedKey, pubKey, getHashOfPubKey(myPubKey));
+    }
+
+    public static boolean verify(BigInteger signedKey, RSAPublicKey pubKey, byte[] hash) {
+        BigInteger myHashForCheck = signedKey.modPow(pubKey.getPublicExponent(), pubKey.getModulus());
+        BigInteger hashB = new BigInteger(1, hash);
+        return hashB.compareTo(myHashForCheck) == 0;
+    }
+
+    /**
+     * Check many signatures of the voting key at once: when the product of the s^e equals the product of the
+     * hashes mod N, which takes a single exponentiation, all are accepted, otherwise each one is checked on its
+     * own. The product check catches faulty signatures, not ones crafted to cancel each other out; the chaincode
+     * checks every signature again at registration.
+     *
+     * @return per signature whether it signs the matching hash
+     */
+    public static boolean[] verifyAll(List<BigInteger> signedKeys, RSAPublicKey pubKey, List<byte[]> hashes) {
+        BigInteger n = pubKey.getModulus();
+        BigInteger signatures = BigInteger.ONE;
+        BigInteger messages = BigInteger.ONE;
+        for (int i = 0; i < signedKeys.size(); i++) {
+            signatures = signatures.multiply(signedKeys.get(i)).mod(n);
+            messages = messages.multiply(new BigInteger(1, hashes.get(i))).mod(n);
+        }
+
+        boolean[] valid = new boolean[signedKeys.size()];
+        boolean all = signatures.modPow(pubKey.getPublicExponent(), n).equals(messages);
+        for (int i = 0; i < valid.length; i++) {
+            valid[i] = all || verify(signedKeys.get(i), pubKey, hashes.get(i));
+        }
+        return valid;
+    }
+
+    /**
+     * @return hash of the user public key signed with the matching private key
+     */
+    public static BigInteger sign(RSAPrivateKey myPrivKey, RSAPublicKey myPubKey)
+            throws IOException, NoSuchAlgorithmException {
+        return sign(myPrivKey, getHashOfPubKey(myPubKey));
+    }
+
+    public static BigInteger sign(RSAPrivateKey myPrivKey, byte[] hash) {
+        BigInteger hashB = new BigInteger(1, hash);
+        return hashB.modPow(myPrivKey.getPrivateExponent(), myPrivKey.getModulus());
+    }
+}
@@ -0,0 +1,130 @@
+package com.techprimers.grpc.service;
+
+import com.techprimers.grpc.CarPage;
+import com.techprimers.grpc.CarRecord;
+import com.techprimers.grpc.fabric.AppUser;
+import com.techprimers.grpc.fabric.FabricClient;
+import com.techprimers.grpc.fabric.FabricClientSingleton;
+import com.techprimers.grpc.fabric.Storage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out CAR keys without locking the caller. Sequence numbers come from a lease of
+ * {@code workload.keys.lease-size} numbers whose end is persisted before the first of them is used, so a
+ * restart continues after the last lease instead of reusing keys. Each service instance owns the numbers
+ * {@code n * instance-count + instance-index}, which keeps instances from colliding without coordination.
+ * At startup the sequence is also moved past the highest CAR key already on the ledger, giving up after
+ * {@code workload.keys.seed-timeout} seconds so a slow or unreachable peer cannot hold up startup.
+ */
+@Component
+public class CarKeyAllocator {
+    private static final Logger log = LoggerFactory.getLogger(CarKeyAllocator.class);
+
+    private static final String prefix = "CAR";
+    private static final long firstKey = 100;
+
+    @Autowired
+    private FabricClientSingleton fabricClientSingleton;
+
+    @Value("${workload.keys.lease-size:1000}")
+    private int leaseSize;
+
+    @Value("${workload.keys.instance-index:0}")
+    private int instanceIndex;
+
+    @Value("${workload.keys.instance-count:1}")
+    private int instanceCount;
+
+    @Value("${workload.keys.seed-timeout:30}")
+    private long seedTimeout;
+
+    private final AtomicLong next = new AtomicLong();
+    private volatile long leaseEnd;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (instanceIndex < 0 || instanceIndex >= instanceCount) {
+            throw new IllegalArgumentException("workload.keys.instance-index must be in [0, instance-count)");
+        }
+
+        long start = Math.max(Storage.loadCounter(getCounterName()), (firstKey + instanceCount - 1) / instanceCount);
+        try {
+            start = Math.max(start, getLedgerMaxKey() / instanceCount + 1);
+        } catch (Exception e) {
+            log.warn("Cannot seed car keys from the ledger: {}", e.toString());
+        }
+
+        next.set(start);
+        leaseEnd = start;
+    }
+
+    public String next() {
+        long n = next.getAndIncrement();
+        if (n >= leaseEnd) {
+            extendLease(n);
+        }
+        return prefix + (n * instanceCount + instanceIndex);
+    }
+
+    private synchronized void extendLease(long n) {
+        if (n < leaseEnd) {
+            return;
+        }
+
+        long end = n + leaseSize;
+        try {
+            Storage.saveCounter(getCounterName(), end);
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot persist car key lease", e);
+        }
+        leaseEnd = end;
+    }
+
+    private String getCounterName() {
+        return "car-" + instanceIndex;
+    }
+
+    /**
+     * @return highest numeric CAR key on the ledger, -1 when there is none
+     */
+    private long getLedgerMaxKey() throws Exception {
+        FabricClient cli = fabricClientSingleton.getFabricClient();
+        AppUser user = fabricClientSingleton.getAppUser();
+        if (cli == null || user == null) {
+            return -1;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seedTimeout);
+        long max = -1;
+        String bookmark = "";
+        do {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException("ledger scan did not finish in " + seedTimeout + "s");
+            }
+            CarPage page = CarPageStreamer.parsePage(
+                    cli.getCarsPage(user, "", "", leaseSize, bookmark).get(remaining, TimeUnit.NANOSECONDS));
+            for (CarRecord record : page.getRecordsList()) {
+                String key = record.getKey();
+                if (key.startsWith(prefix) && key.length() > prefix.length()
+                        && key.substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+                    max = Math.max(max, Long.parseLong(key.substring(prefix.length())));
+                }
+            }
+            bookmark = page.getRecordsCount() < leaseSize ? "" : page.getBookmark();
+        } while (!bookmark.isEmpty());
+
+        return max;
+    }
+}
@@ -0,0 +1,127 @@
+package com.techprimers.grpc.service;
+
+import com.google.protobuf.ByteString;
+import com.techprimers.grpc.CarPage;
+import com.techprimers.grpc.CarRecord;
+import com.techprimers.grpc.fabric.AppUser;
+import com.techprimers.grpc.fabric.FabricClient;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.InputStreamReader;
+import java.util.concurrent.CompletionException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Response side of {@code queryAllStream}. Pages through the ledger one bookmark at a time and only
+ * fetches the next page once the previous one has been handed to a ready transport, so at most one
+ * page is held in memory per call.
+ */
+class CarPageStreamer {
+    private final FabricClient cli;
+    private final AppUser user;
+    private final ServerCallStreamObserver<CarPage> responseObserver;
+    private final String startKey;
+    private final String endKey;
+    private final int pageSize;
+    // later pages are fetched from Fabric callback threads, keep the RPC context for their metrics
+    private final Context context = Context.current();
+
+    private String bookmark = "";
+    private boolean fetching = false;
+    private boolean finished = false;
+
+    CarPageStreamer(FabricClient cli, AppUser user, StreamObserver<CarPage> responseObserver,
+                    String startKey, String endKey, int pageSize) {
+        this.cli = cli;
+        this.user = user;
+        this.responseObserver = (ServerCallStreamObserver<CarPage>) responseObserver;
+        this.startKey = startKey;
+        this.endKey = endKey;
+        this.pageSize = pageSize;
+
+        this.responseObserver.setOnReadyHandler(this::fetchIfReady);
+    }
+
+    void start() {
+        fetchIfReady();
+    }
+
+    private void fetchIfReady() {
+        String next;
+        synchronized (this) {
+            if (fetching || finished || responseObserver.isCancelled() || !responseObserver.isReady()) {
+                return;
+            }
+            fetching = true;
+            next = bookmark;
+        }
+
+        cli.getCarsPage(user, startKey, endKey, pageSize, next)
+                .thenApply(CarPageStreamer::parsePage)
+                .whenComplete((page, error) -> {
+                    if (error != null) {
+                        fail(error);
+                        return;
+                    }
+                    if (responseObserver.isCancelled()) {
+                        return;
+                    }
+
+                    responseObserver.onNext(page);
+                    boolean last = page.getBookmark().isEmpty() || page.getRecordsCount() < pageSize;
+                    synchronized (this) {
+                        fetching = false;
+                        finished = last;
+                        bookmark = page.getBookmark();
+                    }
+
+                    if (last) {
+                        responseObserver.onCompleted();
+                    } else {
+                        context.run(this::fetchIfReady);
+                    }
+                });
+    }
+
+    private void fail(Throwable error) {
+        synchronized (this) {
+            finished = true;
+        }
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        responseObserver.onError(Status.UNKNOWN.withDescription(cause.getMessage()).withCause(cause).asRuntimeException());
+    }
+
+    /**
+     * Parse the page straight from the peer's buffer, without copying the payload into a String.
+     */
+    static CarPage parsePage(ByteString payload) {
+        CarPage.Builder page = CarPage.newBuilder();
+        if (payload == null || payload.isEmpty()) {
+            return page.build();
+        }
+
+        JSONObject json = new JSONObject(new JSONTokener(new InputStreamReader(payload.newInput(), UTF_8)));
+        JSONArray records = json.optJSONArray("records");
+        for (int i = 0; records != null && i < records.length(); i++) {
+            JSONObject entry = records.getJSONObject(i);
+            JSONObject car = entry.optJSONObject("Record");
+            CarRecord.Builder record = CarRecord.newBuilder().setKey(entry.optString("Key"));
+            if (car != null) {
+                record.setMake(car.optString("make"))
+                        .setModel(car.optString("model"))
+                        .setColour(car.optString("colour"))
+                        .setOwner(car.optString("owner"));
+            }
+            page.addRecords(record);
+        }
+
+        return page.setBookmark(json.optString("bookmark")).build();
+    }
+}
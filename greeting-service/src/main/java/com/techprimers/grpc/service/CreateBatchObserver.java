@@ -0,0 +1,123 @@
+package com.techprimers.grpc.service;
+
+import com.techprimers.grpc.CarRequest;
+import com.techprimers.grpc.CreateBatchResponse;
+import com.techprimers.grpc.CreateResult;
+import com.techprimers.grpc.TxStatus;
+import com.techprimers.grpc.fabric.AppUser;
+import com.techprimers.grpc.fabric.FabricClient;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.hyperledger.fabric.sdk.exception.TransactionEventException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Request side of {@code createBatch}. Keeps at most {@code window} createCar transactions in flight
+ * by only pulling the next car from the client once a previous one has committed or failed.
+ */
+class CreateBatchObserver implements StreamObserver<CarRequest> {
+    private final FabricClient cli;
+    private final AppUser user;
+    private final ServerCallStreamObserver<CreateBatchResponse> responseObserver;
+    private final Supplier<String> keySupplier;
+
+    private final List<CreateResult> results = new ArrayList<>();
+    private int inFlight = 0;
+    private boolean halfClosed = false;
+    private boolean done = false;
+
+    CreateBatchObserver(FabricClient cli, AppUser user, StreamObserver<CreateBatchResponse> responseObserver,
+                        Supplier<String> keySupplier, int window) {
+        this.cli = cli;
+        this.user = user;
+        this.responseObserver = (ServerCallStreamObserver<CreateBatchResponse>) responseObserver;
+        this.keySupplier = keySupplier;
+
+        this.responseObserver.disableAutoInboundFlowControl();
+        this.responseObserver.request(window);
+    }
+
+    @Override
+    public void onNext(CarRequest car) {
+        String key = car.getKey().isEmpty() ? keySupplier.get() : car.getKey();
+        int index;
+        synchronized (this) {
+            index = results.size();
+            results.add(null);
+            inFlight++;
+        }
+
+        cli.submitTransaction(user, false, "createCar", key, car.getMake(), car.getModel(), car.getColour(), car.getOwner())
+                .whenComplete((tx, error) -> {
+                    CreateResult.Builder result = CreateResult.newBuilder().setKey(key);
+                    if (error == null) {
+                        result.setTxId(tx.getTxId()).setStatus(tx.isCommitted() ? TxStatus.COMMITTED : TxStatus.ORDERED);
+                    } else {
+                        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                        if (cause instanceof TransactionEventException
+                                && ((TransactionEventException) cause).getTransactionEvent() != null) {
+                            result.setTxId(((TransactionEventException) cause).getTransactionEvent().getTransactionID());
+                        }
+                        result.setStatus(TxStatus.FAILED).setError(String.valueOf(cause.getMessage()));
+                    }
+                    finished(index, result.build());
+                });
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        synchronized (this) {
+            done = true;
+        }
+    }
+
+    @Override
+    public void onCompleted() {
+        synchronized (this) {
+            halfClosed = true;
+        }
+        replyIfDone();
+    }
+
+    private void finished(int index, CreateResult result) {
+        boolean more;
+        synchronized (this) {
+            results.set(index, result);
+            inFlight--;
+            more = !halfClosed && !done;
+        }
+
+        if (more) {
+            responseObserver.request(1);
+        }
+        replyIfDone();
+    }
+
+    private void replyIfDone() {
+        CreateBatchResponse.Builder response = CreateBatchResponse.newBuilder();
+        synchronized (this) {
+            if (done || !halfClosed || inFlight > 0) {
+                return;
+            }
+            done = true;
+
+            for (CreateResult result : results) {
+                if (result.getStatus() == TxStatus.COMMITTED) {
+                    response.setCommitted(response.getCommitted() + 1);
+                } else if (result.getStatus() == TxStatus.ORDERED) {
+                    response.setOrdered(response.getOrdered() + 1);
+                } else {
+                    response.setFailed(response.getFailed() + 1);
+                }
+                response.addResults(result);
+            }
+        }
+
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+}
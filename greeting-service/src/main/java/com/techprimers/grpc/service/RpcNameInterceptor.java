@@ -0,0 +1,25 @@
+package com.techprimers.grpc.service;
+
+import com.techprimers.grpc.fabric.FabricMetrics;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import net.devh.boot.grpc.server.interceptor.GrpcGlobalServerInterceptor;
+
+/**
+ * Makes the name of the gRPC method available to {@link FabricMetrics} while the call is handled.
+ */
+@GrpcGlobalServerInterceptor
+public class RpcNameInterceptor implements ServerInterceptor {
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        String fullName = call.getMethodDescriptor().getFullMethodName();
+        String method = fullName.substring(fullName.lastIndexOf('/') + 1);
+        return Contexts.interceptCall(Context.current().withValue(FabricMetrics.RPC, method), call, headers, next);
+    }
+}
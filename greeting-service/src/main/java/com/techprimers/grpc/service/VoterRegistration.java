@@ -0,0 +1,268 @@
+package com.techprimers.grpc.service;
+
+import com.techprimers.grpc.RegisterVotersRequest;
+import com.techprimers.grpc.RegisterVotersResponse;
+import com.techprimers.grpc.TxStatus;
+import com.techprimers.grpc.VoterResult;
+import com.techprimers.grpc.fabric.AppUser;
+import com.techprimers.grpc.fabric.FabricClient;
+import com.techprimers.grpc.fabric.FabricClientSingleton;
+import com.techprimers.grpc.fabric.Storage;
+import com.techprimers.grpc.fabric.VotingCrypto;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.hyperledger.fabric.sdk.exception.TransactionEventException;
+import org.json.JSONObject;
+
+import java.math.BigInteger;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Serves one {@code registerVoters} call. Voters go through three phases, the first and last pipelined with at
+ * most {@code window} transactions in flight:
+ * <ol>
+ * <li>resolve the identity and its key hash, then have the voting key blind sign it with getBlindSign</li>
+ * <li>verify all returned signatures in one pass and save the valid ones</li>
+ * <li>register each verified voter in the voting with its Idemix identity</li>
+ * </ol>
+ * A voter that fails a phase is reported and skips the rest; the reply lists every voter in request order.
+ */
+class VoterRegistration {
+    private final FabricClientSingleton fabric;
+    private final FabricClient cli;
+    private final StreamObserver<RegisterVotersResponse> responseObserver;
+    private final String votingId;
+    private final List<Voter> voters = new ArrayList<>();
+    private final int window;
+    private final ExecutorService pool;
+    /** runs on {@link #pool} in the gRPC context of the call, so that Fabric calls are tagged with its rpc */
+    private final Executor executor;
+
+    VoterRegistration(FabricClientSingleton fabric, RegisterVotersRequest request,
+                      StreamObserver<RegisterVotersResponse> responseObserver, int window) {
+        this.fabric = fabric;
+        this.cli = fabric.getFabricClient();
+        this.responseObserver = responseObserver;
+        this.votingId = request.getVotingId();
+        for (String name : request.getVotersList()) {
+            voters.add(new Voter(name));
+        }
+        this.window = Math.max(1, window);
+        this.pool = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(this.window, Runtime.getRuntime().availableProcessors())), runnable -> {
+                    Thread thread = new Thread(runnable, "voter-registration");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor = Context.current().fixedContextExecutor(pool);
+    }
+
+    void start() {
+        String invalid = checkVoters();
+        if (invalid != null) {
+            pool.shutdown();
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(invalid).asRuntimeException());
+            return;
+        }
+
+        cli.queryBlockChainAsync(fabric.getAppUser(), false, "getVoting", votingId)
+                .thenApply(payload -> {
+                    try {
+                        return FabricClient.getVotingPubKey(new JSONObject(payload.toStringUtf8()));
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                })
+                .thenComposeAsync(votingPubKey -> pipeline(voters, voter -> blindSign(voter, votingPubKey))
+                        .thenRunAsync(() -> verify(votingPubKey), executor), executor)
+                .thenCompose(verified -> pipeline(valid(), this::register))
+                .whenComplete((nothing, error) -> {
+                    pool.shutdown();
+                    if (error != null) {
+                        Throwable cause = unwrap(error);
+                        responseObserver.onError(Status.UNKNOWN.withDescription(cause.getMessage()).withCause(cause)
+                                .asRuntimeException());
+                        return;
+                    }
+                    reply();
+                });
+    }
+
+    /**
+     * Voter names become CA enrollment ids and file names, and one voter must not run through the phases twice
+     * at once.
+     *
+     * @return why the roster is rejected, null when it is fine
+     */
+    private String checkVoters() {
+        Set<String> names = new HashSet<>();
+        for (Voter voter : voters) {
+            try {
+                Storage.checkUserName(voter.name);
+            } catch (IllegalArgumentException e) {
+                return e.getMessage();
+            }
+            if (!names.add(voter.name)) {
+                return "duplicate voter " + voter.name;
+            }
+        }
+        return null;
+    }
+
+    private CompletableFuture<BigInteger> blindSign(Voter voter, RSAPublicKey votingPubKey) {
+        return CompletableFuture.supplyAsync(() -> {
+                    try {
+                        voter.user = fabric.getOrEnrollUser(voter.name);
+                        voter.pubKeyHash = Storage.getPubKeyHash(voter.name);
+                        return voter.user;
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor)
+                .thenCompose(user -> cli.requestBlindSignature(user, votingId, votingPubKey, voter.pubKeyHash))
+                .thenApply(signedKey -> voter.signedKey = signedKey);
+    }
+
+    private void verify(RSAPublicKey votingPubKey) {
+        List<Voter> signed = valid();
+        List<BigInteger> signedKeys = new ArrayList<>(signed.size());
+        List<byte[]> hashes = new ArrayList<>(signed.size());
+        for (Voter voter : signed) {
+            signedKeys.add(voter.signedKey);
+            hashes.add(voter.pubKeyHash);
+        }
+
+        boolean[] valid = VotingCrypto.verifyAll(signedKeys, votingPubKey, hashes);
+        for (int i = 0; i < valid.length; i++) {
+            Voter voter = signed.get(i);
+            try {
+                if (!valid[i]) {
+                    throw new Exception("Hashs are not the same. blind signature is invalid");
+                }
+                Storage.saveSignedKey(voter.name, voter.signedKey);
+            } catch (Exception e) {
+                voter.fail(e);
+            }
+        }
+    }
+
+    private CompletableFuture<Void> register(Voter voter) {
+        return cli.submitRegistration(voter.user, votingId, voter.signedKey)
+                .thenAccept(tx -> voter.result.setTxId(tx.getTxId())
+                        .setStatus(tx.isCommitted() ? TxStatus.COMMITTED : TxStatus.ORDERED));
+    }
+
+    /**
+     * Run {@code step} for each voter, starting the next one whenever one settles so that at most
+     * {@code window} are in flight. A failed step fails only its voter.
+     */
+    private CompletableFuture<Void> pipeline(List<Voter> batch, Function<Voter, CompletableFuture<?>> step) {
+        CompletableFuture<Void> all = new CompletableFuture<>();
+        if (batch.isEmpty()) {
+            all.complete(null);
+            return all;
+        }
+
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger remaining = new AtomicInteger(batch.size());
+        Runnable[] launch = new Runnable[1];
+        launch[0] = () -> {
+            int i = next.getAndIncrement();
+            if (i >= batch.size()) {
+                return;
+            }
+            Voter voter = batch.get(i);
+            CompletableFuture<?> future;
+            try {
+                future = step.apply(voter);
+            } catch (Exception e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            // settle on the executor so synchronous failures do not recurse through the whole batch
+            future.whenCompleteAsync((result, error) -> {
+                if (error != null) {
+                    voter.fail(error);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    all.complete(null);
+                } else {
+                    launch[0].run();
+                }
+            }, executor);
+        };
+        for (int i = 0; i < Math.min(window, batch.size()); i++) {
+            launch[0].run();
+        }
+        return all;
+    }
+
+    /**
+     * @return voters that have not failed so far
+     */
+    private List<Voter> valid() {
+        List<Voter> valid = new ArrayList<>();
+        for (Voter voter : voters) {
+            if (voter.result.getStatus() != TxStatus.FAILED) {
+                valid.add(voter);
+            }
+        }
+        return valid;
+    }
+
+    private void reply() {
+        RegisterVotersResponse.Builder response = RegisterVotersResponse.newBuilder();
+        for (Voter voter : voters) {
+            if (voter.result.getStatus() == TxStatus.COMMITTED || voter.result.getStatus() == TxStatus.ORDERED) {
+                response.setRegistered(response.getRegistered() + 1);
+            } else {
+                response.setFailed(response.getFailed() + 1);
+            }
+            response.addResults(voter.result);
+        }
+
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /**
+     * State of one voter, handed from phase to phase through the futures.
+     */
+    private static class Voter {
+        private final String name;
+        private final VoterResult.Builder result;
+        private AppUser user;
+        private byte[] pubKeyHash;
+        private BigInteger signedKey;
+
+        private Voter(String name) {
+            this.name = name;
+            this.result = VoterResult.newBuilder().setVoter(name);
+        }
+
+        private void fail(Throwable error) {
+            Throwable cause = unwrap(error);
+            if (cause instanceof TransactionEventException
+                    && ((TransactionEventException) cause).getTransactionEvent() != null) {
+                result.setTxId(((TransactionEventException) cause).getTransactionEvent().getTransactionID());
+            }
+            result.setStatus(TxStatus.FAILED).setError(String.valueOf(cause.getMessage()));
+        }
+    }
+}
@@ -1,99 +1,193 @@
 package com.techprimers.grpc.service;
 
+import com.google.protobuf.ByteString;
+import com.techprimers.grpc.CarPage;
+import com.techprimers.grpc.CarRequest;
+import com.techprimers.grpc.CreateBatchResponse;
+import com.techprimers.grpc.QueryPageRequest;
+import com.techprimers.grpc.RegisterVotersRequest;
+import com.techprimers.grpc.RegisterVotersResponse;
+import com.techprimers.grpc.TxStatus;
 import com.techprimers.grpc.WorkloadRequest;
 import com.techprimers.grpc.WorkloadResponse;
 import com.techprimers.grpc.WorkloadServiceGrpc;
 import com.techprimers.grpc.fabric.AppUser;
+import com.techprimers.grpc.fabric.CommitPolicy;
 import com.techprimers.grpc.fabric.FabricClient;
 import com.techprimers.grpc.fabric.FabricClientSingleton;
+import com.techprimers.grpc.fabric.TransactionResult;
+import io.grpc.Context;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import net.devh.boot.grpc.server.service.GrpcService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 @GrpcService
 public class WorkloadServiceImpl extends WorkloadServiceGrpc.WorkloadServiceImplBase {
+    private static final Logger log = LoggerFactory.getLogger(WorkloadServiceImpl.class);
+
     @Autowired
     private FabricClientSingleton fabricClientSingleton;
 
-    private int cntCar = 100;
+    @Autowired
+    private CarKeyAllocator carKeys;
+
+    @Value("${workload.batch.window:64}")
+    private int batchWindow;
+
+    @Value("${workload.query.page-size:100}")
+    private int queryPageSize;
+
+    @Value("${workload.voting.window:64}")
+    private int votingWindow;
     @Override
     public void initBlockchain(WorkloadRequest request, StreamObserver<WorkloadResponse> responseObserver) {
         String message = request.getMessage();
-        System.out.println("Received Message: " + message);
+        log.debug("Received message: {}", message);
 
         FabricClient cli = fabricClientSingleton.getFabricClient();
         AppUser user = fabricClientSingleton.getAppUser();
 
-        System.out.println(user.toString());
-
-        String apiRecv = null;
-        String apiRecv_init = null;
-        try {
-            apiRecv_init = cli.invokeBlockChain(user, false, "initLedger", "123");
-            apiRecv = cli.queryBlockChain(user, false, "queryAllCars", "CAR12");
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
 
-        WorkloadResponse greetingResponse = WorkloadResponse.newBuilder()
-                .setMessage("Received: " + apiRecv + " and " + apiRecv_init + ". Hello From Server. ")
-                .build();
-
-        responseObserver.onNext(greetingResponse);
-        responseObserver.onCompleted();
+        cli.submitTransaction(user, false, getCommitPolicy(request), "initLedger", "123")
+                .thenComposeAsync(tx -> cli.queryBlockChainAsync(user, false, "queryAllCars", "CAR12")
+                        .thenApply(apiRecv -> buildResponse(apiRecv, tx)), inRpcContext())
+                .whenComplete((response, error) -> complete(responseObserver, response, error));
     }
 
     @Override
     public void queryAll(WorkloadRequest request, StreamObserver<WorkloadResponse> responseObserver) {
         String message = request.getMessage();
-        System.out.println("Received Message: " + message);
+        log.debug("Received message: {}", message);
 
         FabricClient cli = fabricClientSingleton.getFabricClient();
         AppUser user = fabricClientSingleton.getAppUser();
 
-        System.out.println(user.toString());
 
-        String apiRecv = null;
-        String apiRecv_init = null;
-        try {
-            apiRecv = cli.queryBlockChain(user, false, "queryAllCars", "CAR12");
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        cli.queryBlockChainAsync(user, false, "queryAllCars", "CAR12")
+                .thenApply(apiRecv -> buildResponse(apiRecv, null))
+                .whenComplete((response, error) -> complete(responseObserver, response, error));
+    }
 
-        WorkloadResponse greetingResponse = WorkloadResponse.newBuilder()
-                .setMessage("Received: " + apiRecv + " and " + apiRecv_init + ". Hello From Server. ")
-                .build();
+    /**
+     * Server-streaming variant of {@link #queryAll} that emits one {@link CarPage} per ledger page.
+     */
+    @Override
+    public void queryAllStream(QueryPageRequest request, StreamObserver<CarPage> responseObserver) {
+        log.debug("Received queryAllStream: {} - {}", request.getStartKey(), request.getEndKey());
 
-        responseObserver.onNext(greetingResponse);
-        responseObserver.onCompleted();
+        FabricClient cli = fabricClientSingleton.getFabricClient();
+        AppUser user = fabricClientSingleton.getAppUser();
+
+        int pageSize = request.getPageSize() > 0 ? request.getPageSize() : queryPageSize;
+        new CarPageStreamer(cli, user, responseObserver, request.getStartKey(), request.getEndKey(), pageSize).start();
     }
 
     @Override
     public void create(WorkloadRequest request, StreamObserver<WorkloadResponse> responseObserver) {
         String message = request.getMessage();
-        System.out.println("Received Message: " + message);
+        log.debug("Received message: {}", message);
 
         FabricClient cli = fabricClientSingleton.getFabricClient();
         AppUser user = fabricClientSingleton.getAppUser();
 
-        System.out.println(user.toString());
 
-        String apiRecv = null;
-        String apiRecv_init = null;
-        try {
-            String[] args = {"CAR"+(this.cntCar++), "Toyota", "A186", "white", "Jake"};
-            apiRecv_init = cli.invokeBlockChain(user, false, "createCar", args);
-            apiRecv = cli.queryBlockChain(user, false, "queryAllCars", "CAR12");
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        String[] args = {carKeys.next(), "Toyota", "A186", "white", "Jake"};
+        cli.submitTransaction(user, false, getCommitPolicy(request), "createCar", args)
+                .thenComposeAsync(tx -> cli.queryBlockChainAsync(user, false, "queryAllCars", "CAR12")
+                        .thenApply(apiRecv -> buildResponse(apiRecv, tx)), inRpcContext())
+                .whenComplete((response, error) -> complete(responseObserver, response, error));
+    }
+
+    /**
+     * Client-streaming bulk create. Cars are pipelined through {@link FabricClient#submitTransaction}
+     * with at most {@code workload.batch.window} transactions in flight, and a single summary is returned
+     * once the client has finished sending and every transaction has settled.
+     */
+    @Override
+    public StreamObserver<CarRequest> createBatch(StreamObserver<CreateBatchResponse> responseObserver) {
+        log.debug("Received createBatch");
+
+        FabricClient cli = fabricClientSingleton.getFabricClient();
+        AppUser user = fabricClientSingleton.getAppUser();
+
+        return new CreateBatchObserver(cli, user, responseObserver, carKeys::next, batchWindow);
+    }
+
+    /**
+     * Registers a roster of voters in a voting. Blind signatures and registrations are pipelined with at most
+     * {@code workload.voting.window} transactions in flight, and the blind signatures are verified as one batch
+     * in between. Replies once every voter is registered or failed.
+     */
+    @Override
+    public void registerVoters(RegisterVotersRequest request, StreamObserver<RegisterVotersResponse> responseObserver) {
+        log.debug("Received registerVoters: {} voters for {}", request.getVotersCount(), request.getVotingId());
+
+        new VoterRegistration(fabricClientSingleton, request, responseObserver, votingWindow).start();
+    }
+
+    /**
+     * Hand the peers' payloads to the reply as they are, they are never decoded on the way.
+     */
+    private static WorkloadResponse buildResponse(ByteString apiRecv, TransactionResult tx) {
+        WorkloadResponse.Builder response = WorkloadResponse.newBuilder().setMessage("Hello From Server.");
+        if (apiRecv != null) {
+            response.setPayload(apiRecv);
         }
+        if (tx != null) {
+            response.setTxId(tx.getTxId())
+                    .setBlockNumber(tx.getBlockNumber())
+                    .setStatus(tx.isCommitted() ? TxStatus.COMMITTED : TxStatus.ORDERED);
+            if (tx.getPayload() != null) {
+                response.setTxPayload(tx.getPayload());
+            }
+        }
+
+        return response.build();
+    }
 
-        WorkloadResponse greetingResponse = WorkloadResponse.newBuilder()
-                .setMessage("Received: " + apiRecv + " and " + apiRecv_init + ". Hello From Server. ")
-                .build();
+    /**
+     * @return commit policy requested by the caller, null to use the service default
+     */
+    private static CommitPolicy getCommitPolicy(WorkloadRequest request) {
+        switch (request.getCommitWait()) {
+            case WAIT_ORDERED:
+                return CommitPolicy.ORDERED;
+            case WAIT_FIRST_PEER:
+                return CommitPolicy.FIRST_PEER;
+            case WAIT_QUORUM:
+                return CommitPolicy.QUORUM;
+            case WAIT_ALL:
+                return CommitPolicy.ALL;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Run continuations in the context of the current RPC, so Fabric calls made from SDK threads are tagged with it.
+     */
+    private static Executor inRpcContext() {
+        return Context.current().fixedContextExecutor(Runnable::run);
+    }
+
+    /**
+     * Finish a unary call from the completion callback of a {@link FabricClient} future.
+     */
+    private static <T> void complete(StreamObserver<T> responseObserver, T response, Throwable error) {
+        if (error != null) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            responseObserver.onError(Status.UNKNOWN.withDescription(cause.getMessage()).withCause(cause).asRuntimeException());
+            return;
+        }
 
-        responseObserver.onNext(greetingResponse);
+        responseObserver.onNext(response);
         responseObserver.onCompleted();
     }
 }
@@ -0,0 +1,80 @@
+package com.techprimers.grpc.fabric;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.spec.RSAPrivateKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BallotSignerTest {
+    private final BallotSigner signer = new BallotSigner(4);
+
+    @AfterEach
+    void close() {
+        signer.close();
+    }
+
+    @Test
+    void crtSignatureMatchesVotingCrypto() throws Exception {
+        RSAPrivateKey key = newKey();
+        assertTrue(key instanceof RSAPrivateCrtKey);
+        for (int i = 0; i < 4; i++) {
+            byte[] hash = hash("voter" + i);
+            assertEquals(VotingCrypto.sign(key, hash), signer.sign(key, hash));
+        }
+    }
+
+    @Test
+    void plainSignatureMatchesVotingCrypto() throws Exception {
+        RSAPrivateKey key = withoutCrt(newKey());
+        assertFalse(key instanceof RSAPrivateCrtKey);
+        byte[] hash = hash("voter");
+        assertEquals(VotingCrypto.sign(key, hash), signer.sign(key, hash));
+    }
+
+    @Test
+    void signEachMatchesVotingCrypto() throws Exception {
+        List<RSAPrivateKey> keys = new ArrayList<>();
+        List<byte[]> hashes = new ArrayList<>();
+        RSAPrivateKey first = newKey();
+        RSAPrivateKey second = withoutCrt(newKey());
+        // more than one fork/join batch, mixing CRT and plain keys
+        for (int i = 0; i < 20; i++) {
+            keys.add(i % 2 == 0 ? first : second);
+            hashes.add(hash("voter" + i));
+        }
+
+        List<BigInteger> signatures = signer.signEach(keys, hashes);
+        assertEquals(hashes.size(), signatures.size());
+        for (int i = 0; i < hashes.size(); i++) {
+            assertEquals(VotingCrypto.sign(keys.get(i), hashes.get(i)), signatures.get(i));
+        }
+    }
+
+    private static RSAPrivateKey newKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        return (RSAPrivateKey) generator.generateKeyPair().getPrivate();
+    }
+
+    private static RSAPrivateKey withoutCrt(RSAPrivateKey key) throws Exception {
+        return (RSAPrivateKey) KeyFactory.getInstance("RSA")
+                .generatePrivate(new RSAPrivateKeySpec(key.getModulus(), key.getPrivateExponent()));
+    }
+
+    private static byte[] hash(String value) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,104 @@
+package com.techprimers.grpc.fabric;
+
+import com.google.protobuf.ByteString;
+import org.hyperledger.fabric.protos.common.Common;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BlockArchiveTest {
+    @TempDir
+    File dir;
+
+    @Test
+    void recoverCutsOffIncompleteLastRecord() throws Exception {
+        archive(3);
+        File segment = BlockArchive.segmentFile(dir, 0, BlockArchive.SEGMENT_SUFFIX);
+        long complete = segment.length();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(segment, true))) {
+            out.writeInt(100);
+            out.writeLong(3);
+            out.write(new byte[5]);
+        }
+
+        try (BlockArchive archive = new BlockArchive(dir, 1 << 20)) {
+            archive.open();
+            assertEquals(3, archive.getNextBlock());
+            assertEquals(complete, segment.length());
+            archive.append(block(3));
+        }
+        assertReadable(4);
+    }
+
+    @Test
+    void recoverDropsIndexEntriesPastTheData() throws Exception {
+        archive(3);
+        File index = BlockArchive.segmentFile(dir, 0, BlockArchive.INDEX_SUFFIX);
+        assertEquals(BlockArchive.INDEX_ENTRY, index.length());
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(index, true))) {
+            out.writeLong(64);
+            out.writeLong(1 << 20);
+        }
+
+        try (BlockArchive archive = new BlockArchive(dir, 1 << 20)) {
+            archive.open();
+            assertEquals(3, archive.getNextBlock());
+            assertEquals(BlockArchive.INDEX_ENTRY, index.length());
+        }
+        assertReadable(3);
+    }
+
+    @Test
+    void recoverDropsIndexEntryOfIncompleteRecord() throws Exception {
+        archive(1);
+        try (RandomAccessFile segment = new RandomAccessFile(BlockArchive.segmentFile(dir, 0, BlockArchive.SEGMENT_SUFFIX), "rw")) {
+            segment.setLength(BlockArchive.RECORD_HEADER + 1);
+        }
+
+        try (BlockArchive archive = new BlockArchive(dir, 1 << 20)) {
+            archive.open();
+            assertEquals(0, archive.getNextBlock());
+            assertEquals(0, BlockArchive.segmentFile(dir, 0, BlockArchive.INDEX_SUFFIX).length());
+            archive.append(block(0));
+        }
+        assertReadable(1);
+    }
+
+    @Test
+    void rejectsSegmentsTheReaderCannotMap() {
+        assertThrows(IllegalArgumentException.class, () -> new BlockArchive(dir, BlockArchive.MAX_SEGMENT_BYTES));
+        assertThrows(IllegalArgumentException.class, () -> new BlockArchive(dir, 0));
+    }
+
+    private void archive(int blocks) throws Exception {
+        try (BlockArchive archive = new BlockArchive(dir, 1 << 20)) {
+            archive.open();
+            for (int i = 0; i < blocks; i++) {
+                archive.append(block(i));
+            }
+        }
+    }
+
+    private void assertReadable(int blocks) throws Exception {
+        try (BlockArchiveReader reader = new BlockArchiveReader(dir)) {
+            assertEquals(blocks, reader.getNextBlock());
+            for (int i = 0; i < blocks; i++) {
+                assertEquals(block(i), reader.read(i));
+            }
+        }
+    }
+
+    private static Common.Block block(long number) {
+        return Common.Block.newBuilder()
+                .setHeader(Common.BlockHeader.newBuilder().setNumber(number))
+                .setData(Common.BlockData.newBuilder().addData(ByteString.copyFromUtf8("envelope " + number)))
+                .build();
+    }
+}
@@ -0,0 +1,144 @@
+package com.techprimers.grpc.fabric;
+
+import com.google.protobuf.ByteString;
+import org.hyperledger.fabric.protos.ledger.rwset.Rwset;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class LedgerIndexTest {
+    private static final String CHANNEL = "mychannel";
+    private static final String NAMESPACE = "fabcar";
+
+    @TempDir
+    Path workDir;
+
+    private String previousWorkDir;
+
+    @BeforeEach
+    void setWorkDir() {
+        previousWorkDir = Storage.getWorkDir();
+        Storage.setWorkDir(workDir.toString());
+    }
+
+    @AfterEach
+    void restoreWorkDir() {
+        Storage.setWorkDir(previousWorkDir);
+    }
+
+    @Test
+    void replaysCommittedBlocks() throws Exception {
+        LedgerIndex index = new LedgerIndex(CHANNEL);
+        index.open();
+        index.add(block(0, "tx0", "CAR0", "red"));
+        index.add(block(1, "tx1", "CAR0", "blue"));
+        assertEquals("blue", new String(index.getValue(index.getKeyHistory(NAMESPACE, "CAR0").get(1)), UTF_8));
+        index.close();
+
+        LedgerIndex reopened = new LedgerIndex(CHANNEL);
+        reopened.open();
+        assertEquals(2, reopened.getNextBlock());
+        assertEquals(1, reopened.getTransaction("tx1").getBlockNumber());
+        List<LedgerIndex.KeyWrite> history = reopened.getKeyHistory(NAMESPACE, "CAR0");
+        assertEquals(2, history.size());
+        assertEquals("red", new String(reopened.getValue(history.get(0)), UTF_8));
+        assertEquals("blue", new String(reopened.getValue(history.get(1)), UTF_8));
+        reopened.close();
+    }
+
+    @Test
+    void truncatesRecordsAfterTheCheckpoint() throws Exception {
+        LedgerIndex index = new LedgerIndex(CHANNEL);
+        index.open();
+        index.add(block(0, "tx0", "CAR0", "red"));
+        index.commit();
+        File logFile = Storage.getIndexFile(CHANNEL);
+        long committed = logFile.length();
+        index.add(block(1, "tx1", "CAR0", "blue"));
+        index.close();
+
+        // the checkpoint was not moved past block 1 and the last record was cut short by a crash
+        Storage.saveCounter("index-" + CHANNEL, 1);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(logFile, true))) {
+            out.writeInt(64);
+            out.write(new byte[10]);
+        }
+
+        LedgerIndex reopened = new LedgerIndex(CHANNEL);
+        reopened.open();
+        assertEquals(committed, logFile.length());
+        assertEquals(1, reopened.getNextBlock());
+        assertNull(reopened.getTransaction("tx1"));
+        assertEquals(1, reopened.getKeyHistory(NAMESPACE, "CAR0").size());
+
+        reopened.add(block(1, "tx1", "CAR0", "green"));
+        List<LedgerIndex.KeyWrite> history = reopened.getKeyHistory(NAMESPACE, "CAR0");
+        assertNotNull(reopened.getTransaction("tx1"));
+        assertEquals("red", new String(reopened.getValue(history.get(0)), UTF_8));
+        assertEquals("green", new String(reopened.getValue(history.get(1)), UTF_8));
+        reopened.close();
+    }
+
+    @Test
+    void replaysKeysLongerThanModifiedUtf8Allows() throws Exception {
+        StringBuilder key = new StringBuilder();
+        while (key.length() <= 70000) {
+            key.append("CAR");
+        }
+        LedgerIndex index = new LedgerIndex(CHANNEL);
+        index.open();
+        index.add(block(0, "tx0", key.toString(), "red"));
+        index.close();
+
+        LedgerIndex reopened = new LedgerIndex(CHANNEL);
+        reopened.open();
+        assertEquals(1, reopened.getNextBlock());
+        List<LedgerIndex.KeyWrite> history = reopened.getKeyHistory(NAMESPACE, key.toString());
+        assertEquals(1, history.size());
+        assertEquals("red", new String(reopened.getValue(history.get(0)), UTF_8));
+        reopened.close();
+    }
+
+    private static BlockInfo block(long number, String txId, String key, String value) {
+        KvRwset.KVRWSet rws = KvRwset.KVRWSet.newBuilder()
+                .addWrites(KvRwset.KVWrite.newBuilder().setKey(key).setValue(ByteString.copyFromUtf8(value)))
+                .build();
+        Rwset.TxReadWriteSet txRwset = Rwset.TxReadWriteSet.newBuilder()
+                .setDataModel(Rwset.TxReadWriteSet.DataModel.KV)
+                .addNsRwset(Rwset.NsReadWriteSet.newBuilder().setNamespace(NAMESPACE).setRwset(rws.toByteString()))
+                .build();
+
+        BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo action =
+                mock(BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo.class);
+        when(action.getTxReadWriteSet()).thenReturn(new TxReadWriteSetInfo(txRwset));
+
+        BlockInfo.TransactionEnvelopeInfo envelope = mock(BlockInfo.TransactionEnvelopeInfo.class);
+        when(envelope.getTransactionID()).thenReturn(txId);
+        when(envelope.getType()).thenReturn(BlockInfo.EnvelopeType.TRANSACTION_ENVELOPE);
+        when(envelope.isValid()).thenReturn(true);
+        when(envelope.getTransactionActionInfos()).thenReturn(Collections.singletonList(action));
+
+        BlockInfo block = mock(BlockInfo.class);
+        when(block.getBlockNumber()).thenReturn(number);
+        when(block.getEnvelopeInfos()).thenReturn(Collections.singletonList(envelope));
+        return block;
+    }
+}
@@ -0,0 +1,75 @@
+package com.techprimers.grpc.fabric;
+
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class PeerSelectorTest {
+    private final PeerSelector selector = new PeerSelector(true, 4);
+    private final Peer down = peer("peer0");
+    private final Peer up = peer("peer1");
+
+    @AfterEach
+    void close() {
+        selector.close();
+    }
+
+    @Test
+    void failedPeerFailsOverToTheNextOne() throws Exception {
+        Collection<ProposalResponse> answer = response(up, true);
+        Collection<ProposalResponse> responses = selector.send(Arrays.asList(down, up), 1, FabricMetrics.ENDORSE,
+                peers -> {
+                    if (peers.contains(down)) {
+                        throw new Exception("unavailable");
+                    }
+                    return answer;
+                });
+
+        assertSame(answer, responses);
+        assertEquals(1, selector.getFailovers());
+    }
+
+    @Test
+    void unansweredPeerFailsOverToTheNextOne() throws Exception {
+        Collection<ProposalResponse> answer = response(up, true);
+        Collection<ProposalResponse> responses = selector.send(Arrays.asList(down, up), 1, FabricMetrics.QUERY,
+                peers -> peers.contains(down) ? response(down, false) : answer);
+
+        assertSame(answer, responses);
+        assertEquals(1, selector.getFailovers());
+    }
+
+    @Test
+    void singlePeerIsNotRetried() throws Exception {
+        Collection<ProposalResponse> unanswered = response(down, false);
+        assertSame(unanswered, selector.send(Collections.singletonList(down), 1, FabricMetrics.QUERY,
+                peers -> unanswered));
+        assertEquals(0, selector.getFailovers());
+    }
+
+    private static Peer peer(String name) {
+        Peer peer = mock(Peer.class);
+        when(peer.getName()).thenReturn(name);
+        return peer;
+    }
+
+    private static List<ProposalResponse> response(Peer peer, boolean answered) {
+        ProposalResponse response = mock(ProposalResponse.class);
+        when(response.getPeer()).thenReturn(peer);
+        when(response.getProposalResponse())
+                .thenReturn(answered ? FabricProposalResponse.ProposalResponse.getDefaultInstance() : null);
+        return Collections.singletonList(response);
+    }
+}
@@ -0,0 +1,116 @@
+package com.techprimers.grpc.fabric;
+
+import com.google.protobuf.ByteString;
+import org.hyperledger.fabric.protos.ledger.rwset.Rwset;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class QueryCacheTest {
+    private static final String NAMESPACE = "fabcar";
+    private static final ByteString PAYLOAD = ByteString.copyFromUtf8("[]");
+    private static final KvRwset.KVRWSet READS_CAR1 = KvRwset.KVRWSet.newBuilder()
+            .addReads(KvRwset.KVRead.newBuilder().setKey("CAR1"))
+            .build();
+
+    private final QueryCache cache = new QueryCache(NAMESPACE, 16, QueryCache.Invalidation.KEYS);
+
+    @BeforeEach
+    void reportHeights() {
+        cache.onBlock(block(5, "peer0"));
+        cache.onBlock(block(5, "peer1"));
+    }
+
+    @Test
+    void queryWithoutReadsIsDroppedByAnyWrite() throws Exception {
+        cache.put("queryCarsByColour:red", PAYLOAD, response("peer0", KvRwset.KVRWSet.getDefaultInstance()),
+                cache.begin());
+        assertEquals(PAYLOAD, cache.get("queryCarsByColour:red"));
+
+        cache.committed(response("peer0", writes("CAR42")), "peer0", 6);
+        assertNull(cache.get("queryCarsByColour:red"));
+    }
+
+    @Test
+    void queryIsKeptUntilAKeyItReadIsWritten() throws Exception {
+        cache.put("queryCar:CAR1", PAYLOAD, response("peer0", READS_CAR1), cache.begin());
+
+        cache.committed(response("peer0", writes("CAR42")), "peer0", 6);
+        assertEquals(PAYLOAD, cache.get("queryCar:CAR1"));
+
+        cache.committed(response("peer0", writes("CAR1")), "peer0", 7);
+        assertNull(cache.get("queryCar:CAR1"));
+    }
+
+    @Test
+    void answerOfAPeerBehindTheLastCommitIsNotCached() throws Exception {
+        // peer0 reported the commit of block 6, peer1 is still at block 5
+        cache.committed(response("peer0", writes("CAR1")), "peer0", 6);
+
+        cache.put("queryCar:CAR1", PAYLOAD, response("peer1", READS_CAR1), cache.begin());
+        assertNull(cache.get("queryCar:CAR1"));
+
+        cache.put("queryCar:CAR1", PAYLOAD, response("peer0", READS_CAR1), cache.begin());
+        assertEquals(PAYLOAD, cache.get("queryCar:CAR1"));
+    }
+
+    @Test
+    void peerMustBeCaughtUpBeforeTheQueryIsSent() throws Exception {
+        cache.committed(response("peer0", writes("CAR1")), "peer0", 6);
+        QueryCache.Token token = cache.begin();
+
+        // peer1 catches up while the query is in flight, its answer may still predate block 6
+        cache.onBlock(block(6, "peer1"));
+        cache.put("queryCar:CAR1", PAYLOAD, response("peer1", READS_CAR1), token);
+        assertNull(cache.get("queryCar:CAR1"));
+
+        cache.put("queryCar:CAR1", PAYLOAD, response("peer1", READS_CAR1), cache.begin());
+        assertEquals(PAYLOAD, cache.get("queryCar:CAR1"));
+    }
+
+    private static BlockEvent block(long number, String peer) {
+        BlockEvent blockEvent = mock(BlockEvent.class);
+        when(blockEvent.getBlockNumber()).thenReturn(number);
+        when(blockEvent.isFiltered()).thenReturn(true);
+        Peer source = peer(peer);
+        when(blockEvent.getPeer()).thenReturn(source);
+        return blockEvent;
+    }
+
+    private static Peer peer(String name) {
+        Peer peer = mock(Peer.class);
+        when(peer.getName()).thenReturn(name);
+        return peer;
+    }
+
+    private static KvRwset.KVRWSet writes(String key) {
+        return KvRwset.KVRWSet.newBuilder()
+                .addWrites(KvRwset.KVWrite.newBuilder().setKey(key).setValue(ByteString.copyFromUtf8("{}")))
+                .build();
+    }
+
+    private static Collection<ProposalResponse> response(String peer, KvRwset.KVRWSet rws) throws Exception {
+        Rwset.TxReadWriteSet txRwset = Rwset.TxReadWriteSet.newBuilder()
+                .setDataModel(Rwset.TxReadWriteSet.DataModel.KV)
+                .addNsRwset(Rwset.NsReadWriteSet.newBuilder().setNamespace(NAMESPACE).setRwset(rws.toByteString()))
+                .build();
+
+        ProposalResponse response = mock(ProposalResponse.class);
+        Peer source = peer(peer);
+        when(response.getPeer()).thenReturn(source);
+        when(response.getChaincodeActionResponseReadWriteSetInfo()).thenReturn(new TxReadWriteSetInfo(txRwset));
+        return Collections.singletonList(response);
+    }
+}
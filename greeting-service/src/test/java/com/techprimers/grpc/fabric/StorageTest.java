@@ -0,0 +1,149 @@
+package com.techprimers.grpc.fabric;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.hyperledger.fabric.sdk.identity.X509Enrollment;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StorageTest {
+    private static final String MSP = "Org1MSP";
+    private static final String CERT = "-----BEGIN CERTIFICATE-----\nMIIB\n-----END CERTIFICATE-----\n";
+
+    @TempDir
+    Path workDir;
+
+    private String previousWorkDir;
+
+    @BeforeEach
+    void setWorkDir() {
+        previousWorkDir = Storage.getWorkDir();
+        Storage.setWorkDir(workDir.toString());
+        Storage.clearUsers();
+    }
+
+    @AfterEach
+    void restoreWorkDir() {
+        Storage.clearUsers();
+        Storage.setWorkDir(previousWorkDir);
+    }
+
+    @Test
+    void savedUserIsReadBackFromItsFile() throws Exception {
+        AppUser saved = new AppUser("user1", "org1.department1", MSP, new X509Enrollment(newKey(), CERT));
+        saved.setAccount("account1");
+        saved.setRoles(new HashSet<>(Arrays.asList("client", "peer")));
+        Storage.save(saved);
+
+        Storage.clearUsers();
+        AppUser loaded = Storage.load(MSP, "user1");
+        assertNotSame(saved, loaded);
+        assertUser(saved, loaded);
+    }
+
+    @Test
+    void legacyUserIsMigratedToTheCompactFormat() throws Exception {
+        // written by the service before the compact format, without account and roles
+        AppUser legacy = new AppUser("user2", null, MSP, new X509Enrollment(newKey(), CERT));
+        File dir = new File(workDir.toFile(), "users" + File.separator + MSP + File.separator + "user2");
+        assertTrue(dir.mkdirs());
+        File legacyFile = new File(dir, "user2");
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(legacyFile))) {
+            out.writeObject(legacy);
+        }
+
+        AppUser migrated = Storage.load(MSP, "user2");
+        assertUser(legacy, migrated);
+        assertFalse(legacyFile.exists());
+        assertTrue(new File(dir, "user2.id").isFile());
+
+        Storage.clearUsers();
+        AppUser reloaded = Storage.load(MSP, "user2");
+        assertUser(legacy, reloaded);
+        assertNull(reloaded.getAffiliation());
+        assertNull(reloaded.getAccount());
+        assertNull(reloaded.getRoles());
+    }
+
+    @Test
+    void concurrentFirstUseLoadsOnePair() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<RSAPublicKey>> pubKeys = new ArrayList<>();
+            List<Future<RSAPrivateKey>> privKeys = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                pubKeys.add(executor.submit(() -> Storage.getPubKey("voter1")));
+                privKeys.add(executor.submit(() -> Storage.getPrivKey("voter1")));
+            }
+            for (int i = 0; i < 8; i++) {
+                assertEquals(pubKeys.get(i).get().getModulus(), privKeys.get(i).get().getModulus());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        BigInteger modulus = Storage.getPubKey("voter1").getModulus();
+        Storage.clearKeys("voter1");
+        assertNotEquals(modulus, Storage.getPrivKey("voter1").getModulus());
+        assertEquals(Storage.getPrivKey("voter1").getModulus(), Storage.getPubKey("voter1").getModulus());
+        Storage.clearKeys("voter1");
+    }
+
+    @Test
+    void userNamesMustNotLeaveTheUsersDirectory() {
+        Storage.checkUserName("alice.smith@org1");
+        for (String name : new String[]{"../admin", "..", "a/b", "a\\b", "", ".hidden", "alice\u0000"}) {
+            assertThrows(IllegalArgumentException.class, () -> Storage.checkUserName(name), name);
+        }
+        assertThrows(IllegalArgumentException.class, () -> Storage.getPubKey("../voter"));
+    }
+
+    private static void assertUser(AppUser expected, AppUser actual) {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getAffiliation(), actual.getAffiliation());
+        assertEquals(expected.getMspId(), actual.getMspId());
+        assertEquals(expected.getAccount(), actual.getAccount());
+        assertEquals(expected.getRoles(), actual.getRoles());
+        assertEquals(expected.getEnrollment().getCert(), actual.getEnrollment().getCert());
+        assertEquals(((ECPrivateKey) expected.getEnrollment().getKey()).getS(),
+                ((ECPrivateKey) actual.getEnrollment().getKey()).getS());
+    }
+
+    /**
+     * @return key as the SDK's crypto suite makes them, reporting the ECDSA algorithm
+     */
+    private static PrivateKey newKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("ECDSA", new BouncyCastleProvider());
+        generator.initialize(256);
+        PrivateKey key = generator.generateKeyPair().getPrivate();
+        assertEquals("ECDSA", key.getAlgorithm());
+        return key;
+    }
+}
@@ -0,0 +1,114 @@
+package com.techprimers.grpc.standin;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.orderer.Ab;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Deliver side shared by the peers and the orderer. Every seek request gets a thread that sends the requested
+ * blocks as they are committed, so the stream keeps running after the client half-closes its side like the
+ * SDK event service expects.
+ *
+ * @param <T> deliver response of the service
+ */
+class BlockStreamer<T> {
+    private static final long POLL_MILLIS = 1000;
+
+    /**
+     * Turns blocks and the final status into the deliver responses of one service.
+     */
+    interface Responses<T> {
+        T block(Common.Block block) throws Exception;
+
+        T status(Common.Status status);
+    }
+
+    private final Ledger ledger;
+    private final ExecutorService executor;
+
+    BlockStreamer(Ledger ledger, ExecutorService executor) {
+        this.ledger = ledger;
+        this.executor = executor;
+    }
+
+    StreamObserver<Common.Envelope> open(StreamObserver<T> responseObserver, Responses<T> responses) {
+        ServerCallStreamObserver<T> out = (ServerCallStreamObserver<T>) responseObserver;
+        return new StreamObserver<Common.Envelope>() {
+            @Override
+            public void onNext(Common.Envelope envelope) {
+                executor.execute(() -> seek(out, responses, envelope));
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                // the seek thread notices the cancellation
+            }
+
+            @Override
+            public void onCompleted() {
+                // half-close, keep streaming
+            }
+        };
+    }
+
+    private void seek(ServerCallStreamObserver<T> out, Responses<T> responses, Common.Envelope envelope) {
+        try {
+            Common.Payload payload = Common.Payload.parseFrom(envelope.getPayload());
+            Common.ChannelHeader channelHeader = Common.ChannelHeader.parseFrom(payload.getHeader().getChannelHeader());
+            if (!channelHeader.getChannelId().equals(ledger.getChannel())) {
+                finish(out, responses.status(Common.Status.NOT_FOUND));
+                return;
+            }
+            Ab.SeekInfo seekInfo = Ab.SeekInfo.parseFrom(payload.getData());
+            long start = position(seekInfo.getStart());
+            long stop = position(seekInfo.getStop());
+            boolean block = seekInfo.getBehavior() == Ab.SeekInfo.SeekBehavior.BLOCK_UNTIL_READY;
+
+            for (long number = start; number <= stop; ) {
+                if (out.isCancelled()) {
+                    return;
+                }
+                Common.Block next = block ? ledger.awaitBlock(number, POLL_MILLIS) : ledger.getBlock(number);
+                if (next == null) {
+                    if (!block) {
+                        finish(out, responses.status(Common.Status.NOT_FOUND));
+                        return;
+                    }
+                    continue;
+                }
+                synchronized (out) {
+                    out.onNext(responses.block(next));
+                }
+                number++;
+            }
+            finish(out, responses.status(Common.Status.SUCCESS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            if (!out.isCancelled()) {
+                finish(out, responses.status(Common.Status.BAD_REQUEST));
+            }
+        }
+    }
+
+    private long position(Ab.SeekPosition position) {
+        switch (position.getTypeCase()) {
+            case SPECIFIED:
+                return position.getSpecified().getNumber();
+            case OLDEST:
+                return 0;
+            default:
+                return ledger.getHeight() - 1;
+        }
+    }
+
+    private static <T> void finish(ServerCallStreamObserver<T> out, T status) {
+        synchronized (out) {
+            out.onNext(status);
+            out.onCompleted();
+        }
+    }
+}
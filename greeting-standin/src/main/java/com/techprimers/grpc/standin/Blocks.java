@@ -0,0 +1,136 @@
+package com.techprimers.grpc.standin;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Timestamp;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.common.Configtx;
+import org.hyperledger.fabric.protos.msp.MspConfig;
+import org.hyperledger.fabric.protos.peer.PeerEvents;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Block and config block construction, laid out the way a 1.4 orderer writes them.
+ */
+final class Blocks {
+    private Blocks() {
+    }
+
+    static Common.Block newBlock(long number, ByteString previousHash, List<ByteString> data, byte[] txFilter)
+            throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (ByteString envelope : data) {
+            digest.update(envelope.asReadOnlyByteBuffer());
+        }
+
+        Common.BlockHeader header = Common.BlockHeader.newBuilder()
+                .setNumber(number)
+                .setPreviousHash(previousHash)
+                .setDataHash(ByteString.copyFrom(digest.digest()))
+                .build();
+
+        Common.Metadata lastConfig = Common.Metadata.newBuilder()
+                .setValue(Common.LastConfig.newBuilder().setIndex(0).build().toByteString())
+                .build();
+        Common.BlockMetadata metadata = Common.BlockMetadata.newBuilder()
+                .addMetadata(Common.Metadata.getDefaultInstance().toByteString())  // SIGNATURES
+                .addMetadata(lastConfig.toByteString())                            // LAST_CONFIG
+                .addMetadata(ByteString.copyFrom(txFilter))                        // TRANSACTIONS_FILTER
+                .addMetadata(ByteString.EMPTY)                                     // ORDERER
+                .build();
+
+        return Common.Block.newBuilder()
+                .setHeader(header)
+                .setData(Common.BlockData.newBuilder().addAllData(data))
+                .setMetadata(metadata)
+                .build();
+    }
+
+    /**
+     * Same ASN.1 hash as {@code SDKUtils.calculateBlockHash}, used as the next block's previous hash.
+     */
+    static ByteString hash(Common.BlockHeader header) throws Exception {
+        ASN1EncodableVector sequence = new ASN1EncodableVector();
+        sequence.add(new ASN1Integer(header.getNumber()));
+        sequence.add(new DEROctetString(header.getPreviousHash().toByteArray()));
+        sequence.add(new DEROctetString(header.getDataHash().toByteArray()));
+        return ByteString.copyFrom(MessageDigest.getInstance("SHA-256").digest(new DERSequence(sequence).getEncoded()));
+    }
+
+    /**
+     * Genesis block of the channel, carrying the MSPs whose root certificates the SDK trusts for endorsements.
+     */
+    static Common.Block configBlock(String channel, List<CertificateAuthority> applicationOrgs,
+                                    CertificateAuthority ordererOrg) throws Exception {
+        Configtx.ConfigGroup.Builder application = Configtx.ConfigGroup.newBuilder();
+        for (CertificateAuthority org : applicationOrgs) {
+            application.putGroups(org.getMspId(), mspGroup(org));
+        }
+        Configtx.ConfigGroup orderer = Configtx.ConfigGroup.newBuilder()
+                .putGroups(ordererOrg.getMspId(), mspGroup(ordererOrg))
+                .build();
+        Configtx.ConfigGroup channelGroup = Configtx.ConfigGroup.newBuilder()
+                .putGroups("Application", application.build())
+                .putGroups("Orderer", orderer)
+                .build();
+
+        Configtx.ConfigEnvelope configEnvelope = Configtx.ConfigEnvelope.newBuilder()
+                .setConfig(Configtx.Config.newBuilder().setChannelGroup(channelGroup))
+                .build();
+        Common.ChannelHeader channelHeader = Common.ChannelHeader.newBuilder()
+                .setType(Common.HeaderType.CONFIG_VALUE)
+                .setChannelId(channel)
+                .setTxId(UUID.randomUUID().toString())
+                .setTimestamp(now())
+                .build();
+        Common.Payload payload = Common.Payload.newBuilder()
+                .setHeader(Common.Header.newBuilder().setChannelHeader(channelHeader.toByteString()))
+                .setData(configEnvelope.toByteString())
+                .build();
+        ByteString envelope = Common.Envelope.newBuilder().setPayload(payload.toByteString()).build().toByteString();
+
+        return newBlock(0, ByteString.EMPTY, List.of(envelope), new byte[]{0});
+    }
+
+    static PeerEvents.FilteredBlock filter(String channel, Common.Block block) throws Exception {
+        byte[] txFilter = block.getMetadata().getMetadata(Common.BlockMetadataIndex.TRANSACTIONS_FILTER_VALUE).toByteArray();
+        PeerEvents.FilteredBlock.Builder filtered = PeerEvents.FilteredBlock.newBuilder()
+                .setChannelId(channel)
+                .setNumber(block.getHeader().getNumber());
+        for (int i = 0; i < block.getData().getDataCount(); i++) {
+            Common.Payload payload = Common.Payload.parseFrom(Common.Envelope.parseFrom(block.getData().getData(i)).getPayload());
+            Common.ChannelHeader channelHeader = Common.ChannelHeader.parseFrom(payload.getHeader().getChannelHeader());
+            filtered.addFilteredTransactions(PeerEvents.FilteredTransaction.newBuilder()
+                    .setTxid(channelHeader.getTxId())
+                    .setTypeValue(channelHeader.getType())
+                    .setTxValidationCodeValue(i < txFilter.length ? txFilter[i] : 0));
+        }
+        return filtered.build();
+    }
+
+    static Timestamp now() {
+        long millis = System.currentTimeMillis();
+        return Timestamp.newBuilder().setSeconds(millis / 1000).setNanos((int) (millis % 1000) * 1000000).build();
+    }
+
+    private static Configtx.ConfigGroup mspGroup(CertificateAuthority org) throws Exception {
+        MspConfig.FabricMSPConfig fabricMspConfig = MspConfig.FabricMSPConfig.newBuilder()
+                .setName(org.getMspId())
+                .addRootCerts(ByteString.copyFrom(org.getPem(), StandardCharsets.UTF_8))
+                .build();
+        MspConfig.MSPConfig mspConfig = MspConfig.MSPConfig.newBuilder()
+                .setType(0)
+                .setConfig(fabricMspConfig.toByteString())
+                .build();
+        return Configtx.ConfigGroup.newBuilder()
+                .putValues("MSP", Configtx.ConfigValue.newBuilder().setValue(mspConfig.toByteString()).build())
+                .build();
+    }
+}
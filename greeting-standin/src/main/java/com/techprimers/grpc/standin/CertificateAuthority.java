@@ -0,0 +1,143 @@
+package com.techprimers.grpc.standin;
+
+import com.google.protobuf.ByteString;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequest;
+import org.hyperledger.fabric.protos.msp.Identities;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throw-away root CA of one MSP. Issues the certificates of the stand-in nodes and of enrolled users, so the
+ * SDK can verify endorsements against the MSP root certificates of the config block.
+ */
+class CertificateAuthority {
+    private static final long VALIDITY = TimeUnit.DAYS.toMillis(365);
+    private static final Provider PROVIDER = new BouncyCastleProvider();
+
+    private final String mspId;
+    private final KeyPair keyPair;
+    private final X509Certificate certificate;
+    private final AtomicLong serial = new AtomicLong(System.currentTimeMillis());
+
+    CertificateAuthority(String mspId, String name) throws Exception {
+        this.mspId = mspId;
+        this.keyPair = newKeyPair();
+        X500Name subject = new X500Name("CN=" + name + ",O=" + mspId);
+        this.certificate = build(new JcaX509v3CertificateBuilder(subject, nextSerial(), new Date(),
+                new Date(System.currentTimeMillis() + VALIDITY), subject, keyPair.getPublic())
+                .addExtension(Extension.basicConstraints, true, new BasicConstraints(true))
+                .addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign)));
+    }
+
+    String getMspId() {
+        return mspId;
+    }
+
+    String getPem() throws Exception {
+        return toPem(certificate);
+    }
+
+    /**
+     * @return PEM certificate for the key of a PKCS#10 request
+     */
+    String sign(String csrPem, String commonName) throws Exception {
+        try (PEMParser parser = new PEMParser(new StringReader(csrPem))) {
+            PKCS10CertificationRequest csr = (PKCS10CertificationRequest) parser.readObject();
+            return toPem(issue(commonName, new JcaPKCS10CertificationRequest(csr).setProvider(PROVIDER).getPublicKey()));
+        }
+    }
+
+    /**
+     * @return new key and certificate for a stand-in node of this MSP
+     */
+    Signer newSigner(String commonName) throws Exception {
+        KeyPair pair = newKeyPair();
+        return new Signer(mspId, pair.getPrivate(), toPem(issue(commonName, pair.getPublic())));
+    }
+
+    private X509Certificate issue(String commonName, PublicKey publicKey) throws Exception {
+        X500Name issuer = new JcaX509CertificateHolder(certificate).getSubject();
+        return build(new JcaX509v3CertificateBuilder(issuer, nextSerial(), new Date(),
+                new Date(System.currentTimeMillis() + VALIDITY), new X500Name("CN=" + commonName), publicKey)
+                .addExtension(Extension.basicConstraints, true, new BasicConstraints(false))
+                .addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.digitalSignature)));
+    }
+
+    private X509Certificate build(X509v3CertificateBuilder builder) throws Exception {
+        return new JcaX509CertificateConverter().getCertificate(
+                builder.build(new JcaContentSignerBuilder("SHA256withECDSA").build(keyPair.getPrivate())));
+    }
+
+    private BigInteger nextSerial() {
+        return BigInteger.valueOf(serial.incrementAndGet());
+    }
+
+    private static KeyPair newKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"), new SecureRandom());
+        return generator.generateKeyPair();
+    }
+
+    static String toPem(Object object) throws Exception {
+        StringWriter out = new StringWriter();
+        try (JcaPEMWriter writer = new JcaPEMWriter(out)) {
+            writer.writeObject(object);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Identity a node endorses and orders with.
+     */
+    static class Signer {
+        private final PrivateKey key;
+        private final ByteString identity;
+
+        private Signer(String mspId, PrivateKey key, String certificatePem) {
+            this.key = key;
+            this.identity = Identities.SerializedIdentity.newBuilder()
+                    .setMspid(mspId)
+                    .setIdBytes(ByteString.copyFrom(certificatePem, StandardCharsets.UTF_8))
+                    .build().toByteString();
+        }
+
+        ByteString getIdentity() {
+            return identity;
+        }
+
+        ByteString sign(ByteString data) throws Exception {
+            Signature signature = Signature.getInstance("SHA256withECDSA");
+            signature.initSign(key);
+            signature.update(data.toByteArray());
+            return ByteString.copyFrom(signature.sign());
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.techprimers.grpc.standin;
+
+import io.grpc.stub.StreamObserver;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.peer.DeliverGrpc;
+import org.hyperledger.fabric.protos.peer.PeerEvents;
+
+/**
+ * Block and filtered block events of one stand-in peer, the SDK's channel event service connects here.
+ */
+class DeliverService extends DeliverGrpc.DeliverImplBase {
+    private final String channel;
+    private final BlockStreamer<PeerEvents.DeliverResponse> streamer;
+
+    DeliverService(String channel, BlockStreamer<PeerEvents.DeliverResponse> streamer) {
+        this.channel = channel;
+        this.streamer = streamer;
+    }
+
+    @Override
+    public StreamObserver<Common.Envelope> deliver(StreamObserver<PeerEvents.DeliverResponse> responseObserver) {
+        return streamer.open(responseObserver, new BlockStreamer.Responses<PeerEvents.DeliverResponse>() {
+            @Override
+            public PeerEvents.DeliverResponse block(Common.Block block) {
+                return PeerEvents.DeliverResponse.newBuilder().setBlock(block).build();
+            }
+
+            @Override
+            public PeerEvents.DeliverResponse status(Common.Status status) {
+                return PeerEvents.DeliverResponse.newBuilder().setStatus(status).build();
+            }
+        });
+    }
+
+    @Override
+    public StreamObserver<Common.Envelope> deliverFiltered(StreamObserver<PeerEvents.DeliverResponse> responseObserver) {
+        return streamer.open(responseObserver, new BlockStreamer.Responses<PeerEvents.DeliverResponse>() {
+            @Override
+            public PeerEvents.DeliverResponse block(Common.Block block) throws Exception {
+                return PeerEvents.DeliverResponse.newBuilder().setFilteredBlock(Blocks.filter(channel, block)).build();
+            }
+
+            @Override
+            public PeerEvents.DeliverResponse status(Common.Status status) {
+                return PeerEvents.DeliverResponse.newBuilder().setStatus(status).build();
+            }
+        });
+    }
+}
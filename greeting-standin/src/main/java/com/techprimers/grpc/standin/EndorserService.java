@@ -0,0 +1,160 @@
+package com.techprimers.grpc.standin;
+
+import com.google.protobuf.ByteString;
+import io.grpc.stub.StreamObserver;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.peer.Chaincode;
+import org.hyperledger.fabric.protos.peer.EndorserGrpc;
+import org.hyperledger.fabric.protos.peer.FabricProposal;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse;
+import org.json.JSONException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Endorser of one stand-in peer. Proposals wait for the configured endorsement latency, are simulated against
+ * the committed world state and answered with a response signed by the peer, like a peer does it without a
+ * chaincode container. The endorsement policy and the signature of the proposal are not checked.
+ */
+class EndorserService extends EndorserGrpc.EndorserImplBase {
+    private final CertificateAuthority.Signer signer;
+    private final Ledger ledger;
+    private final Fabcar fabcar;
+    private final StandinConfig config;
+    private final ScheduledExecutorService executor;
+
+    EndorserService(CertificateAuthority.Signer signer, Ledger ledger, Fabcar fabcar, StandinConfig config,
+                    ScheduledExecutorService executor) {
+        this.signer = signer;
+        this.ledger = ledger;
+        this.fabcar = fabcar;
+        this.config = config;
+        this.executor = executor;
+    }
+
+    @Override
+    public void processProposal(FabricProposal.SignedProposal request,
+                                StreamObserver<FabricProposalResponse.ProposalResponse> responseObserver) {
+        long delay = config.getEndorseLatencyMillis();
+        if (config.getEndorseJitterMillis() > 0) {
+            delay += ThreadLocalRandom.current().nextLong(config.getEndorseJitterMillis() + 1);
+        }
+        executor.schedule(() -> {
+            try {
+                responseObserver.onNext(endorse(request));
+                responseObserver.onCompleted();
+            } catch (Exception e) {
+                responseObserver.onError(e);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private FabricProposalResponse.ProposalResponse endorse(FabricProposal.SignedProposal signedProposal)
+            throws Exception {
+        FabricProposal.Proposal proposal = FabricProposal.Proposal.parseFrom(signedProposal.getProposalBytes());
+        Common.Header header = Common.Header.parseFrom(proposal.getHeader());
+        Common.ChannelHeader channelHeader = Common.ChannelHeader.parseFrom(header.getChannelHeader());
+        FabricProposal.ChaincodeHeaderExtension extension =
+                FabricProposal.ChaincodeHeaderExtension.parseFrom(channelHeader.getExtension());
+        FabricProposal.ChaincodeProposalPayload proposalPayload =
+                FabricProposal.ChaincodeProposalPayload.parseFrom(proposal.getPayload());
+        Chaincode.ChaincodeInvocationSpec invocation =
+                Chaincode.ChaincodeInvocationSpec.parseFrom(proposalPayload.getInput());
+
+        List<ByteString> input = invocation.getChaincodeSpec().getInput().getArgsList();
+        String function = input.isEmpty() ? "" : input.get(0).toString(StandardCharsets.UTF_8);
+        String[] args = new String[Math.max(0, input.size() - 1)];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = input.get(i + 1).toString(StandardCharsets.UTF_8);
+        }
+
+        String chaincode = extension.getChaincodeId().getName();
+        TxSimulator stub = new TxSimulator(ledger, chaincode, channelHeader.getTxId());
+        FabricProposalResponse.Response response;
+        try {
+            byte[] payload = invoke(chaincode, channelHeader.getChannelId(), stub, function, args);
+            response = FabricProposalResponse.Response.newBuilder()
+                    .setStatus(200)
+                    .setPayload(ByteString.copyFrom(payload))
+                    .build();
+        } catch (Fabcar.ChaincodeException | IllegalArgumentException | JSONException e) {
+            response = FabricProposalResponse.Response.newBuilder()
+                    .setStatus(500)
+                    .setMessage(e.getMessage() == null ? e.toString() : e.getMessage())
+                    .build();
+        }
+
+        FabricProposal.ChaincodeAction action = FabricProposal.ChaincodeAction.newBuilder()
+                .setResults(stub.getResults())
+                .setResponse(response)
+                .setChaincodeId(Chaincode.ChaincodeID.newBuilder().setName(chaincode).setVersion("1.0"))
+                .build();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(proposal.getHeader().asReadOnlyByteBuffer());
+        digest.update(proposal.getPayload().asReadOnlyByteBuffer());
+        ByteString responsePayload = FabricProposalResponse.ProposalResponsePayload.newBuilder()
+                .setProposalHash(ByteString.copyFrom(digest.digest()))
+                .setExtension(action.toByteString())
+                .build().toByteString();
+
+        FabricProposalResponse.Endorsement endorsement = FabricProposalResponse.Endorsement.newBuilder()
+                .setEndorser(signer.getIdentity())
+                .setSignature(signer.sign(responsePayload.concat(signer.getIdentity())))
+                .build();
+        return FabricProposalResponse.ProposalResponse.newBuilder()
+                .setVersion(1)
+                .setTimestamp(Blocks.now())
+                .setResponse(response)
+                .setPayload(responsePayload)
+                .setEndorsement(endorsement)
+                .build();
+    }
+
+    /**
+     * Runs the system chaincodes the SDK uses to join the channel and read blocks, everything else is fabcar.
+     */
+    private byte[] invoke(String chaincode, String channel, TxSimulator stub, String function, String[] args)
+            throws Exception {
+        if (!"cscc".equals(chaincode) && !"qscc".equals(chaincode)) {
+            if (!channel.equals(ledger.getChannel()) || !chaincode.equals(config.getChaincode())) {
+                throw new Fabcar.ChaincodeException("chaincode " + chaincode + " is not instantiated on " + channel);
+            }
+            return fabcar.invoke(stub, function, args);
+        }
+
+        switch (function) {
+            case "GetConfigBlock":
+                return checkedBlock(args.length > 0 ? args[0] : "", 0).toByteArray();
+            case "GetBlockByNumber":
+                return checkedBlock(args.length > 0 ? args[0] : "", Long.parseLong(args[1])).toByteArray();
+            case "GetChainInfo": {
+                checkedBlock(args.length > 0 ? args[0] : "", 0);
+                long height = ledger.getHeight();
+                Common.Block top = ledger.getBlock(height - 1);
+                return org.hyperledger.fabric.protos.common.Ledger.BlockchainInfo.newBuilder()
+                        .setHeight(height)
+                        .setCurrentBlockHash(Blocks.hash(top.getHeader()))
+                        .setPreviousBlockHash(top.getHeader().getPreviousHash())
+                        .build().toByteArray();
+            }
+            default:
+                throw new Fabcar.ChaincodeException(chaincode + " function " + function + " is not supported");
+        }
+    }
+
+    private Common.Block checkedBlock(String channel, long number) throws Fabcar.ChaincodeException {
+        if (!channel.equals(ledger.getChannel())) {
+            throw new Fabcar.ChaincodeException("channel " + channel + " not found");
+        }
+        Common.Block block = ledger.getBlock(number);
+        if (block == null) {
+            throw new Fabcar.ChaincodeException("block " + number + " not found");
+        }
+        return block;
+    }
+}
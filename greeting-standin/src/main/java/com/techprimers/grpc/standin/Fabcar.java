@@ -0,0 +1,254 @@
+package com.techprimers.grpc.standin;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The fabcar and voting chaincode functions the service calls, run against a {@link TxSimulator}. The private
+ * keys of votings stay in memory like they stay inside the chaincode container, every peer shares this instance
+ * so their blind signatures agree.
+ */
+class Fabcar {
+    private static final String[][] CARS = {
+            {"Toyota", "Prius", "blue", "Tomoko"},
+            {"Ford", "Mustang", "red", "Brad"},
+            {"Hyundai", "Tucson", "green", "Jin Soo"},
+            {"Volkswagen", "Passat", "yellow", "Max"},
+            {"Tesla", "S", "black", "Adriana"},
+            {"Peugeot", "205", "purple", "Michel"},
+            {"Chery", "S22L", "white", "Aarav"},
+            {"Fiat", "Punto", "violet", "Pari"},
+            {"Tata", "Nano", "indigo", "Valeria"},
+            {"Holden", "Barina", "brown", "Shotaro"},
+    };
+
+    private final Map<String, KeyPair> votingKeys = new ConcurrentHashMap<>();
+
+    /**
+     * @return payload of the chaincode response
+     * @throws ChaincodeException when the chaincode answers with an error status
+     */
+    byte[] invoke(TxSimulator stub, String function, String[] args) throws Exception {
+        switch (function) {
+            case "initLedger":
+                return initLedger(stub);
+            case "queryCar":
+                return queryCar(stub, arg(args, 0));
+            case "queryAllCars":
+                return queryAllCars(stub);
+            case "queryAllCarsWithPagination":
+                return queryAllCarsWithPagination(stub, arg(args, 0), arg(args, 1), Integer.parseInt(arg(args, 2)),
+                        args.length > 3 ? args[3] : "");
+            case "createCar":
+                return createCar(stub, arg(args, 0), arg(args, 1), arg(args, 2), arg(args, 3), arg(args, 4));
+            case "changeCarOwner":
+                return changeCarOwner(stub, arg(args, 0), arg(args, 1));
+            case "createVoting":
+                return createVoting(stub, arg(args, 0));
+            case "getVoting":
+                return getVoting(stub, arg(args, 0));
+            case "getBlindSign":
+                return getBlindSign(stub, new JSONObject(arg(args, 0)));
+            case "registerUserInVotingIdemix":
+                return registerUserInVotingIdemix(stub, new JSONObject(arg(args, 0)));
+            case "voteIdemix":
+                return voteIdemix(stub, new JSONObject(arg(args, 0)));
+            default:
+                throw new ChaincodeException("Invalid Smart Contract function name " + function);
+        }
+    }
+
+    private byte[] initLedger(TxSimulator stub) {
+        for (int i = 0; i < CARS.length; i++) {
+            stub.putState("CAR" + i, car(CARS[i][0], CARS[i][1], CARS[i][2], CARS[i][3]));
+        }
+        return new byte[0];
+    }
+
+    private byte[] queryCar(TxSimulator stub, String key) throws ChaincodeException {
+        byte[] car = stub.getState(key);
+        if (car == null) {
+            throw new ChaincodeException(key + " does not exist");
+        }
+        return car;
+    }
+
+    private byte[] queryAllCars(TxSimulator stub) {
+        JSONArray records = new JSONArray();
+        for (Map.Entry<String, byte[]> entry : stub.getStateByRange("CAR0", "CAR999").entrySet()) {
+            records.put(record(entry.getKey(), entry.getValue()));
+        }
+        return records.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] queryAllCarsWithPagination(TxSimulator stub, String startKey, String endKey, int pageSize,
+                                              String bookmark) {
+        String from = bookmark.isEmpty() ? startKey : bookmark;
+        // one extra state tells whether there is a next page and where it starts
+        Map<String, byte[]> page = stub.getStateByRange(from, endKey, pageSize + 1);
+        JSONArray records = new JSONArray();
+        String next = "";
+        for (Map.Entry<String, byte[]> entry : page.entrySet()) {
+            if (records.length() == pageSize) {
+                next = entry.getKey();
+                break;
+            }
+            records.put(record(entry.getKey(), entry.getValue()));
+        }
+        return new JSONObject().put("records", records).put("bookmark", next).toString()
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] createCar(TxSimulator stub, String key, String make, String model, String colour, String owner) {
+        stub.putState(key, car(make, model, colour, owner));
+        return new byte[0];
+    }
+
+    private byte[] changeCarOwner(TxSimulator stub, String key, String owner) throws ChaincodeException {
+        JSONObject car = new JSONObject(new String(queryCar(stub, key), StandardCharsets.UTF_8));
+        stub.putState(key, car.put("owner", owner).toString().getBytes(StandardCharsets.UTF_8));
+        return new byte[0];
+    }
+
+    private byte[] createVoting(TxSimulator stub, String votingId) throws Exception {
+        KeyPair keyPair = votingKeys.computeIfAbsent(votingId, id -> newVotingKey());
+        JSONObject voting = new JSONObject()
+                .put("id", votingId)
+                .put("pubKey", Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded()));
+        byte[] value = voting.toString().getBytes(StandardCharsets.UTF_8);
+        stub.putState("VOTING_" + votingId, value);
+        return value;
+    }
+
+    private byte[] getVoting(TxSimulator stub, String votingId) throws ChaincodeException {
+        byte[] voting = stub.getState("VOTING_" + votingId);
+        if (voting == null) {
+            throw new ChaincodeException("Voting " + votingId + " does not exist");
+        }
+        return voting;
+    }
+
+    /**
+     * Signs the blinded hash m' of a user key with the voting key: s' = m'^d mod N.
+     */
+    private byte[] getBlindSign(TxSimulator stub, JSONObject request) throws Exception {
+        RSAPrivateKey key = (RSAPrivateKey) getVotingKey(stub, request.getString("votingId")).getPrivate();
+        BigInteger signed = new BigInteger(request.getString("data")).modPow(key.getPrivateExponent(), key.getModulus());
+        return signed.toString(10).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] registerUserInVotingIdemix(TxSimulator stub, JSONObject request) throws Exception {
+        String votingId = request.getString("votingId");
+        String userKey = request.getString("key");
+        checkSignedKey((RSAPublicKey) getVotingKey(stub, votingId).getPublic(), userKey, request.getString("signedKey"),
+                "Signed key is not signed by voting");
+
+        String voterKey = "VOTER_" + votingId + "_" + hash(userKey);
+        if (stub.getState(voterKey) != null) {
+            throw new ChaincodeException("User is already registered in voting " + votingId);
+        }
+        stub.putState(voterKey, new JSONObject().put("voted", false).toString().getBytes(StandardCharsets.UTF_8));
+        return new byte[0];
+    }
+
+    private byte[] voteIdemix(TxSimulator stub, JSONObject ballot) throws Exception {
+        String votingId = ballot.getString("votingId");
+        String voterKey = "VOTER_" + votingId + "_" + hash(ballot.getString("key"));
+        byte[] voter = stub.getState(voterKey);
+        if (voter == null) {
+            throw new ChaincodeException("User is not registered in voting " + votingId);
+        }
+        if (new JSONObject(new String(voter, StandardCharsets.UTF_8)).getBoolean("voted")) {
+            throw new ChaincodeException("User has already voted in voting " + votingId);
+        }
+        // the ballot is signed with the user's own key
+        RSAPublicKey userKey = (RSAPublicKey) KeyFactory.getInstance("RSA").generatePublic(
+                new X509EncodedKeySpec(Base64.getDecoder().decode(ballot.getString("key"))));
+        checkSignedKey(userKey, ballot.getString("key"), ballot.getString("signedKey"), "Ballot signature is invalid");
+
+        stub.putState(voterKey, new JSONObject().put("voted", true).toString().getBytes(StandardCharsets.UTF_8));
+        stub.putState("BALLOT_" + votingId + "_" + stub.getTxId(),
+                ballot.toString().getBytes(StandardCharsets.UTF_8));
+        return new byte[0];
+    }
+
+    private KeyPair getVotingKey(TxSimulator stub, String votingId) throws Exception {
+        if (stub.getState("VOTING_" + votingId) == null) {
+            createVoting(stub, votingId);
+        }
+        return votingKeys.computeIfAbsent(votingId, id -> newVotingKey());
+    }
+
+    /**
+     * Checks that s^e mod N is the hash of the encoded user key.
+     */
+    private static void checkSignedKey(RSAPublicKey pubKey, String userKey, String signedKey, String error)
+            throws Exception {
+        BigInteger hash = new BigInteger(1, sha256(Base64.getDecoder().decode(userKey)));
+        if (!new BigInteger(signedKey).modPow(pubKey.getPublicExponent(), pubKey.getModulus()).equals(hash)) {
+            throw new ChaincodeException(error);
+        }
+    }
+
+    private static KeyPair newVotingKey() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            return generator.generateKeyPair();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hash(String value) throws Exception {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sha256(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static byte[] sha256(byte[] data) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+
+    private static byte[] car(String make, String model, String colour, String owner) {
+        return new JSONObject()
+                .put("make", make)
+                .put("model", model)
+                .put("colour", colour)
+                .put("owner", owner)
+                .toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static JSONObject record(String key, byte[] value) {
+        return new JSONObject()
+                .put("Key", key)
+                .put("Record", new JSONObject(new String(value, StandardCharsets.UTF_8)));
+    }
+
+    private static String arg(String[] args, int index) throws ChaincodeException {
+        if (index >= args.length) {
+            throw new ChaincodeException("Incorrect number of arguments. Expecting " + (index + 1));
+        }
+        return args[index];
+    }
+
+    /**
+     * Error answered by the chaincode, becomes a status 500 response of the endorsement.
+     */
+    static class ChaincodeException extends Exception {
+        ChaincodeException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.techprimers.grpc.standin;
+
+import com.google.protobuf.ByteString;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x500.style.IETFUtils;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.hyperledger.fabric.protos.idemix.Idemix;
+import org.hyperledger.fabric.sdk.idemix.StandinIdemixIssuer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The part of the fabric-ca REST API the service uses: CA info, enroll, register and idemix credentials. Users
+ * are kept in memory, starting with the {@code admin}/{@code adminpw} registrar of the network config.
+ * Authorization tokens are trusted without checking their signature.
+ */
+class FabricCaServer {
+    private static final String ADMIN = "admin";
+
+    private final String caName;
+    private final String affiliation;
+    private final CertificateAuthority ca;
+    private final StandinIdemixIssuer idemixIssuer = new StandinIdemixIssuer();
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final HttpServer server;
+
+    FabricCaServer(String caName, String affiliation, CertificateAuthority ca, int port) throws IOException {
+        this.caName = caName;
+        this.affiliation = affiliation;
+        this.ca = ca;
+        this.users.put(ADMIN, new User("adminpw", affiliation, true));
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.createContext("/api/v1/cainfo", exchange -> handle(exchange, (ex, request) -> caInfo()));
+        this.server.createContext("/api/v1/enroll", exchange -> handle(exchange, this::enroll));
+        this.server.createContext("/api/v1/register", exchange -> handle(exchange, this::register));
+        this.server.createContext("/api/v1/idemix/credential", exchange -> handle(exchange, this::idemixCredential));
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    private JSONObject caInfo() throws Exception {
+        return new JSONObject()
+                .put("CAName", caName)
+                .put("CAChain", base64(ca.getPem()))
+                .put("Version", "1.4.4")
+                .put("IssuerPublicKey", Base64.getEncoder().encodeToString(idemixIssuer.getIssuerPublicKey()))
+                .put("IssuerRevocationPublicKey", base64(CertificateAuthority.toPem(idemixIssuer.getRevocationPublicKey())));
+    }
+
+    private JSONObject enroll(HttpExchange exchange, JSONObject request) throws Exception {
+        String[] credentials = new String(Base64.getDecoder().decode(
+                authorization(exchange).substring("Basic ".length())), StandardCharsets.UTF_8).split(":", 2);
+        User user = users.get(credentials[0]);
+        if (user == null || credentials.length < 2 || !user.secret.equals(credentials[1])) {
+            throw new CaException(20, "Authentication failure");
+        }
+        String certificate = ca.sign(request.getString("certificate_request"), credentials[0]);
+        JSONObject serverInfo = new JSONObject()
+                .put("CAName", caName)
+                .put("CAChain", base64(ca.getPem()));
+        return new JSONObject()
+                .put("Cert", base64(certificate))
+                .put("ServerInfo", serverInfo);
+    }
+
+    private JSONObject register(HttpExchange exchange, JSONObject request) throws Exception {
+        User registrar = users.get(caller(exchange));
+        if (registrar == null || !registrar.registrar) {
+            throw new CaException(71, "Authorization failure");
+        }
+        String id = request.getString("id");
+        String secret = request.optString("secret", "");
+        if (secret.isEmpty()) {
+            secret = UUID.randomUUID().toString().substring(0, 12);
+        }
+        if (users.putIfAbsent(id, new User(secret, request.optString("affiliation", affiliation), false)) != null) {
+            throw new CaException(74, "Identity '" + id + "' is already registered");
+        }
+        return new JSONObject().put("secret", secret);
+    }
+
+    /**
+     * Called twice by the SDK: first without a request to get a nonce and the issuer keys, then with the
+     * credential request built from them.
+     */
+    private JSONObject idemixCredential(HttpExchange exchange, JSONObject body) throws Exception {
+        String id = caller(exchange);
+        User user = users.get(id);
+        if (user == null) {
+            throw new CaException(71, "Authorization failure");
+        }
+        JSONObject request = body.optJSONObject("request");
+        if (request == null) {
+            return new JSONObject()
+                    .put("Nonce", Base64.getEncoder().encodeToString(idemixIssuer.newNonce()))
+                    .put("CAInfo", caInfo());
+        }
+
+        JSONObject nym = request.getJSONObject("nym");
+        Idemix.CredRequest credRequest = Idemix.CredRequest.newBuilder()
+                .setNym(Idemix.ECP.newBuilder().setX(bytes(nym, "x")).setY(bytes(nym, "y")))
+                .setIssuerNonce(bytes(request, "issuer_nonce"))
+                .setProofC(bytes(request, "proof_c"))
+                .setProofS(bytes(request, "proof_s"))
+                .build();
+        // IdemixRoles bit mask as fabric-ca sets it: ADMIN for registrars, MEMBER otherwise
+        int role = user.registrar ? 2 : 1;
+        byte[] credential = idemixIssuer.issue(credRequest, user.affiliation, role, id);
+        if (credential == null) {
+            throw new CaException(20, "Invalid idemix credential request");
+        }
+        JSONObject attrs = new JSONObject()
+                .put("OU", user.affiliation)
+                .put("Role", role)
+                .put("EnrollmentID", id)
+                .put("RevocationHandle", "1");
+        return new JSONObject()
+                .put("Credential", Base64.getEncoder().encodeToString(credential))
+                .put("CRI", Base64.getEncoder().encodeToString(idemixIssuer.getCredentialRevocationInformation()))
+                .put("Attrs", attrs);
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        JSONObject response = new JSONObject()
+                .put("errors", new JSONArray())
+                .put("messages", new JSONArray());
+        int status = 200;
+        try (InputStream in = exchange.getRequestBody()) {
+            String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            JSONObject request = body.isEmpty() ? new JSONObject() : new JSONObject(body);
+            response.put("success", true).put("result", handler.handle(exchange, request));
+        } catch (CaException e) {
+            status = 401;
+            response.put("success", false)
+                    .put("errors", new JSONArray().put(new JSONObject().put("code", e.code).put("message", e.getMessage())));
+        } catch (Exception e) {
+            status = 500;
+            response.put("success", false)
+                    .put("errors", new JSONArray().put(new JSONObject().put("code", 0).put("message", e.toString())));
+        }
+
+        byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String authorization(HttpExchange exchange) throws CaException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null) {
+            throw new CaException(20, "No authorization header");
+        }
+        return authorization;
+    }
+
+    /**
+     * @return enrollment id of the certificate in a {@code <base64 cert>.<base64 signature>} token
+     */
+    private static String caller(HttpExchange exchange) throws Exception {
+        String token = authorization(exchange);
+        byte[] pem = Base64.getDecoder().decode(token.substring(0, token.indexOf('.')));
+        X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(pem));
+        X500Name subject = new JcaX509CertificateHolder(certificate).getSubject();
+        RDN cn = subject.getRDNs(BCStyle.CN)[0];
+        return IETFUtils.valueToString(cn.getFirst().getValue());
+    }
+
+    private static ByteString bytes(JSONObject json, String key) {
+        return ByteString.copyFrom(Base64.getDecoder().decode(json.getString(key)));
+    }
+
+    private static String base64(String value) {
+        return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private interface Handler {
+        JSONObject handle(HttpExchange exchange, JSONObject request) throws Exception;
+    }
+
+    private static class User {
+        private final String secret;
+        private final String affiliation;
+        private final boolean registrar;
+
+        private User(String secret, String affiliation, boolean registrar) {
+            this.secret = secret;
+            this.affiliation = affiliation;
+            this.registrar = registrar;
+        }
+    }
+
+    private static class CaException extends Exception {
+        private final int code;
+
+        private CaException(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+}
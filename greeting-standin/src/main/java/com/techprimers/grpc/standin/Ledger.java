@@ -0,0 +1,226 @@
+package com.techprimers.grpc.standin;
+
+import com.google.protobuf.ByteString;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.ledger.rwset.Rwset;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.protos.peer.FabricProposal;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse;
+import org.hyperledger.fabric.protos.peer.FabricTransaction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Blocks and world state of the channel, shared by all stand-in peers and the orderer. Transactions are
+ * validated like a peer does it: each read and range read of the simulation must still see the same versions
+ * when the transaction is committed, otherwise it is marked as a conflict and its writes are dropped.
+ */
+class Ledger {
+    private final String channel;
+    private final double conflictRate;
+    private final Random random = new Random();
+
+    private final List<Common.Block> blocks = new ArrayList<>();
+    private final TreeMap<String, Value> state = new TreeMap<>();
+    private final Set<String> txIds = new HashSet<>();
+
+    Ledger(String channel, Common.Block configBlock, double conflictRate) {
+        this.channel = channel;
+        this.conflictRate = conflictRate;
+        this.blocks.add(configBlock);
+    }
+
+    String getChannel() {
+        return channel;
+    }
+
+    synchronized long getHeight() {
+        return blocks.size();
+    }
+
+    synchronized Common.Block getBlock(long number) {
+        return number < blocks.size() ? blocks.get((int) number) : null;
+    }
+
+    /**
+     * @return block {@code number}, waiting up to {@code timeoutMillis} for it to be committed, or null
+     */
+    synchronized Common.Block awaitBlock(long number, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (number >= blocks.size()) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return null;
+            }
+            wait(left);
+        }
+        return blocks.get((int) number);
+    }
+
+    synchronized Value get(String key) {
+        return state.get(key);
+    }
+
+    synchronized SortedMap<String, Value> range(String startKey, String endKey) {
+        if (endKey.isEmpty()) {
+            return new TreeMap<>(state.tailMap(startKey));
+        }
+        return new TreeMap<>(state.subMap(startKey, endKey));
+    }
+
+    /**
+     * Validate and commit the ordered envelopes as the next block.
+     */
+    synchronized Common.Block commit(List<Common.Envelope> envelopes) throws Exception {
+        long number = blocks.size();
+        byte[] txFilter = new byte[envelopes.size()];
+        List<ByteString> data = new ArrayList<>(envelopes.size());
+
+        for (int i = 0; i < envelopes.size(); i++) {
+            Common.Envelope envelope = envelopes.get(i);
+            data.add(envelope.toByteString());
+            txFilter[i] = (byte) validateAndApply(envelope, number, i).getNumber();
+        }
+
+        Common.Block previous = blocks.get(blocks.size() - 1);
+        Common.Block block = Blocks.newBlock(number, Blocks.hash(previous.getHeader()), data, txFilter);
+        blocks.add(block);
+        notifyAll();
+        return block;
+    }
+
+    private FabricTransaction.TxValidationCode validateAndApply(Common.Envelope envelope, long blockNumber, int txNumber) {
+        List<KvRwset.KVRWSet> rwsets;
+        try {
+            Common.Payload payload = Common.Payload.parseFrom(envelope.getPayload());
+            Common.ChannelHeader channelHeader = Common.ChannelHeader.parseFrom(payload.getHeader().getChannelHeader());
+            if (channelHeader.getType() != Common.HeaderType.ENDORSER_TRANSACTION_VALUE) {
+                return FabricTransaction.TxValidationCode.UNKNOWN_TX_TYPE;
+            }
+            if (!txIds.add(channelHeader.getTxId())) {
+                return FabricTransaction.TxValidationCode.DUPLICATE_TXID;
+            }
+            rwsets = getRwsets(FabricTransaction.Transaction.parseFrom(payload.getData()));
+        } catch (Exception e) {
+            return FabricTransaction.TxValidationCode.BAD_PAYLOAD;
+        }
+
+        for (KvRwset.KVRWSet rwset : rwsets) {
+            for (KvRwset.KVRead read : rwset.getReadsList()) {
+                if (!isCurrent(read)) {
+                    return FabricTransaction.TxValidationCode.MVCC_READ_CONFLICT;
+                }
+            }
+            for (KvRwset.RangeQueryInfo rangeQuery : rwset.getRangeQueriesInfoList()) {
+                if (!isCurrent(rangeQuery)) {
+                    return FabricTransaction.TxValidationCode.PHANTOM_READ_CONFLICT;
+                }
+            }
+        }
+        if (conflictRate > 0 && random.nextDouble() < conflictRate) {
+            return FabricTransaction.TxValidationCode.MVCC_READ_CONFLICT;
+        }
+
+        for (KvRwset.KVRWSet rwset : rwsets) {
+            for (KvRwset.KVWrite write : rwset.getWritesList()) {
+                if (write.getIsDelete()) {
+                    state.remove(write.getKey());
+                } else {
+                    state.put(write.getKey(), new Value(write.getValue().toByteArray(), blockNumber, txNumber));
+                }
+            }
+        }
+        return FabricTransaction.TxValidationCode.VALID;
+    }
+
+    private boolean isCurrent(KvRwset.KVRead read) {
+        Value value = state.get(read.getKey());
+        if (!read.hasVersion()) {
+            return value == null;
+        }
+        return value != null && value.isVersion(read.getVersion());
+    }
+
+    private boolean isCurrent(KvRwset.RangeQueryInfo rangeQuery) {
+        Map<String, KvRwset.KVRead> simulated = new HashMap<>();
+        for (KvRwset.KVRead read : rangeQuery.getRawReads().getKvReadsList()) {
+            simulated.put(read.getKey(), read);
+        }
+
+        SortedMap<String, Value> now = rangeQuery.getEndKey().isEmpty()
+                ? state.tailMap(rangeQuery.getStartKey())
+                : state.subMap(rangeQuery.getStartKey(), rangeQuery.getEndKey());
+        if (!rangeQuery.getItrExhausted()) {
+            // the simulation stopped early, only the part it looked at matters
+            String last = null;
+            for (String key : simulated.keySet()) {
+                last = last == null || key.compareTo(last) > 0 ? key : last;
+            }
+            now = last == null ? new TreeMap<>() : now.headMap(last + "\0");
+        }
+        if (now.size() != simulated.size()) {
+            return false;
+        }
+        Iterator<Map.Entry<String, Value>> it = now.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Value> entry = it.next();
+            KvRwset.KVRead read = simulated.get(entry.getKey());
+            if (read == null || !entry.getValue().isVersion(read.getVersion())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<KvRwset.KVRWSet> getRwsets(FabricTransaction.Transaction transaction) throws Exception {
+        List<KvRwset.KVRWSet> rwsets = new ArrayList<>();
+        for (FabricTransaction.TransactionAction action : transaction.getActionsList()) {
+            FabricTransaction.ChaincodeActionPayload actionPayload =
+                    FabricTransaction.ChaincodeActionPayload.parseFrom(action.getPayload());
+            FabricProposalResponse.ProposalResponsePayload responsePayload =
+                    FabricProposalResponse.ProposalResponsePayload.parseFrom(actionPayload.getAction().getProposalResponsePayload());
+            FabricProposal.ChaincodeAction chaincodeAction = FabricProposal.ChaincodeAction.parseFrom(responsePayload.getExtension());
+            Rwset.TxReadWriteSet txRwset = Rwset.TxReadWriteSet.parseFrom(chaincodeAction.getResults());
+            for (Rwset.NsReadWriteSet nsRwset : txRwset.getNsRwsetList()) {
+                rwsets.add(KvRwset.KVRWSet.parseFrom(nsRwset.getRwset()));
+            }
+        }
+        return rwsets;
+    }
+
+    /**
+     * World state value and the height of the transaction that wrote it.
+     */
+    static class Value {
+        private final byte[] value;
+        private final long blockNumber;
+        private final long txNumber;
+
+        private Value(byte[] value, long blockNumber, long txNumber) {
+            this.value = value;
+            this.blockNumber = blockNumber;
+            this.txNumber = txNumber;
+        }
+
+        byte[] getValue() {
+            return value;
+        }
+
+        KvRwset.Version getVersion() {
+            return KvRwset.Version.newBuilder().setBlockNum(blockNumber).setTxNum(txNumber).build();
+        }
+
+        private boolean isVersion(KvRwset.Version version) {
+            return version.getBlockNum() == blockNumber && version.getTxNum() == txNumber;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.techprimers.grpc.standin;
+
+import io.grpc.stub.StreamObserver;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.orderer.Ab;
+import org.hyperledger.fabric.protos.orderer.AtomicBroadcastGrpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Solo orderer of the stand-in. Broadcast envelopes are acknowledged right away and cut into blocks of
+ * {@code block.size} transactions, or fewer once {@code block.timeout-ms} passed since the first transaction
+ * of the block. Each block is committed to the shared ledger after {@code commit.latency-ms}, which stands for
+ * the delivery to and validation on the peers.
+ */
+class OrdererService extends AtomicBroadcastGrpc.AtomicBroadcastImplBase {
+    private final Ledger ledger;
+    private final StandinConfig config;
+    private final BlockStreamer<Ab.DeliverResponse> streamer;
+    private final BlockingQueue<Common.Envelope> pending = new LinkedBlockingQueue<>();
+    private final Thread cutter = new Thread(this::cutBlocks, "standin-orderer");
+
+    OrdererService(Ledger ledger, StandinConfig config, BlockStreamer<Ab.DeliverResponse> streamer) {
+        this.ledger = ledger;
+        this.config = config;
+        this.streamer = streamer;
+        this.cutter.setDaemon(true);
+    }
+
+    void start() {
+        cutter.start();
+    }
+
+    void stop() {
+        cutter.interrupt();
+    }
+
+    @Override
+    public StreamObserver<Common.Envelope> broadcast(StreamObserver<Ab.BroadcastResponse> responseObserver) {
+        return new StreamObserver<Common.Envelope>() {
+            @Override
+            public void onNext(Common.Envelope envelope) {
+                pending.add(envelope);
+                responseObserver.onNext(Ab.BroadcastResponse.newBuilder().setStatus(Common.Status.SUCCESS).build());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+                responseObserver.onCompleted();
+            }
+        };
+    }
+
+    @Override
+    public StreamObserver<Common.Envelope> deliver(StreamObserver<Ab.DeliverResponse> responseObserver) {
+        return streamer.open(responseObserver, new BlockStreamer.Responses<Ab.DeliverResponse>() {
+            @Override
+            public Ab.DeliverResponse block(Common.Block block) {
+                return Ab.DeliverResponse.newBuilder().setBlock(block).build();
+            }
+
+            @Override
+            public Ab.DeliverResponse status(Common.Status status) {
+                return Ab.DeliverResponse.newBuilder().setStatus(status).build();
+            }
+        });
+    }
+
+    private void cutBlocks() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<Common.Envelope> batch = new ArrayList<>(config.getBlockSize());
+                batch.add(pending.take());
+                long deadline = System.currentTimeMillis() + config.getBlockTimeoutMillis();
+                while (batch.size() < config.getBlockSize()) {
+                    Common.Envelope next = pending.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                if (config.getCommitLatencyMillis() > 0) {
+                    Thread.sleep(config.getCommitLatencyMillis());
+                }
+                ledger.commit(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not commit block", e);
+        }
+    }
+}
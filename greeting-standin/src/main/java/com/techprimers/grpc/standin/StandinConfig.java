@@ -0,0 +1,79 @@
+package com.techprimers.grpc.standin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Settings of the stand-in network. Defaults come from {@code standin.properties}, {@code -Dstandin.<key>}
+ * system properties and {@code <key>=<value>} program arguments override them.
+ */
+class StandinConfig {
+    private final Properties properties = new Properties();
+
+    StandinConfig(String[] args) throws IOException {
+        try (InputStream in = StandinConfig.class.getResourceAsStream("/standin.properties")) {
+            if (in != null) {
+                properties.load(in);
+            }
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("standin.")) {
+                properties.setProperty(name.substring("standin.".length()), System.getProperty(name));
+            }
+        }
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("expected key=value, got " + arg);
+            }
+            properties.setProperty(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+    }
+
+    String getChannel() {
+        return properties.getProperty("channel", "mychannel");
+    }
+
+    String getChaincode() {
+        return properties.getProperty("chaincode", "fabcar");
+    }
+
+    int getPort(String name) {
+        return Integer.parseInt(properties.getProperty(name + ".port"));
+    }
+
+    long getEndorseLatencyMillis() {
+        return getLong("endorse.latency-ms", 0);
+    }
+
+    long getEndorseJitterMillis() {
+        return getLong("endorse.jitter-ms", 0);
+    }
+
+    int getBlockSize() {
+        return (int) getLong("block.size", 10);
+    }
+
+    long getBlockTimeoutMillis() {
+        return getLong("block.timeout-ms", 2000);
+    }
+
+    long getCommitLatencyMillis() {
+        return getLong("commit.latency-ms", 0);
+    }
+
+    double getMvccConflictRate() {
+        return Double.parseDouble(properties.getProperty("mvcc.conflict-rate", "0"));
+    }
+
+    private long getLong(String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    @Override
+    public String toString() {
+        return properties.toString();
+    }
+}
@@ -0,0 +1,102 @@
+package com.techprimers.grpc.standin;
+
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import org.hyperledger.fabric.protos.common.Common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Starts the stand-in network for offline load tests of the service: the two peers, the orderer and the two CAs
+ * of {@code network-config-local.yaml}, all in this process and sharing one ledger.
+ * <p>
+ * Run with {@code java -jar standin.jar [key=value ...]}, see {@code standin.properties} for the keys.
+ */
+public class StandinNetwork {
+    private static final int MAX_MESSAGE_SIZE = 100 * 1024 * 1024;
+
+    private final List<Server> servers = new ArrayList<>();
+    private final List<FabricCaServer> caServers = new ArrayList<>();
+    private final ScheduledExecutorService endorsers;
+    private final ExecutorService deliverers;
+    private final OrdererService orderer;
+
+    StandinNetwork(StandinConfig config) throws Exception {
+        CertificateAuthority org1 = new CertificateAuthority("Org1MSP", "ca.org1.sample.com");
+        CertificateAuthority org2 = new CertificateAuthority("Org2MSP", "ca.org2.sample.com");
+        CertificateAuthority ordererOrg = new CertificateAuthority("OrdererMSP", "ca.sample.com");
+        Common.Block configBlock = Blocks.configBlock(config.getChannel(), Arrays.asList(org1, org2), ordererOrg);
+        Ledger ledger = new Ledger(config.getChannel(), configBlock, config.getMvccConflictRate());
+        Fabcar fabcar = new Fabcar();
+
+        this.endorsers = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+        this.deliverers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "standin-deliver");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        servers.add(peer(config, "org1", org1.newSigner("peer0.org1.sample.com"), ledger, fabcar));
+        servers.add(peer(config, "org2", org2.newSigner("peer0.org2.sample.com"), ledger, fabcar));
+
+        this.orderer = new OrdererService(ledger, config, new BlockStreamer<>(ledger, deliverers));
+        servers.add(ServerBuilder.forPort(config.getPort("orderer"))
+                .maxInboundMessageSize(MAX_MESSAGE_SIZE)
+                .addService(orderer)
+                .build());
+
+        caServers.add(new FabricCaServer("ca.sample.com", "org1", org1, config.getPort("org1.ca")));
+        caServers.add(new FabricCaServer("ca2.sample.com", "org2", org2, config.getPort("org2.ca")));
+    }
+
+    private Server peer(StandinConfig config, String org, CertificateAuthority.Signer signer, Ledger ledger,
+                        Fabcar fabcar) {
+        return ServerBuilder.forPort(config.getPort(org + ".peer"))
+                .maxInboundMessageSize(MAX_MESSAGE_SIZE)
+                .addService(new EndorserService(signer, ledger, fabcar, config, endorsers))
+                .addService(new DeliverService(ledger.getChannel(), new BlockStreamer<>(ledger, deliverers)))
+                .build();
+    }
+
+    void start() throws Exception {
+        orderer.start();
+        for (Server server : servers) {
+            server.start();
+        }
+        for (FabricCaServer caServer : caServers) {
+            caServer.start();
+        }
+    }
+
+    void stop() {
+        for (FabricCaServer caServer : caServers) {
+            caServer.stop();
+        }
+        for (Server server : servers) {
+            server.shutdownNow();
+        }
+        orderer.stop();
+        endorsers.shutdownNow();
+        deliverers.shutdownNow();
+    }
+
+    void awaitTermination() throws InterruptedException {
+        for (Server server : servers) {
+            server.awaitTermination();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        StandinConfig config = new StandinConfig(args);
+        StandinNetwork network = new StandinNetwork(config);
+        network.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(network::stop, "standin-shutdown"));
+        System.out.println("Stand-in network started " + config);
+        network.awaitTermination();
+    }
+}
@@ -0,0 +1,103 @@
+package com.techprimers.grpc.standin;
+
+import com.google.protobuf.ByteString;
+import org.hyperledger.fabric.protos.ledger.rwset.Rwset;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Chaincode stub of one proposal. Reads go to the committed world state and are recorded with their versions,
+ * writes are only recorded; both end up in the read-write set the ledger validates at commit.
+ */
+class TxSimulator {
+    private final Ledger ledger;
+    private final String namespace;
+    private final String txId;
+    private final Map<String, KvRwset.KVRead> reads = new LinkedHashMap<>();
+    private final Map<String, KvRwset.KVWrite> writes = new LinkedHashMap<>();
+    private final List<KvRwset.RangeQueryInfo> rangeQueries = new ArrayList<>();
+
+    TxSimulator(Ledger ledger, String namespace, String txId) {
+        this.ledger = ledger;
+        this.namespace = namespace;
+        this.txId = txId;
+    }
+
+    String getTxId() {
+        return txId;
+    }
+
+    byte[] getState(String key) {
+        KvRwset.KVWrite written = writes.get(key);
+        if (written != null) {
+            return written.getIsDelete() ? null : written.getValue().toByteArray();
+        }
+        Ledger.Value value = ledger.get(key);
+        reads.putIfAbsent(key, read(key, value));
+        return value == null ? null : value.getValue();
+    }
+
+    void putState(String key, byte[] value) {
+        writes.put(key, KvRwset.KVWrite.newBuilder().setKey(key).setValue(ByteString.copyFrom(value)).build());
+    }
+
+    void delState(String key) {
+        writes.put(key, KvRwset.KVWrite.newBuilder().setKey(key).setIsDelete(true).build());
+    }
+
+    /**
+     * @return committed states in [startKey, endKey), an empty end key means unbounded
+     */
+    SortedMap<String, byte[]> getStateByRange(String startKey, String endKey) {
+        return getStateByRange(startKey, endKey, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same as {@link #getStateByRange(String, String)} but stops after {@code limit} states, as a paged iterator does.
+     */
+    SortedMap<String, byte[]> getStateByRange(String startKey, String endKey, int limit) {
+        SortedMap<String, Ledger.Value> committed = ledger.range(startKey, endKey);
+        KvRwset.QueryReads.Builder rawReads = KvRwset.QueryReads.newBuilder();
+        SortedMap<String, byte[]> result = new TreeMap<>();
+        for (Map.Entry<String, Ledger.Value> entry : committed.entrySet()) {
+            if (result.size() == limit) {
+                break;
+            }
+            rawReads.addKvReads(read(entry.getKey(), entry.getValue()));
+            result.put(entry.getKey(), entry.getValue().getValue());
+        }
+        rangeQueries.add(KvRwset.RangeQueryInfo.newBuilder()
+                .setStartKey(startKey)
+                .setEndKey(endKey)
+                .setItrExhausted(result.size() == committed.size())
+                .setRawReads(rawReads)
+                .build());
+        return result;
+    }
+
+    ByteString getResults() {
+        KvRwset.KVRWSet rwset = KvRwset.KVRWSet.newBuilder()
+                .addAllReads(reads.values())
+                .addAllRangeQueriesInfo(rangeQueries)
+                .addAllWrites(writes.values())
+                .build();
+        return Rwset.TxReadWriteSet.newBuilder()
+                .setDataModel(Rwset.TxReadWriteSet.DataModel.KV)
+                .addNsRwset(Rwset.NsReadWriteSet.newBuilder().setNamespace(namespace).setRwset(rwset.toByteString()))
+                .build().toByteString();
+    }
+
+    private static KvRwset.KVRead read(String key, Ledger.Value value) {
+        KvRwset.KVRead.Builder read = KvRwset.KVRead.newBuilder().setKey(key);
+        if (value != null) {
+            read.setVersion(value.getVersion());
+        }
+        return read.build();
+    }
+}
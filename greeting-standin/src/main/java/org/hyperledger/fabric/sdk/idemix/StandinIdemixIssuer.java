@@ -0,0 +1,55 @@
+package org.hyperledger.fabric.sdk.idemix;
+
+import org.apache.milagro.amcl.FP256BN.BIG;
+import org.hyperledger.fabric.protos.idemix.Idemix;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Idemix issuer of a stand-in CA. Lives in the SDK package because issuer keys and credential issuing are
+ * package-private there, they are only used by the SDK tests.
+ */
+public final class StandinIdemixIssuer {
+    private static final String[] ATTRIBUTES = {"OU", "Role", "EnrollmentID", "RevocationHandle"};
+
+    private final IdemixIssuerKey key = new IdemixIssuerKey(ATTRIBUTES);
+    private final KeyPair revocationKey = RevocationAuthority.generateLongTermRevocationKey();
+    private final AtomicInteger revocationHandles = new AtomicInteger();
+
+    public byte[] getIssuerPublicKey() {
+        return key.getIpk().toProto().toByteArray();
+    }
+
+    public PublicKey getRevocationPublicKey() {
+        return revocationKey.getPublic();
+    }
+
+    public byte[] newNonce() {
+        return IdemixUtils.bigToBytes(IdemixUtils.randModOrder(IdemixUtils.getRand()));
+    }
+
+    /**
+     * @return serialized credential over the attributes, or null when the proof of the request does not hold
+     */
+    public byte[] issue(Idemix.CredRequest request, String ou, int role, String enrollmentId) {
+        IdemixCredRequest credRequest = new IdemixCredRequest(request);
+        if (!credRequest.check(key.getIpk())) {
+            return null;
+        }
+        BIG[] attributes = {
+                IdemixUtils.hashModOrder(ou.getBytes(StandardCharsets.UTF_8)),
+                new BIG(role),
+                IdemixUtils.hashModOrder(enrollmentId.getBytes(StandardCharsets.UTF_8)),
+                new BIG(revocationHandles.incrementAndGet()),
+        };
+        return new IdemixCredential(key, credRequest, attributes).toProto().toByteArray();
+    }
+
+    public byte[] getCredentialRevocationInformation() throws Exception {
+        return RevocationAuthority.createCRI(revocationKey.getPrivate(), new BIG[0], 0,
+                RevocationAlgorithm.ALG_NO_REVOCATION).toByteArray();
+    }
+}